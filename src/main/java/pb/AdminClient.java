@@ -56,6 +56,7 @@ public class AdminClient  {
         options.addOption("force",false,"in conjuction with shutdown, asking sessions to stop");
         options.addOption("vader",false,"in conjuction with shutdown, closing endpoints immediately");
         options.addOption("password",true,"password for server");
+        options.addOption("indexStats",false,"print the statistics of an index server");
         
         CommandLineParser parser = new DefaultParser();
         CommandLine cmd = null;
@@ -87,13 +88,28 @@ public class AdminClient  {
         ClientManager clientManager = new ClientManager(host,port);
         clientManager.on(ClientManager.sessionStarted, (eventArgs)->{
         	Endpoint endpoint = (Endpoint) eventArgs[0];
+        	String password="";
+    		if(cmd2.hasOption("password")) {
+    			password=cmd2.getOptionValue("password");
+    		} else {
+    			System.out.println("using a blank password");
+    		}
+        	if(cmd2.hasOption("indexStats")) {
+        		endpoint.on(IndexServer.indexStatsReply, (eventArgs2)->{
+        			String stats = (String) eventArgs2[0];
+        			for(String stat : stats.split(",")) {
+        				System.out.println(stat);
+        			}
+        			clientManager.shutdown();
+        		}).on(IndexServer.indexStatsError, (eventArgs2)->{
+        			System.out.println("index server did not give statistics: "+(String) eventArgs2[0]);
+        			clientManager.shutdown();
+        		});
+        		endpoint.emit(IndexServer.indexStats, password);
+        		// wait for the reply before stopping the session
+        		return;
+        	}
         	if(cmd2.hasOption("shutdown")) {
-        		String password="";
-        		if(cmd2.hasOption("password")) {
-        			password=cmd2.getOptionValue("password");
-        		} else {
-        			System.out.println("using a blank password");
-        		}
 	        	if(cmd2.hasOption("force")) {
 	        		endpoint.emit(ServerManager.forceShutdownServer, password);
 	        	} else if(cmd2.hasOption("vader")) {
@@ -1,18 +1,25 @@
 package pb;
 
 import java.io.BufferedReader;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.InputStreamReader;
-import java.io.OutputStream;
 import java.net.UnknownHostException;
-import java.nio.charset.StandardCharsets;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.logging.Logger;
 
 import org.apache.commons.cli.CommandLine;
@@ -22,13 +29,25 @@ import org.apache.commons.cli.HelpFormatter;
 import org.apache.commons.cli.Option;
 import org.apache.commons.cli.Options;
 import org.apache.commons.cli.ParseException;
-import org.apache.commons.codec.binary.Base64;
 
+import pb.index.ContentHash;
+import pb.index.ShardMap;
 import pb.managers.ClientManager;
 import pb.managers.IOThread;
 import pb.managers.PeerManager;
 import pb.managers.ServerManager;
 import pb.managers.endpoint.Endpoint;
+import pb.transfer.BufferPool;
+import pb.transfer.ChunkVerifier;
+import pb.transfer.Compression;
+import pb.transfer.DownloadProgress;
+import pb.transfer.DownloadScheduler;
+import pb.transfer.FileDigest;
+import pb.transfer.IUploadHandler;
+import pb.transfer.MappedFileCache;
+import pb.transfer.SwarmDownload;
+import pb.transfer.TransferEngine;
+import pb.transfer.Upload;
 import pb.utils.Utils;
 
 /**
@@ -47,20 +66,61 @@ public class FileSharingPeer {
 	 */
 	
 	/**
-	 * Emitted when a peer wants to get a file from another peer.
-	 * The single argument is a string that is the filename to get.
+	 * Emitted when a peer wants to get part of a file from another peer. The
+	 * single argument has the format "offset:length:filename", where a length
+	 * of -1 means up to the end of the file, and is also the stream id that
+	 * the range is sent on. This is how downloads resume.
 	 * <ul>
 	 * <li>{@code args[0] instanceof String}
 	 * </ul>
 	 */
-	private static final String getFile = "GET_FILE";
+	private static final String getFileRange = "GET_FILE_RANGE";
 	
 	/**
-	 * Emitted when a peer is sending a chunk of a file to another peer.
-	 * The single argument is a string that is a Base64 encoded byte array
-	 * that represents the chunk of the file. If the argument
-	 * is the empty string "" then it indicates there are no more
-	 * chunks to receive.
+	 * Emitted when a peer wants to know the size of a file on another peer.
+	 * The single argument is the filename.
+	 * <ul>
+	 * <li>{@code args[0] instanceof String}
+	 * </ul>
+	 */
+	private static final String getFileSize = "GET_FILE_SIZE";
+	
+	/**
+	 * Emitted in reply to {@link #getFileSize}. The single argument has the
+	 * format "size:filename".
+	 * <ul>
+	 * <li>{@code args[0] instanceof String}
+	 * </ul>
+	 */
+	private static final String fileSize = "FILE_SIZE";
+	
+	/**
+	 * Emitted when a peer wants the digest of a file on another peer, to check
+	 * the file as it arrives. The single argument is the filename.
+	 * <ul>
+	 * <li>{@code args[0] instanceof String}
+	 * </ul>
+	 */
+	private static final String getFileDigest = "GET_FILE_DIGEST";
+	
+	/**
+	 * Emitted in reply to {@link #getFileDigest}. The single argument is the
+	 * filename on the first line followed by the lines of
+	 * {@link FileDigest#encode()}.
+	 * <ul>
+	 * <li>{@code args[0] instanceof String}
+	 * </ul>
+	 */
+	private static final String fileDigest = "FILE_DIGEST";
+	
+	/**
+	 * Emitted when a peer has sent the last chunk of a file, or of a range
+	 * of a file, to another peer. The chunks themselves are not events, they
+	 * are sent as bulk frames on the endpoint, see
+	 * {@link Endpoint#sendBulk(String, FileChannel, long, long)}. The stream
+	 * id is the range from {@link #getFileRange}. The single argument is the
+	 * stream id, which indicates there are no more chunks to receive on that
+	 * stream.
 	 * <ul>
 	 * <li>{@code args[0] instanceof String}
 	 * </ul>
@@ -75,6 +135,39 @@ public class FileSharingPeer {
 	 */
 	private static final String fileError = "FILE_ERROR";
 	
+	/**
+	 * Emitted by a peer receiving a file to let the sending peer send more
+	 * of it. The receiver grants a whole window when it asks for the file and
+	 * then grants again as it writes what it has received to disk, so the
+	 * sender never has more than a window of the file in flight. The single
+	 * argument has the format "bytes:filename".
+	 * <ul>
+	 * <li>{@code args[0] instanceof String}
+	 * </ul>
+	 */
+	private static final String fileCredit = "FILE_CREDIT";
+	
+	/**
+	 * Emitted by a peer receiving a file, before it asks for a range, to say
+	 * which encodings it can receive the range in. The single argument has
+	 * the format "encoding,encoding,...:streamId", see {@link Compression}
+	 * for the encodings.
+	 * <ul>
+	 * <li>{@code args[0] instanceof String}
+	 * </ul>
+	 */
+	private static final String acceptEncoding = "ACCEPT_ENCODING";
+	
+	/**
+	 * Emitted in reply to {@link #acceptEncoding}, before the first chunk of
+	 * the range, with the encoding that the sender chose. The single argument
+	 * has the format "encoding:streamId".
+	 * <ul>
+	 * <li>{@code args[0] instanceof String}
+	 * </ul>
+	 */
+	private static final String fileEncoding = "FILE_ENCODING";
+	
 	/**
 	 * port to use for this peer's server
 	 */
@@ -92,65 +185,300 @@ public class FileSharingPeer {
 	private static String host=Utils.serverHost; // default host for the index server
 	
 	/**
-	 * chunk size to use (bytes) when transferring a file
+	 * the index server shards, by default the single index server at
+	 * host:indexServerPort
+	 */
+	private static ShardMap indexServers;
+	
+	/**
+	 * smallest chunk size to use (bytes) when transferring a file, the chunk
+	 * size grows from this while the connection keeps up
 	 */
 	private static int chunkSize=Utils.chunkSize;
 	
 	/**
-	 * buffer for file reading
+	 * largest chunk size to use (bytes) when transferring a file
+	 */
+	private static final int maxChunkSize=1024*1024;
+	
+	/**
+	 * size of the pooled buffers (bytes) that received chunks are written
+	 * to disk through
+	 */
+	private static final int transferBufferSize=64*1024;
+	
+	/**
+	 * bytes of a file that a receiver lets the sender have in flight
+	 */
+	private static int transferWindow=4*1024*1024;
+	
+	/**
+	 * The files being sent on each endpoint, by filename.
+	 */
+	private static final Map<Endpoint,Map<String,Upload>> uploads=
+			new ConcurrentHashMap<>();
+	
+	/**
+	 * time between telling the index server that this peer is still
+	 * available (ms), so that the index server does not expire it
+	 */
+	private static int peerUpdateInterval=5*60*1000;
+	
+	/**
+	 * size of the ranges (bytes) that a swarm download fetches from its sources
+	 */
+	private static final long swarmRangeSize=4*1024*1024;
+	
+	/**
+	 * bytes a download writes between recording its progress on disk
+	 */
+	private static final long progressInterval=8*1024*1024;
+	
+	/**
+	 * maximum number of sources a swarm download fetches from at once
+	 */
+	private static final int maxSwarmSources=4;
+	
+	/**
+	 * true to download each file from several sources at once
+	 */
+	private static boolean swarm=false;
+	
+	/**
+	 * the swarm downloads started by this peer
+	 */
+	private static final List<SwarmDownload> swarms=new ArrayList<>();
+	
+	/**
+	 * true while this peer is sharing files
+	 */
+	private static volatile boolean sharing=false;
+	
+	/**
+	 * the files this peer shares, as absolute paths, the only files that
+	 * other peers can ask for
+	 */
+	private static final Set<Path> sharedFiles=ConcurrentHashMap.newKeySet();
+	
+	/**
+	 * Sends files to the endpoints that ask for them.
+	 */
+	private static TransferEngine transferEngine;
+	
+	/**
+	 * Maximum number of files sent at the same time.
+	 */
+	private static int maxUploads=8;
+	
+	/**
+	 * True to use direct buffers for transfers.
+	 */
+	private static boolean directBuffers=false;
+	
+	/**
+	 * Mappings of the files being served, shared by their uploads.
+	 */
+	private static MappedFileCache mappedFiles;
+	
+	/**
+	 * Maximum total size of the mapped files being served (bytes).
+	 */
+	private static long mappedBudget=256L*1024*1024;
+	
+	/**
+	 * True to ask for ranges to be sent compressed.
+	 */
+	private static boolean compress=false;
+	
+	/**
+	 * Streams that each endpoint has said it can receive compressed, until
+	 * the range is started.
+	 */
+	private static final Map<Endpoint,Set<String>> acceptedEncodings=new ConcurrentHashMap<>();
+	
+	/**
+	 * Maximum number of files downloaded at the same time.
+	 */
+	private static int maxDownloads=4;
+	
+	/**
+	 * Maximum number of files downloaded at the same time from one peer.
+	 */
+	private static int maxPerPeer=2;
+	
+	/**
+	 * Time between download progress reports (ms).
 	 */
-	private static byte[] buffer = new byte[chunkSize];
+	private static final long downloadReportInterval=2000;
 	
 	/**
-	 * Read up to chunkSize bytes of a file and send to client.
-	 * If we have not reached the end of the file then set a timeout
-	 * to read some more bytes. Since this is using the timer thread
-	 * we have the danger that the transmission will block and that
-	 * this will block all the other timeouts. We could either use another
-	 * thread for each file transfer or else allow for buffering of
-	 * outgoing messages at the endpoint, to overcome this issue.
-	 * @param in the file input stream
-	 * @param endpoint the endpoint to send the file
+	 * Tells the receiving peer how an upload ended.
 	 */
-	public static void continueTransmittingFile(InputStream in,Endpoint endpoint) {
+	private static final IUploadHandler uploadHandler=new IUploadHandler() {
+		@Override
+		public void uploadFinished(Upload upload) {
+			upload.getEndpoint().emit(fileContents, upload.getStreamId()); // signals no more bytes
+			if(upload.getEncoder()!=null) {
+				System.out.println("Sent "+upload.getStreamId()+" compressed: "+upload.getEncoder().stats());
+			}
+			forgetUpload(upload);
+		}
+		
+		@Override
+		public void uploadFailed(Upload upload, String reason) {
+			upload.getEndpoint().emit(fileError, reason);
+			forgetUpload(upload);
+		}
+	};
+	
+	/**
+	 * Test that the range is in the file and then give it to the transfer
+	 * engine. Emit {@link #fileError} if it can't be sent.
+	 * @param range in the format "offset:length:filename"
+	 * @param endpoint
+	 */
+	public static void startTransmittingRange(String range,Endpoint endpoint) {
+		String[] parts=range.split(":",3);
 		try {
-			int read = in.read(buffer);
-			if(read==-1) {
-				endpoint.emit(fileContents, ""); // signals no more bytes in file
-				in.close();
+			if(parts.length!=3) throw new IOException("range is malformed: "+range);
+			long offset=Long.parseLong(parts[0]);
+			long length=Long.parseLong(parts[1]);
+			Path path = sharedPath(parts[2]);
+			MappedFileCache.Mapping mapping = mappedFiles.acquire(path);
+			FileChannel file = null;
+			long size;
+			if(mapping!=null) {
+				size=mapping.size();
 			} else {
-				endpoint.emit(fileContents, new String(Base64.encodeBase64(
-						Arrays.copyOfRange(buffer, 0, read)),
-						StandardCharsets.US_ASCII));
-				if(read<chunkSize) {
-					endpoint.emit(fileContents, "");
-					in.close();
-				} else {
-					Utils.getInstance().setTimeout(()->{
-						continueTransmittingFile(in,endpoint);
-					},100); // limit throughput to about 160kB/s, hopefully your bandwidth can keep up :-)
-				}
+				file = FileChannel.open(path, StandardOpenOption.READ);
+				size=file.size();
+			}
+			if(length==-1) length=size-offset;
+			if(offset<0 || length<0 || offset+length>size) {
+				if(mapping!=null) mapping.release(); else file.close();
+				throw new IOException("range is outside the file: "+range);
 			}
+			Upload upload = mapping!=null ? new Upload(range,mapping,endpoint,offset,length)
+					: new Upload(range,file,endpoint,offset,length);
+			try {
+				chooseEncoding(upload,mapping,file,offset,length);
+			} catch (IOException e) {
+				if(mapping!=null) mapping.release(); else file.close();
+				throw e;
+			}
+			Upload previous = uploads.computeIfAbsent(endpoint,
+					(k)->new ConcurrentHashMap<String,Upload>()).put(range, upload);
+			if(previous!=null) transferEngine.cancel(previous);
+			transferEngine.start(upload);
+		} catch (NumberFormatException e) {
+			endpoint.emit(fileError,"range is not a number: "+range);
 		} catch (IOException e) {
 			endpoint.emit(fileError,e.toString());
 		}
 	}
 	
 	/**
-	 * Test for the file existence and then start transmitting it. Emit
-	 * {@link #fileError} if file can't be accessed.
-	 * @param filename
+	 * 
+	 * @param filename as another peer asked for it
+	 * @return the path of the file, if this peer shares it
+	 * @throws IOException if the file is not shared
+	 */
+	private static Path sharedPath(String filename) throws IOException {
+		try {
+			Path path = Paths.get(filename).toAbsolutePath().normalize();
+			if(sharedFiles.contains(path)) return path;
+		} catch (InvalidPathException e) {
+			// not a path at all
+		}
+		throw new IOException("file is not shared: "+filename);
+	}
+	
+	/**
+	 * If the receiver accepts compression for the range, sample the start of
+	 * the range and compress it if the sample compresses well. The choice is
+	 * emitted before any chunk of the range.
+	 */
+	private static void chooseEncoding(Upload upload,MappedFileCache.Mapping mapping,FileChannel file,
+			long offset,long length) throws IOException {
+		Set<String> accepted = acceptedEncodings.get(upload.getEndpoint());
+		if(accepted==null || !accepted.remove(upload.getStreamId())) return;
+		int n = (int)Math.min(Compression.sampleSize, length);
+		ByteBuffer sample;
+		if(mapping!=null) {
+			sample = mapping.slice(offset, n);
+		} else {
+			sample = ByteBuffer.allocate(n);
+			while(sample.hasRemaining()) {
+				if(file.read(sample, offset+sample.position())<0) break;
+			}
+			sample.flip();
+		}
+		String encoding = Compression.identity;
+		boolean worthCompressing;
+		try {
+			worthCompressing = Compression.worthCompressing(sample);
+		} catch (InternalError e) {
+			// the mapped file has been truncated
+			mapping.invalidate();
+			throw new IOException("the file changed while it was read: "+e);
+		}
+		if(worthCompressing) {
+			upload.setEncoder(new Compression.Encoder());
+			encoding = Compression.deflate;
+		}
+		upload.getEndpoint().emit(fileEncoding, encoding+":"+upload.getStreamId());
+	}
+	
+	/**
+	 * Remember the streams that the receiver can receive compressed.
+	 * @param accept in the format "encoding,encoding,...:streamId"
+	 * @param endpoint
+	 */
+	private static void acceptEncoding(String accept,Endpoint endpoint) {
+		String[] parts=accept.split(":",2);
+		if(parts.length!=2) return;
+		if(Arrays.asList(parts[0].split(",")).contains(Compression.deflate)) {
+			acceptedEncodings.computeIfAbsent(endpoint, (k)->ConcurrentHashMap.newKeySet()).add(parts[1]);
+		}
+	}
+	
+	private static void forgetUpload(Upload upload) {
+		Map<String,Upload> files=uploads.get(upload.getEndpoint());
+		if(files!=null) files.remove(upload.getStreamId(), upload);
+	}
+	
+	/**
+	 * The client has granted more credit for a file, start sending again if
+	 * the transfer was waiting for it.
+	 * @param credit in the format "bytes:filename"
 	 * @param endpoint
 	 */
-	public static void startTransmittingFile(String filename,Endpoint endpoint) {
+	private static void grantCredit(String credit,Endpoint endpoint) {
+		String[] parts=credit.split(":",2);
+		Map<String,Upload> files=uploads.get(endpoint);
+		Upload upload = (files==null || parts.length!=2) ? null : files.get(parts[1]);
+		if(upload==null) {
+			// credit for the last chunks can arrive after the upload finished
+			log.fine("credit for a file that is not being sent: "+credit);
+			return;
+		}
 		try {
-			InputStream in = new FileInputStream(filename);
-			continueTransmittingFile(in,endpoint);
-		} catch (FileNotFoundException e) {
-			endpoint.emit(fileError,e.toString());
+			transferEngine.grant(upload, Long.parseLong(parts[0]));
+		} catch (NumberFormatException e) {
+			log.warning("credit is not a number: "+credit);
 		}
 	}
 	
+	/**
+	 * Stop sending files on an endpoint that has gone.
+	 * @param endpoint
+	 */
+	private static void stopTransmitting(Endpoint endpoint) {
+		acceptedEncodings.remove(endpoint);
+		Map<String,Upload> files=uploads.remove(endpoint);
+		if(files!=null) files.values().forEach((upload)->{transferEngine.cancel(upload);});
+	}
+	
 	/**
 	 * Emit a filename as an index update if possible, close when all done.
 	 * @param filenames
@@ -162,9 +490,15 @@ public class FileSharingPeer {
 			clientManager.shutdown(); // no more index updates to do
 		} else {
 			String filename=filenames.remove(0);
-			log.info("Sending index update: "+peerport+":"+filename);
-			// an index update has the format: host:port:filename
-			endpoint.emit(IndexServer.indexUpdate, peerport+":"+filename);
+			// an index update has the format: host:port:filename|hash
+			String update=peerport+":"+filename;
+			try {
+				update=peerport+":"+ContentHash.append(filename, FileDigest.of(Paths.get(filename)).getTop());
+			} catch (IOException e) {
+				System.out.println("Could not hash file, sharing it without a content hash: "+filename);
+			}
+			log.info("Sending index update: "+update);
+			endpoint.emit(IndexServer.indexUpdate, update);
 			Utils.getInstance().setTimeout(()->{
 				emitIndexUpdate(peerport,filenames,endpoint,clientManager);
 			}, 100); // send 10 index updates per second, this shouldn't kill the bandwidth :-]
@@ -172,8 +506,7 @@ public class FileSharingPeer {
 	}
 	
 	/**
-	 * Open a client connection to the index server and send the filenames to
-	 * update the index.
+	 * Send the filenames to the index server shards that own them.
 	 * @param filenames
 	 * @param peerManager
 	 * @throws InterruptedException 
@@ -181,8 +514,36 @@ public class FileSharingPeer {
 	 */
 	public static void uploadFileList(List<String> filenames,PeerManager peerManager,
 			String peerport) throws UnknownHostException, InterruptedException {
+		List<List<String>> shardFilenames=new ArrayList<>();
+		for(int i=0;i<indexServers.size();i++) {
+			shardFilenames.add(new ArrayList<String>());
+		}
+		for(String filename : filenames) {
+			shardFilenames.get(indexServers.shardFor(filename)).add(filename);
+		}
+		for(int i=0;i<indexServers.size();i++) {
+			if(!shardFilenames.get(i).isEmpty()) {
+				uploadFileList(shardFilenames.get(i),peerManager,peerport,
+						indexServers.host(i),indexServers.port(i));
+			}
+		}
+	}
+	
+	/**
+	 * Open a client connection to an index server and send the filenames to
+	 * update the index.
+	 * @param filenames
+	 * @param peerManager
+	 * @param indexHost
+	 * @param indexPort
+	 * @throws InterruptedException 
+	 * @throws UnknownHostException 
+	 */
+	private static void uploadFileList(List<String> filenames,PeerManager peerManager,
+			String peerport,String indexHost,int indexPort)
+					throws UnknownHostException, InterruptedException {
 		// connect to the index server and tell it the files we are sharing
-        ClientManager clientManager = peerManager.connect(indexServerPort, host);
+        ClientManager clientManager = peerManager.connect(indexPort, indexHost);
         clientManager.on(PeerManager.peerStarted, (args)->{
 			Endpoint endpoint = (Endpoint)args[0];
 			System.out.println("Connected to index server: "+endpoint.getOtherEndpointId());
@@ -205,6 +566,40 @@ public class FileSharingPeer {
         clientManager.start();
 	}
 	
+	/**
+	 * Periodically open a client connection to each index server and tell it
+	 * that this peer is still available, for as long as the peer is sharing.
+	 * @param peerManager
+	 * @param peerport
+	 */
+	public static void refreshPeer(PeerManager peerManager,String peerport) {
+		Utils.getInstance().setTimeout(()->{
+			if(!sharing) return;
+			for(int i=0;i<indexServers.size();i++) {
+				try {
+					ClientManager clientManager = peerManager.connect(indexServers.port(i),
+							indexServers.host(i));
+					clientManager.on(PeerManager.peerStarted, (args)->{
+						Endpoint endpoint = (Endpoint)args[0];
+						log.info("Telling the index server we are still available: "+peerport);
+						endpoint.emit(IndexServer.peerUpdate, peerport);
+						clientManager.shutdown();
+					}).on(PeerManager.peerError, (args)->{
+						Endpoint endpoint = (Endpoint)args[0];
+						System.out.println("There was an error communicating with the index server: "
+								+endpoint.getOtherEndpointId());
+					});
+					clientManager.start();
+				} catch (UnknownHostException e) {
+					System.out.println("The index server host could not be found: "+indexServers.host(i));
+				} catch (InterruptedException e) {
+					System.out.println("Interrupted while trying to send a peer update to the index server");
+				}
+			}
+			refreshPeer(peerManager,peerport);
+		}, peerUpdateInterval);
+	}
+	
 	/**
 	 * Share files by starting up a server manager and then sending updates to
 	 * the index server to say which files are being shared.
@@ -216,21 +611,47 @@ public class FileSharingPeer {
 		List<String> filenames=new ArrayList<String>();
 		for(String file : files) {
 			filenames.add(file);
+			try {
+				sharedFiles.add(Paths.get(file).toAbsolutePath().normalize());
+			} catch (InvalidPathException e) {
+				System.out.println("Not a file name: "+file);
+			}
 		}
+		hashFiles(filenames);
         PeerManager peerManager = new PeerManager(peerPort);
         peerManager.on(PeerManager.peerStarted, (args)->{
         	Endpoint endpoint = (Endpoint)args[0];
         	System.out.println("Connection from peer: "+endpoint.getOtherEndpointId());
-        	endpoint.on(getFile,(args2)->{
+        	endpoint.on(getFileRange,(args2)->{
+        		String range = (String) args2[0];
+        		System.out.println("Peer is requesting range: "+range);
+        		startTransmittingRange(range,endpoint);
+        	}).on(getFileSize,(args2)->{
+        		String filename = (String) args2[0];
+        		try {
+        			endpoint.emit(fileSize, Files.size(sharedPath(filename))+":"+filename);
+        		} catch (IOException e) {
+        			endpoint.emit(fileError,e.toString());
+        		}
+        	}).on(getFileDigest,(args2)->{
         		String filename = (String) args2[0];
-        		System.out.println("Peer is requesting file: "+filename);
-        		startTransmittingFile(filename,endpoint);
+        		try {
+        			endpoint.emit(fileDigest, filename+"\n"+FileDigest.of(sharedPath(filename)).encode());
+        		} catch (IOException e) {
+        			endpoint.emit(fileError,e.toString());
+        		}
+        	}).on(acceptEncoding,(args2)->{
+        		acceptEncoding((String) args2[0],endpoint);
+        	}).on(fileCredit,(args2)->{
+        		grantCredit((String) args2[0],endpoint);
         	});
         }).on(PeerManager.peerStopped,(args)->{
         	Endpoint endpoint = (Endpoint)args[0];
+        	stopTransmitting(endpoint);
         	System.out.println("Disconnected from peer: "+endpoint.getOtherEndpointId());
         }).on(PeerManager.peerError,(args)->{
         	Endpoint endpoint = (Endpoint)args[0];
+        	stopTransmitting(endpoint);
         	System.out.println("There was an error communicating with the peer: "
         			+endpoint.getOtherEndpointId());
         }).on(PeerManager.peerServerManager, (args)->{
@@ -239,6 +660,7 @@ public class FileSharingPeer {
 	        	String peerport = (String) args2[0];
 	        	try {
 					uploadFileList(filenames,peerManager,peerport);
+					refreshPeer(peerManager,peerport);
 				} catch (UnknownHostException e) {
 					System.out.println("The index server host could not be found: "+host);
 				} catch (InterruptedException e) {
@@ -246,6 +668,7 @@ public class FileSharingPeer {
 				}
 	        });
         });
+        sharing=true;
         peerManager.start();
         
         // just keep sharing until the user presses "return"
@@ -253,121 +676,690 @@ public class FileSharingPeer {
         System.out.println("Press RETURN to stop sharing");
         input.readLine();
         System.out.println("RETURN pressed, stopping the peer");
+        sharing=false;
         peerManager.shutdown();
 	}
 	
 	/**
-	 * Process a query response from the index server and download the file
+	 * Compute the digests of the shared files up front, so that they are
+	 * cached by the time peers ask for them.
+	 * @param filenames
+	 */
+	private static void hashFiles(List<String> filenames) {
+		long start=System.currentTimeMillis();
+		int hashed=0;
+		for(String filename : filenames) {
+			try {
+				FileDigest.of(Paths.get(filename));
+				hashed++;
+			} catch (IOException e) {
+				System.out.println("Could not hash file: "+filename);
+			}
+		}
+		System.out.println("Hashed "+hashed+" files in "+(System.currentTimeMillis()-start)+" ms");
+	}
+	
+	/**
+	 * Handle {@link #fileEncoding} on an endpoint that files are received
+	 * on, making a decoder for each stream that is sent compressed.
+	 * @param endpoint
+	 * @return stream id to decoder for the compressed streams
+	 */
+	private static Map<String,Compression.Decoder> receiveEncodings(Endpoint endpoint) {
+		Map<String,Compression.Decoder> decoders = new ConcurrentHashMap<>();
+		endpoint.on(fileEncoding, (args)->{
+			String[] parts = ((String) args[0]).split(":",2);
+			if(parts.length==2 && parts[0].equals(Compression.deflate)) {
+				Compression.Decoder previous = decoders.put(parts[1], new Compression.Decoder());
+				if(previous!=null) previous.end();
+			}
+		});
+		return decoders;
+	}
+	
+	/**
+	 * Ask for a stream to be sent compressed, if compression is on.
+	 * @param endpoint
+	 * @param streamId
+	 */
+	private static void requestEncoding(Endpoint endpoint,String streamId) {
+		if(compress) endpoint.emit(acceptEncoding, Compression.deflate+":"+streamId);
+	}
+	
+	/**
+	 * A stream has ended, report its compression and release its decoder.
+	 * @param decoders
+	 * @param streamId
+	 */
+	private static void endDecoding(Map<String,Compression.Decoder> decoders,String streamId) {
+		Compression.Decoder decoder = decoders.remove(streamId);
+		if(decoder==null) return;
+		decoder.end();
+		System.out.println("Received "+streamId+" compressed: "+decoder.stats());
+	}
+	
+	/**
+	 * Read a bulk frame through a pooled buffer, inflating it if the stream
+	 * is compressed, and give the bytes to the sink.
+	 * @param data
+	 * @param decoder null if the stream is not compressed
+	 * @param sink
+	 * @throws IOException
+	 */
+	private static void readFrame(ReadableByteChannel data,Compression.Decoder decoder,
+			Compression.ISink sink) throws IOException {
+		ByteBuffer buffer = transferEngine.buffers().acquire();
+		try {
+			while(true) {
+				buffer.clear();
+				if(data.read(buffer)<0) break;
+				buffer.flip();
+				if(decoder!=null) {
+					decoder.inflate(buffer, sink);
+				} else {
+					sink.accept(buffer);
+				}
+			}
+		} finally {
+			transferEngine.buffers().release(buffer);
+		}
+	}
+	
+	private static void closeQuietly(FileChannel file) {
+		try {
+			file.close();
+		} catch (IOException e) {
+			// ignore
+		}
+	}
+	
+	/**
+	 * Process a query response from the index server and download the file.
+	 * The download is recorded in a {@link DownloadProgress} as it is written,
+	 * and carries on from what is on disk if it was interrupted, whether by
+	 * the connection dropping or by a previous run of this peer stopping. The
+	 * file's digest is fetched first and each chunk is checked against it as
+	 * it arrives; the download stops at the first chunk that does not match,
+	 * keeping the chunks before it.
 	 * @param queryResponse
+	 * @param ticket the download's place in the {@link DownloadScheduler}
 	 * @throws InterruptedException 
 	 */
-	private static void getFileFromPeer(PeerManager peerManager,String response) throws InterruptedException {
+	private static void getFileFromPeer(PeerManager peerManager,String response,
+			DownloadScheduler.Ticket ticket) throws InterruptedException {
 		// Create a independent client manager (thread) for each download
-		// response has the format: PeerIP:PeerPort:filename
+		// response has the format: PeerIP:PeerPort:filename|hash
 		String[] parts=response.split(":",3);
+		String expected=ContentHash.of(parts[2]);
+		parts[2]=ContentHash.strip(parts[2]);
+		// create the file first, so that we only connect if we can store it
+		FileChannel out;
+		DownloadProgress progress;
+		try {
+			progress = new DownloadProgress(parts[2]);
+			out = FileChannel.open(Paths.get(parts[2]), StandardOpenOption.CREATE,
+					StandardOpenOption.WRITE);
+		} catch (IOException e) {
+			System.out.println("Could not create file: "+parts[2]);
+			ticket.finished(false);
+			return;
+		}
 		ClientManager clientManager;
 		try {
 			clientManager = peerManager.connect(Integer.valueOf(parts[1]),parts[0]);
 		} catch (NumberFormatException e) {
 			System.out.println("Response from index server is bad, port is not a number: "+parts[1]);
+			closeQuietly(out);
+			progress.close();
+			ticket.finished(false);
 			return;
 		} catch (UnknownHostException e) {
 			System.out.println("Could not find the peer IP address: "+parts[0]);
+			closeQuietly(out);
+			progress.close();
+			ticket.finished(false);
 			return;
 		}
-		try {
-			OutputStream out = new FileOutputStream(parts[2]);
-			clientManager.on(PeerManager.peerStarted, (args)->{
-				Endpoint endpoint = (Endpoint)args[0];
-				endpoint.on(fileContents,(args2)->{
-					String chunk = (String) args2[0];
-					if(chunk.length()==0) {
-						// file download complete
-						try {
-							out.close();
-						} catch (IOException e) {
-							System.out.println("Possible error with downloaded file: "+parts[2]);
+		// the download has ended if the connection gives up
+		ticket.watch(clientManager);
+		clientManager.on(PeerManager.peerStarted, (args)->{
+			Endpoint endpoint = (Endpoint)args[0];
+			// set once the digest has arrived and the range is requested
+			ChunkVerifier[] verifier = {null};
+			long[] written = {0};
+			Map<String,Compression.Decoder> decoders = receiveEncodings(endpoint);
+			endpoint.on(fileDigest,(args2)->{
+				String[] lines = ((String) args2[0]).split("\n",2);
+				if(!lines[0].equals(parts[2]) || verifier[0]!=null) return;
+				FileDigest digest;
+				try {
+					digest = FileDigest.parse(lines[1]);
+					if(expected!=null && !expected.equals(digest.getTop())) {
+						throw new IOException("peer's copy is not the content that was indexed");
+					}
+					progress.setSize(digest.getSize(), digest.getTop());
+				} catch (IOException | ArrayIndexOutOfBoundsException e) {
+					System.out.println("Could not start "+parts[2]+": "+e.getMessage());
+					closeQuietly(out);
+					progress.close();
+					clientManager.shutdown();
+					ticket.finished(false);
+					return;
+				}
+				// carry on from what is on disk, also after a reconnect, from
+				// a chunk boundary so that every chunk can be checked
+				long start = ChunkVerifier.align(progress.prefix());
+				verifier[0] = new ChunkVerifier(digest,start);
+				written[0] = start;
+				ticket.setTotal(progress.getSize()-start);
+				long[] recorded = {start};
+				long[] ungranted = {0};
+				String streamId = start+":-1:"+parts[2];
+				endpoint.onBulk(streamId, (id,data,length)->{
+					// frames still in flight after a corrupt chunk are dropped
+					if(verifier[0].isCorrupt()) return;
+					try {
+						readFrame(data, decoders.get(streamId), (bytes)->{
+							ticket.addBytes(bytes.remaining());
+							if(!verifier[0].update(bytes)) {
+								// the buffer can end a good chunk before the
+								// corrupt one, keep what was checked
+								bytes.limit(bytes.position()
+										+(int)Math.max(0, verifier[0].verified()-written[0]));
+							}
+							while(bytes.hasRemaining()) {
+								written[0]+=out.write(bytes, written[0]);
+							}
+						});
+						// only record chunks that have been checked and are on
+						// disk, and nothing once a chunk is corrupt
+						long verified = Math.min(verifier[0].verified(), written[0]);
+						if(!verifier[0].isCorrupt() && verified-recorded[0]>=progressInterval) {
+							out.force(false);
+							progress.completed(recorded[0], verified-recorded[0]);
+							recorded[0]=verified;
 						}
-						clientManager.shutdown();
-					} else {
-						try {
-							out.write(Base64.decodeBase64(chunk));
-						} catch (IOException e) {
-							System.out.println("Error writing file chunk: "+chunk);
+					} finally {
+						// the frame is consumed either way, so give the credit back
+						ungranted[0]+=length;
+						if(ungranted[0]>=transferWindow/4) {
+							endpoint.emit(fileCredit, ungranted[0]+":"+streamId);
+							ungranted[0]=0;
 						}
 					}
-				}).on(fileError, (args2)->{
-					System.out.println("Error downloading file");
-					clientManager.shutdown();
+					if(verifier[0].isCorrupt()) {
+						System.out.println("Chunk at byte "+verifier[0].verified()+" of "+parts[2]
+								+" failed verification, stopping the download");
+						closeQuietly(out);
+						progress.close();
+						clientManager.shutdown();
+						ticket.finished(false);
+					}
 				});
-				System.out.println("Getting file "+parts[2]+" from "+endpoint.getOtherEndpointId());
-				endpoint.emit(getFile, parts[2]);
-			}).on(PeerManager.peerStopped, (args)->{
-				Endpoint endpoint = (Endpoint)args[0];
-				System.out.println("Disconnected from peer: "+endpoint.getOtherEndpointId());
-			}).on(PeerManager.peerError, (args)->{
-				Endpoint endpoint = (Endpoint)args[0];
-				System.out.println("There was error while communication with peer: "
-						+endpoint.getOtherEndpointId());
+				if(start>0) {
+					System.out.println("Resuming file "+parts[2]+" at byte "+start+" from "
+							+endpoint.getOtherEndpointId());
+				} else {
+					System.out.println("Getting file "+parts[2]+" from "+endpoint.getOtherEndpointId());
+				}
+				requestEncoding(endpoint, streamId);
+				endpoint.emit(getFileRange, streamId);
+				endpoint.emit(fileCredit, transferWindow+":"+streamId);
+			}).on(fileContents,(args2)->{
+				// file download complete
+				endDecoding(decoders, (String) args2[0]);
+				if(verifier[0]==null || verifier[0].isCorrupt()) return;
+				if(verifier[0].verified()!=progress.getSize()) {
+					System.out.println("Downloaded file failed verification: "+parts[2]);
+					closeQuietly(out);
+					progress.close();
+					clientManager.shutdown();
+					ticket.finished(false);
+					return;
+				}
+				boolean ok = true;
+				try {
+					out.truncate(written[0]);
+					out.close();
+					progress.finish();
+				} catch (IOException e) {
+					System.out.println("Possible error with downloaded file: "+parts[2]);
+					ok = false;
+				}
+				clientManager.shutdown();
+				ticket.finished(ok);
+			}).on(fileError, (args2)->{
+				System.out.println("Error downloading file");
+				closeQuietly(out);
+				progress.close();
+				clientManager.shutdown();
+				ticket.finished(false);
 			});
-			clientManager.start();
-			// we can't call clientManager.join() because the thread that called this method is
-			// the endpoint thread from the query to the index server, which needs
-			// to continue to process its session, so we can join with this later
-		} catch (FileNotFoundException e) {
-			System.out.println("Could not create file: "+parts[2]);
-		}	
+			endpoint.emit(getFileDigest, parts[2]);
+		}).on(PeerManager.peerStopped, (args)->{
+			Endpoint endpoint = (Endpoint)args[0];
+			System.out.println("Disconnected from peer: "+endpoint.getOtherEndpointId());
+		}).on(PeerManager.peerError, (args)->{
+			Endpoint endpoint = (Endpoint)args[0];
+			System.out.println("There was error while communication with peer: "
+					+endpoint.getOtherEndpointId());
+		});
+		clientManager.start();
+		// we can't call clientManager.join() because the thread that called this method is
+		// the endpoint thread from the query to the index server, which needs
+		// to continue to process its session, so we can join with this later
 		
 	}
 	
 	/**
-	 * Query the index server for the keywords and download files for each of the query responses.
-	 * @param keywords list of keywords to query for and download matching files
+	 * Ask the index server shard that owns the file for all of its sources
+	 * and then download it from several of them at once. If the response has
+	 * a content hash, the sources include peers that have the same content
+	 * under another filename.
+	 * @param peerManager
+	 * @param response a query response, in the format PeerIP:PeerPort:filename|hash
+	 * @param ticket the download's place in the {@link DownloadScheduler}
 	 * @throws InterruptedException 
-	 * @throws UnknownHostException 
 	 */
-	private static void queryFiles(String[] keywords) throws UnknownHostException, InterruptedException {
-		String query = String.join(",",keywords);
-		// connect to the index server and tell it the files we are sharing
-		PeerManager peerManager = new PeerManager(peerPort);
-        ClientManager clientManager = peerManager.connect(indexServerPort, host);
-        clientManager.on(PeerManager.peerStarted, (args)->{
+	private static void swarmDownload(PeerManager peerManager,String response,
+			DownloadScheduler.Ticket ticket) throws InterruptedException {
+		String[] parts=response.split(":",3);
+		String filename=ContentHash.strip(parts[2]);
+		String hash=ContentHash.of(parts[2]);
+		int shard=indexServers.shardFor(filename);
+		ClientManager clientManager;
+		try {
+			clientManager = peerManager.connect(indexServers.port(shard),indexServers.host(shard));
+		} catch (UnknownHostException e) {
+			System.out.println("The index server host could not be found: "+indexServers.host(shard));
+			ticket.finished(false);
+			return;
+		}
+		// the download has ended once this and every source connection has
+		// ended, unless it finishes first
+		ticket.watch(clientManager);
+		clientManager.on(PeerManager.peerStarted, (args)->{
 			Endpoint endpoint = (Endpoint)args[0];
-			System.out.println("Connected to index server: "+endpoint.getOtherEndpointId());
-			endpoint.on(IndexServer.queryResponse, (args2)->{
-				String response = (String) args2[0];
-				if(response.length()==0) {
-					System.out.println("Received all responses.");
+			endpoint.on(IndexServer.sourcesResponse, (args2)->{
+				String[] lines = ((String) args2[0]).split("\n");
+				if(!lines[0].equals(parts[2])) return;
+				// the peer from the query response first, it was seen most recently,
+				// then one filename for each other peer
+				Map<String,String> sources = new LinkedHashMap<>();
+				sources.put(parts[0]+":"+parts[1], response);
+				for(int i=1;i<lines.length;i++) {
+					String[] source = lines[i].split(":",3);
+					if(source.length==3) sources.putIfAbsent(source[0]+":"+source[1], lines[i]);
+				}
+				try {
+					startSwarm(peerManager,filename,hash,new ArrayList<String>(sources.values()),ticket);
+				} catch (InterruptedException e) {
+					System.out.println("interrupted while trying to download: "+filename);
+				}
+				clientManager.shutdown();
+			});
+			endpoint.emit(IndexServer.querySources, parts[2]);
+		}).on(PeerManager.peerError, (args)->{
+			Endpoint endpoint = (Endpoint)args[0];
+			System.out.println("There was an error communicating with the index server: "
+					+endpoint.getOtherEndpointId());
+		});
+		clientManager.start();
+	}
+	
+	/**
+	 * Start fetching ranges of the file from up to maxSwarmSources sources.
+	 * @param peerManager
+	 * @param filename
+	 * @param hash the content hash of the file, null if it is not known
+	 * @param sources list of "host:port:filename" strings, with the filename
+	 * that the source has the file under
+	 * @param ticket the download's place in the {@link DownloadScheduler}
+	 * @throws InterruptedException 
+	 */
+	private static void startSwarm(PeerManager peerManager,String filename,String hash,
+			List<String> sources,DownloadScheduler.Ticket ticket) throws InterruptedException {
+		// each source takes one of its peer's slots in the scheduler, sources
+		// whose peer has none free are left out
+		List<String> chosen = new ArrayList<>();
+		for(String entry : sources) {
+			if(chosen.size()>=maxSwarmSources) break;
+			if(ticket.acquirePeer(sourceOf(entry))) chosen.add(entry);
+		}
+		if(chosen.isEmpty()) {
+			System.out.println("Could not download "+filename+", no source has a download slot free");
+			ticket.finished(false);
+			return;
+		}
+		FileChannel out;
+		DownloadProgress progress;
+		try {
+			progress = new DownloadProgress(filename);
+			out = FileChannel.open(Paths.get(filename), StandardOpenOption.CREATE,
+					StandardOpenOption.WRITE);
+		} catch (IOException e) {
+			System.out.println("Could not create file: "+filename);
+			ticket.finished(false);
+			return;
+		}
+		SwarmDownload download = new SwarmDownload(filename,out,swarmRangeSize,progress);
+		synchronized(swarms) {
+			swarms.add(download);
+		}
+		System.out.println("Getting file "+filename+" from "+chosen.size()+" sources");
+		// every source counts before any of them can end
+		for(String entry : chosen) {
+			download.addSource(sourceOf(entry));
+		}
+		for(String entry : chosen) {
+			swarmSource(peerManager,download,hash,entry,ticket);
+		}
+	}
+	
+	/**
+	 * 
+	 * @param entry "host:port:filename"
+	 * @return "host:port"
+	 */
+	private static String sourceOf(String entry) {
+		String[] hostport=entry.split(":",3);
+		return hostport.length<2?entry:hostport[0]+":"+hostport[1];
+	}
+	
+	/**
+	 * Connect to one source of a swarm download and fetch ranges from it
+	 * until the download is complete or has failed. While there is no range
+	 * that it can fetch, the source waits to be woken.
+	 * @param peerManager
+	 * @param download
+	 * @param hash the content hash of the file, null if it is not known
+	 * @param entry "host:port:filename" of the source
+	 * @param ticket the download's place in the {@link DownloadScheduler}
+	 * @throws InterruptedException 
+	 */
+	private static void swarmSource(PeerManager peerManager,SwarmDownload download,String hash,
+			String entry,DownloadScheduler.Ticket ticket) throws InterruptedException {
+		String[] hostport=entry.split(":",3);
+		String source=sourceOf(entry);
+		ClientManager clientManager;
+		try {
+			clientManager = peerManager.connect(Integer.valueOf(hostport[1]),hostport[0]);
+		} catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+			System.out.println("Source from index server is bad: "+source);
+			sourceEnded(download,source,ticket);
+			return;
+		} catch (UnknownHostException e) {
+			System.out.println("Could not find the peer IP address: "+hostport[0]);
+			sourceEnded(download,source,ticket);
+			return;
+		}
+		// the source may have the content under another name
+		String remoteFilename=ContentHash.strip(hostport[2]);
+		ticket.watch(clientManager);
+		// the range being fetched from this source and the session it is
+		// fetched on, guarded by the lock on current
+		SwarmDownload.Range[] current = {null};
+		Endpoint[] session = {null};
+		clientManager.on(PeerManager.peerStarted, (args)->{
+			Endpoint endpoint = (Endpoint)args[0];
+			synchronized(current) {
+				session[0] = endpoint;
+			}
+			Map<String,Compression.Decoder> decoders = receiveEncodings(endpoint);
+			endpoint.on(fileDigest, (args2)->{
+				String[] lines = ((String) args2[0]).split("\n",2);
+				if(!lines[0].equals(remoteFilename)) return;
+				boolean first = !download.hasDigest();
+				try {
+					FileDigest digest = FileDigest.parse(lines[1]);
+					if((hash!=null && !hash.equals(digest.getTop())) || !download.setDigest(digest)) {
+						System.out.println("Source has a different "+download.getFilename()+": "+source);
+						clientManager.shutdown();
+						return;
+					}
+				} catch (IOException | ArrayIndexOutOfBoundsException e) {
+					System.out.println("Could not start "+download.getFilename()+": "+e.getMessage());
 					clientManager.shutdown();
-				} else {
-					System.out.println("Received query response: "+response);
-					try {
-						getFileFromPeer(peerManager,response);
-					} catch (InterruptedException e) {
-						System.out.println("interrupted while trying to download: "+response);
+					return;
+				}
+				if(first) ticket.setTotal(download.remaining());
+				if(first && download.isResumed()) {
+					System.out.println("Resuming "+download.getFilename()+" with "+download.progress());
+				}
+				fetchNextRange(download,remoteFilename,endpoint,decoders,clientManager,source,
+						current,session,ticket);
+			}).on(fileContents, (args2)->{
+				SwarmDownload.Range range;
+				synchronized(current) {
+					range = current[0];
+					current[0] = null;
+				}
+				if(range==null) return;
+				endpoint.removeBulkHandler((String) args2[0]);
+				endDecoding(decoders, (String) args2[0]);
+				if(!download.complete(range)) {
+					if(range.isCorrupt()) {
+						System.out.println("Range at byte "+range.getOffset()+" of "+download.getFilename()
+								+" from "+source+" failed verification");
 					}
+					failRange(download,range,source,ticket);
+				} else if(download.isComplete()) {
+					swarmCompleted(download,ticket);
 				}
-			}).on(IndexServer.queryError, (args2)->{
-				System.out.println("Index server did not accept the query: "+query);
+				fetchNextRange(download,remoteFilename,endpoint,decoders,clientManager,source,
+						current,session,ticket);
+			}).on(fileError, (args2)->{
+				System.out.println("Error downloading from "+source+": "+args2[0]);
 				clientManager.shutdown();
 			});
-			System.out.println("Sending query to the index server.");
-			endpoint.emit(IndexServer.queryIndex, query);
+			endpoint.emit(getFileDigest, remoteFilename);
 		}).on(PeerManager.peerStopped, (args)->{
-			Endpoint endpoint = (Endpoint)args[0];
-			System.out.println("Disconnected from the index server: "+endpoint.getOtherEndpointId());
+			sessionEnded(download,source,current,session,ticket);
 		}).on(PeerManager.peerError, (args)->{
 			Endpoint endpoint = (Endpoint)args[0];
-			System.out.println("There was an error communicating with the index server: "
+			System.out.println("There was error while communication with peer: "
 					+endpoint.getOtherEndpointId());
+			sessionEnded(download,source,current,session,ticket);
+		}).on(ClientManager.managerStopped, (args)->{
+			// it has given up connecting, or its connection has ended for good
+			sourceEnded(download,source,ticket);
 		});
-        clientManager.start();
-        clientManager.join(); // wait for the query to finish
+		clientManager.start();
+	}
+	
+	/**
+	 * A session with a source has ended, put back the range it was fetching.
+	 * The source may connect again.
+	 */
+	private static void sessionEnded(SwarmDownload download,String source,SwarmDownload.Range[] current,
+			Endpoint[] session,DownloadScheduler.Ticket ticket) {
+		SwarmDownload.Range range;
+		synchronized(current) {
+			session[0] = null;
+			range = current[0];
+			current[0] = null;
+		}
+		if(range!=null) failRange(download,range,source,ticket);
+	}
+	
+	/**
+	 * Claim the next range that the source can fetch and ask for it. If there
+	 * is none for now the source waits, and this is called again when a range
+	 * it can fetch is put back, or the download ends, in which case the source
+	 * is shut down.
+	 */
+	private static void fetchNextRange(SwarmDownload download,String remoteFilename,Endpoint endpoint,
+			Map<String,Compression.Decoder> decoders,ClientManager clientManager,String source,
+			SwarmDownload.Range[] current,Endpoint[] session,DownloadScheduler.Ticket ticket) {
+		SwarmDownload.Range range;
+		synchronized(current) {
+			// woken after the session ended, it claims again if it reconnects
+			if(session[0]!=endpoint) return;
+			range = download.claim(source, ()->{
+				fetchNextRange(download,remoteFilename,endpoint,decoders,clientManager,source,
+						current,session,ticket);
+			});
+			current[0] = range;
+		}
+		if(range==null) {
+			if(download.isComplete()) {
+				// also an empty file, or one that was already on disk
+				swarmCompleted(download,ticket);
+				clientManager.shutdown();
+			} else if(download.isFailed()) {
+				clientManager.shutdown();
+			}
+			return;
+		}
+		String streamId = range.getOffset()+":"+range.getLength()+":"+remoteFilename;
+		long[] ungranted = {0};
+		endpoint.onBulk(streamId, (id,data,length)->{
+			try {
+				readFrame(data, decoders.get(streamId), (bytes)->{
+					ticket.addBytes(bytes.remaining());
+					download.write(range, bytes);
+				});
+			} finally {
+				ungranted[0]+=length;
+				if(ungranted[0]>=transferWindow/4) {
+					endpoint.emit(fileCredit, ungranted[0]+":"+streamId);
+					ungranted[0]=0;
+				}
+			}
+		});
+		requestEncoding(endpoint, streamId);
+		endpoint.emit(getFileRange, streamId);
+		endpoint.emit(fileCredit, Math.min(transferWindow, range.getLength())+":"+streamId);
+	}
+	
+	private static void failRange(SwarmDownload download,SwarmDownload.Range range,String source,
+			DownloadScheduler.Ticket ticket) {
+		if(download.fail(range, source)) swarmFailed(download,ticket);
+	}
+	
+	private static void sourceEnded(SwarmDownload download,String source,DownloadScheduler.Ticket ticket) {
+		ticket.releasePeer(source);
+		if(download.sourceEnded(source)) swarmFailed(download,ticket);
+	}
+	
+	/**
+	 * Report a swarm download that has failed, once, and give up its place
+	 * in the {@link DownloadScheduler}.
+	 */
+	private static void swarmFailed(SwarmDownload download,DownloadScheduler.Ticket ticket) {
+		if(!download.takeEnd()) return;
+		System.out.println("Could not download "+download.getFilename()
+			+", no source that is left can fetch all of it");
+		download.close();
+		ticket.finished(false);
+	}
+	
+	/**
+	 * Report a swarm download that is complete, once.
+	 */
+	private static void swarmCompleted(SwarmDownload download,DownloadScheduler.Ticket ticket) {
+		if(!download.takeEnd()) return;
+		download.close();
+		System.out.println("Downloaded "+download.getFilename()+" ("+download.progress()+")");
+		ticket.finished(true);
+	}
+	
+	/**
+	 * Query the index servers for the keywords and download files for each of the query
+	 * responses. The query is scattered to every index server shard and the responses
+	 * are gathered, so that each file is only downloaded once. Downloads are queued in
+	 * a {@link DownloadScheduler}, which limits how many run at once, in total and
+	 * from each peer, and starts resumed downloads first.
+	 * @param keywords list of keywords to query for and download matching files
+	 * @throws InterruptedException 
+	 * @throws UnknownHostException 
+	 */
+	private static void queryFiles(String[] keywords) throws UnknownHostException, InterruptedException {
+		String query = String.join(",",keywords);
+		PeerManager peerManager = new PeerManager(peerPort);
+		// filenames and content hashes being downloaded
+		Set<String> downloading = new HashSet<>();
+		DownloadScheduler scheduler = new DownloadScheduler(maxDownloads,maxPerPeer,downloadReportInterval);
+		List<ClientManager> queries = new ArrayList<>();
+		for(int i=0;i<indexServers.size();i++) {
+			// connect to the index server and send it the query
+	        ClientManager clientManager = peerManager.connect(indexServers.port(i), indexServers.host(i));
+	        clientManager.on(PeerManager.peerStarted, (args)->{
+				Endpoint endpoint = (Endpoint)args[0];
+				System.out.println("Connected to index server: "+endpoint.getOtherEndpointId());
+				endpoint.on(IndexServer.queryResponse, (args2)->{
+					String response = (String) args2[0];
+					if(response.length()==0) {
+						System.out.println("Received all responses from: "+endpoint.getOtherEndpointId());
+						clientManager.shutdown();
+					} else {
+						System.out.println("Received query response: "+response);
+						String[] parts=response.split(":",3);
+						if(parts.length!=3) {
+							System.out.println("Response from index server is bad: "+response);
+							return;
+						}
+						String filename=ContentHash.strip(parts[2]);
+						String hash=ContentHash.of(parts[2]);
+						synchronized(downloading) {
+							if(hash!=null && downloading.contains(hash)) {
+								System.out.println("Already downloading the same content: "+filename);
+								return;
+							}
+							if(!downloading.add(filename)) {
+								System.out.println("Already downloading a file called: "+filename);
+								return;
+							}
+							if(hash!=null) downloading.add(hash);
+						}
+						// finish what was started before fetching anything new
+						int priority = DownloadProgress.exists(filename)?1:0;
+						scheduler.submit(filename, parts[0]+":"+parts[1], priority, (ticket)->{
+							if(swarm) {
+								swarmDownload(peerManager,response,ticket);
+							} else {
+								getFileFromPeer(peerManager,response,ticket);
+							}
+						});
+					}
+				}).on(IndexServer.queryError, (args2)->{
+					System.out.println("Index server did not accept the query: "+query);
+					clientManager.shutdown();
+				});
+				System.out.println("Sending query to the index server.");
+				endpoint.emit(IndexServer.queryIndex, query);
+			}).on(PeerManager.peerStopped, (args)->{
+				Endpoint endpoint = (Endpoint)args[0];
+				System.out.println("Disconnected from the index server: "+endpoint.getOtherEndpointId());
+			}).on(PeerManager.peerError, (args)->{
+				Endpoint endpoint = (Endpoint)args[0];
+				System.out.println("There was an error communicating with the index server: "
+						+endpoint.getOtherEndpointId());
+			});
+	        queries.add(clientManager);
+		}
+		for(ClientManager clientManager : queries) {
+			clientManager.start();
+		}
+		for(ClientManager clientManager : queries) {
+			clientManager.join(); // wait for the query to finish
+		}
+		scheduler.awaitIdle(); // wait for the queued downloads to start and end
         /*
          * We also have to join with any other client managers that were started for
          * download purposes.
          */
         peerManager.joinWithClientManagers();
+        synchronized(swarms) {
+        	for(SwarmDownload download : swarms) {
+        		if(!download.isComplete()) {
+        			System.out.println("Download of "+download.getFilename()+" is incomplete: "
+        					+download.progress()+", query again to resume it");
+        			download.close();
+        		}
+        	}
+        }
+        log.info("downloads: "+scheduler.stats());
 	}
 	
 	private static void help(Options options){
@@ -389,10 +1381,20 @@ public class FileSharingPeer {
         options.addOption("port",true,"peer server port, an integer");
         options.addOption("host",true,"index server hostname, a string");
         options.addOption("indexServerPort",true,"index server port, an integer");
+        options.addOption("indexServers",true,"index server shards, in the format host:port,host:port,...");
+        options.addOption("peerUpdateInterval",true,"seconds between telling the index server we are available, an integer");
+        options.addOption("transferWindow",true,"kilobytes of a download that may be in flight, an integer");
+        options.addOption("maxUploads",true,"maximum number of files to send at the same time, an integer");
+        options.addOption("maxDownloads",true,"maximum number of files to download at the same time, an integer");
+        options.addOption("maxPerPeer",true,"maximum number of files to download from one peer at the same time, swarm sources included, an integer");
+        options.addOption("directBuffers",false,"use direct buffers for transfers");
+        options.addOption("compress",false,"ask for files to be sent compressed when they compress well");
+        options.addOption("mappedBudget",true,"MB of shared files to keep memory mapped while serving them, an integer, 0 to not map files");
+        options.addOption("swarm",false,"download each file from several peers at once");
         Option optionShare = new Option("share",true,"list of files to share");
         optionShare.setArgs(Option.UNLIMITED_VALUES);
         options.addOption(optionShare);
-        Option optionQuery = new Option("query",true,"keywords to search for and download files that match");
+        Option optionQuery = new Option("query",true,"keywords to search for and download files that match, \"abc*\" for a token prefix, \"=abc\" for a token, \"*.abc\" for an extension");
         optionQuery.setArgs(Option.UNLIMITED_VALUES);
         options.addOption(optionQuery);
         
@@ -424,11 +1426,106 @@ public class FileSharingPeer {
 			}
         }
         
+        if(cmd.hasOption("peerUpdateInterval")) {
+        	try{
+        		peerUpdateInterval = Integer.parseInt(cmd.getOptionValue("peerUpdateInterval"))*1000;
+			} catch (NumberFormatException e){
+				System.out.println("-peerUpdateInterval requires a number of seconds, parsed: "+
+						cmd.getOptionValue("peerUpdateInterval"));
+				help(options);
+			}
+        }
+        
+        if(cmd.hasOption("transferWindow")) {
+        	try{
+        		transferWindow = Integer.parseInt(cmd.getOptionValue("transferWindow"))*1024;
+			} catch (NumberFormatException e){
+				System.out.println("-transferWindow requires a number of kilobytes, parsed: "+
+						cmd.getOptionValue("transferWindow"));
+				help(options);
+			}
+        	if(transferWindow<=0) {
+        		System.out.println("-transferWindow must be positive");
+        		help(options);
+        	}
+        }
+        
+        if(cmd.hasOption("maxUploads")) {
+        	try{
+        		maxUploads = Integer.parseInt(cmd.getOptionValue("maxUploads"));
+			} catch (NumberFormatException e){
+				System.out.println("-maxUploads requires a number, parsed: "+
+						cmd.getOptionValue("maxUploads"));
+				help(options);
+			}
+        	if(maxUploads<=0) {
+        		System.out.println("-maxUploads must be positive");
+        		help(options);
+        	}
+        }
+        
+        if(cmd.hasOption("maxDownloads")) {
+        	try{
+        		maxDownloads = Integer.parseInt(cmd.getOptionValue("maxDownloads"));
+			} catch (NumberFormatException e){
+				System.out.println("-maxDownloads requires a number, parsed: "+
+						cmd.getOptionValue("maxDownloads"));
+				help(options);
+			}
+        	if(maxDownloads<=0) {
+        		System.out.println("-maxDownloads must be positive");
+        		help(options);
+        	}
+        }
+        
+        if(cmd.hasOption("maxPerPeer")) {
+        	try{
+        		maxPerPeer = Integer.parseInt(cmd.getOptionValue("maxPerPeer"));
+			} catch (NumberFormatException e){
+				System.out.println("-maxPerPeer requires a number, parsed: "+
+						cmd.getOptionValue("maxPerPeer"));
+				help(options);
+			}
+        	if(maxPerPeer<=0) {
+        		System.out.println("-maxPerPeer must be positive");
+        		help(options);
+        	}
+        }
+        
+        if(cmd.hasOption("mappedBudget")) {
+        	try{
+        		mappedBudget = Long.parseLong(cmd.getOptionValue("mappedBudget"))*1024*1024;
+			} catch (NumberFormatException e){
+				System.out.println("-mappedBudget requires a number of MB, parsed: "+
+						cmd.getOptionValue("mappedBudget"));
+				help(options);
+			}
+        }
+        
+        directBuffers = cmd.hasOption("directBuffers");
+        compress = cmd.hasOption("compress");
+        swarm = cmd.hasOption("swarm");
+        
         if(cmd.hasOption("host")) {
         	host = cmd.getOptionValue("host");
         }
         
         
+        try {
+        	if(cmd.hasOption("indexServers")) {
+        		indexServers = new ShardMap(cmd.getOptionValue("indexServers"));
+        	} else {
+        		indexServers = new ShardMap(host+":"+indexServerPort);
+        	}
+        } catch (IllegalArgumentException e) {
+        	System.out.println("-indexServers is malformed: "+e.getMessage());
+        	help(options);
+        }
+        
+        transferEngine = new TransferEngine(maxUploads,chunkSize,maxChunkSize,
+        		new BufferPool(transferBufferSize,maxUploads,directBuffers),uploadHandler);
+        mappedFiles = new MappedFileCache(mappedBudget);
+        
         // start up the client
         log.info("PB Peer starting up");
  
@@ -442,6 +1539,8 @@ public class FileSharingPeer {
         	System.out.println("must use either the -query or -share option");
         	help(options);
         }
+        log.info("transfers: "+transferEngine.stats()+","+mappedFiles.stats());
+        transferEngine.shutdown();
         Utils.getInstance().cleanUp();
         log.info("PB Peer stopped");
     }
@@ -1,5 +1,6 @@
 package pb;
 
+import java.io.File;
 import java.io.IOException;
 import java.time.Instant;
 import java.util.ArrayList;
@@ -9,7 +10,13 @@ import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Logger;
 
 import org.apache.commons.cli.CommandLine;
@@ -19,6 +26,12 @@ import org.apache.commons.cli.HelpFormatter;
 import org.apache.commons.cli.Options;
 import org.apache.commons.cli.ParseException;
 
+import pb.index.ContentHash;
+import pb.index.IndexStore;
+import pb.index.QueryCache;
+import pb.index.QueryTerm;
+import pb.index.ShardMap;
+import pb.index.TokenIndex;
 import pb.managers.IOThread;
 import pb.managers.ServerManager;
 import pb.managers.endpoint.Endpoint;
@@ -38,7 +51,9 @@ public class IndexServer {
 	
 	/**
 	 * Emitted to request the index to be updated. The argument
-	 * must have the format "host:port:filename"
+	 * must have the format "host:port:filename", optionally followed by
+	 * "|hash" where hash is the content hash of the file, see
+	 * {@link ContentHash}.
 	 * <ul>
 	 * <li>{@code args[0] instanceof String}</li>
 	 * </ul>
@@ -64,6 +79,27 @@ public class IndexServer {
 	 */
 	public static final String peerUpdate = "PEER_UPDATE";
 	
+	/**
+	 * Emitted by an admin client to ask for the index statistics. The
+	 * argument is the server password, or any string if the server has no
+	 * password.
+	 * <ul>
+	 * <li>{@code args[0] instanceof String}</li>
+	 * </ul>
+	 */
+	public static final String indexStats = "INDEX_STATS";
+	
+	/**
+	 * Emitted to ask for the peers that have a file, so that it can be
+	 * downloaded from several of them at once. The argument is the filename,
+	 * or "filename|hash" to ask for every peer that has the same content
+	 * under any filename.
+	 * <ul>
+	 * <li>{@code args[0] instanceof String}</li>
+	 * </ul>
+	 */
+	public static final String querySources = "QUERY_SOURCES";
+	
 	/**
 	 * Events that this server will send back to the client.
 	 */
@@ -79,8 +115,10 @@ public class IndexServer {
 	
 	/**
 	 * Emitted as a query response. The argument either gives
-	 * a response in the form "host:port:filename" or the empty
-	 * string "" to mean no more responses remain.
+	 * a response in the form "host:port:filename", followed by "|hash" if
+	 * the peer gave a content hash, or the empty string "" to mean no more
+	 * responses remain. A filename that peers have with different content
+	 * gets a response for each content.
 	 * <ul>
 	 * <li>{@code args[0] instanceof String}</li>
 	 * </ul>
@@ -92,6 +130,36 @@ public class IndexServer {
 	 */
 	public static final String queryError = "QUERY_ERROR";
 	
+	/**
+	 * Emitted in reply to {@link #indexStats}. The argument has the format
+	 * "name=value,name=value,...".
+	 * <ul>
+	 * <li>{@code args[0] instanceof String}</li>
+	 * </ul>
+	 */
+	public static final String indexStatsReply = "INDEX_STATS_REPLY";
+	
+	/**
+	 * Emitted in reply to {@link #indexStats} when the statistics can't be
+	 * given, e.g. because the password is wrong. The argument is the reason.
+	 * <ul>
+	 * <li>{@code args[0] instanceof String}</li>
+	 * </ul>
+	 */
+	public static final String indexStatsError = "INDEX_STATS_ERROR";
+	
+	/**
+	 * Emitted in reply to {@link #querySources}. The argument has one line
+	 * per item: the query first and then a "host:port:filename" line for
+	 * each peer that has the file, most recently seen first, with the
+	 * filename that the peer has it under. There are no peer lines if no
+	 * peer has the file.
+	 * <ul>
+	 * <li>{@code args[0] instanceof String}</li>
+	 * </ul>
+	 */
+	public static final String sourcesResponse = "SOURCES_RESPONSE";
+	
 	/**
 	 * Storage of the key value index
 	 * "filename" to list of "PeerIP:PeerPort" strings that have that file
@@ -104,25 +172,212 @@ public class IndexServer {
 	 */
 	public static final Map<String,Long> lastTimeSeen=new HashMap<>();
 	
+	/**
+	 * The reverse of the key value index, "PeerIP:PeerPort" to the filenames
+	 * that the peer has, so that a peer can be removed without looking at
+	 * every file. The files that the on-disk segment has for a peer are found
+	 * from the segment instead, see {@link IndexStore#segmentFiles(String)}.
+	 * Guarded by the lock on keyValueMap.
+	 */
+	private static final Map<String,Set<String>> peerFiles=new HashMap<>();
+	
+	/**
+	 * Case folded tokens of the filenames in the key value index, so that
+	 * queries do not have to case fold every filename. Guarded by the lock
+	 * on keyValueMap.
+	 */
+	private static final TokenIndex tokenIndex=new TokenIndex();
+	
+	/**
+	 * Content hashes given in index updates, "filename" to "PeerIP:PeerPort"
+	 * to the hash of that peer's copy. Guarded by the lock on keyValueMap.
+	 */
+	private static final Map<String,Map<String,String>> fileHashes=new HashMap<>();
+	
+	/**
+	 * The reverse of fileHashes, content hash to the "PeerIP:PeerPort:filename"
+	 * strings that have that content, so that identical files are found
+	 * whatever they are called. Guarded by the lock on keyValueMap.
+	 */
+	private static final Map<String,Set<String>> contentIndex=new HashMap<>();
+	
+	/**
+	 * Time stamp to the "PeerIP:PeerPort" strings last seen at that time,
+	 * i.e. the peers ordered by lastTimeSeen. The expiry sweeper only looks
+	 * at the head of this map. Guarded by the lock on lastTimeSeen.
+	 */
+	private static final TreeMap<Long,Set<String>> seenOrder=new TreeMap<>();
+	
+	/**
+	 * Peers that have not been seen for this long (ms) are removed from the
+	 * index, 0 to never expire peers.
+	 */
+	private static long peerTtl=30*60*1000;
+	
+	/**
+	 * Time between sweeps for expired peers (ms).
+	 */
+	private static final int sweepInterval=10000;
+	
+	/**
+	 * Expiry metrics, guarded by the lock on keyValueMap.
+	 */
+	private static long peersExpired=0;
+	private static long entriesReclaimed=0;
+	private static long filesReclaimed=0;
+	
 	/**
 	 * The default port number for the server.
 	 */
 	private static int port=Utils.indexServerPort; // default port number for the server
 	
+	/**
+	 * The optional on-disk index, null if the index is only kept in memory.
+	 */
+	private static IndexStore store=null;
+	
+	/**
+	 * Cache of query results, null if caching is turned off.
+	 */
+	private static QueryCache queryCache=new QueryCache(1000);
+	
+	/**
+	 * The server password, null if there isn't one.
+	 */
+	private static String password=null;
+	
+	/**
+	 * The shards of the index when running as one of several index servers,
+	 * null when this server holds the whole index.
+	 */
+	private static ShardMap shards=null;
+	
+	/**
+	 * The shard that this server owns, if there are shards.
+	 */
+	private static int shard=0;
+	
+	/**
+	 * Maximum number of peers given in a {@link #sourcesResponse}.
+	 */
+	private static final int maxSources=16;
+	
+	/**
+	 * Time between compactions of the on-disk index (ms).
+	 */
+	private static int compactInterval=60000;
+	
+	/**
+	 * Runs the compactions, so that they don't hold up the timer that the
+	 * sweeps and query responses run on. Null if there is no on-disk index.
+	 */
+	private static ScheduledExecutorService compactor=null;
+	
 
 	/**
 	 * Update the index with the filename and peerport.
 	 * @param filename
 	 * @param peerport
+	 * @param hash the content hash of the peer's copy, null if not given
 	 */
-	private static void indexUpdate(String filename,String peerport) {
+	private static void indexUpdate(String filename,String peerport,String hash) {
 		synchronized(keyValueMap) {
 			if(!keyValueMap.containsKey(filename)) {
 				keyValueMap.put(filename, new HashSet<String>());
+				tokenIndex.add(filename);
+				if(queryCache!=null) queryCache.filenameAdded(filename);
 			}
 			Set<String> possiblepeers=keyValueMap.get(filename);
 			possiblepeers.add(peerport);
+			peerFiles.computeIfAbsent(peerport, (k)->new HashSet<String>()).add(filename);
+			if(hash!=null) {
+				String previous=fileHashes.computeIfAbsent(filename, (k)->new HashMap<String,String>())
+						.put(peerport, hash);
+				// the peer's copy has changed
+				if(previous!=null && !previous.equals(hash)) removeContent(previous,peerport+":"+filename);
+				contentIndex.computeIfAbsent(hash, (k)->new HashSet<String>()).add(peerport+":"+filename);
+			}
+			if(store!=null) store.appendIndexUpdate(filename, peerport, hash);
+		}
+		boolean seen;
+		synchronized(lastTimeSeen) {
+			seen=lastTimeSeen.containsKey(peerport);
+		}
+		// a peer that never told us it was available still needs to expire
+		if(!seen) peerUpdate(peerport);
+	}
+	
+	/**
+	 * Remove an entry from the content index. Caller must hold the lock on
+	 * keyValueMap.
+	 * @param hash
+	 * @param entry "PeerIP:PeerPort:filename"
+	 */
+	private static void removeContent(String hash,String entry) {
+		Set<String> entries=contentIndex.get(hash);
+		if(entries!=null) {
+			entries.remove(entry);
+			if(entries.isEmpty()) contentIndex.remove(hash);
+		}
+	}
+	
+	/**
+	 * The content hashes that peers gave for the file, from memory and from
+	 * the on-disk index if there is one.
+	 * @param filename
+	 * @return "PeerIP:PeerPort" to hash, possibly empty
+	 */
+	private static Map<String,String> hashesFor(String filename) {
+		Map<String,String> hashes=new HashMap<>();
+		if(store!=null) hashes.putAll(store.segmentHashes(filename));
+		synchronized(keyValueMap) {
+			if(fileHashes.containsKey(filename)) {
+				hashes.putAll(fileHashes.get(filename));
+			}
+		}
+		return hashes;
+	}
+	
+	/**
+	 * All of the files with the content, from memory and from the on-disk
+	 * index if there is one.
+	 * @param hash
+	 * @return list of "PeerIP:PeerPort:filename" strings, possibly empty
+	 */
+	private static List<String> filesWith(String hash) {
+		Set<String> entries=new HashSet<>();
+		List<String> segmentEntries=store==null?Collections.emptyList():store.segmentContent(hash);
+		synchronized(keyValueMap) {
+			if(contentIndex.containsKey(hash)) {
+				entries.addAll(contentIndex.get(hash));
+			}
+			for(String entry : segmentEntries) {
+				// the peer may have changed its copy since the segment was
+				// written, which only the in-memory hashes can say
+				String peerport=peerOf(entry);
+				Map<String,String> hashes=fileHashes.get(entry.substring(peerport.length()+1));
+				String current=hashes==null?null:hashes.get(peerport);
+				if(current==null || current.equals(hash)) entries.add(entry);
+			}
+		}
+		return new ArrayList<String>(entries);
+	}
+	
+	/**
+	 * All of the peers that have the file, from memory and from the on-disk
+	 * index if there is one.
+	 * @param filename
+	 * @return list of "PeerIP:PeerPort" strings, possibly empty
+	 */
+	private static List<String> peersFor(String filename) {
+		Set<String> peers=new HashSet<>();
+		synchronized(keyValueMap) {
+			if(keyValueMap.containsKey(filename)) {
+				peers.addAll(keyValueMap.get(filename));
+			}
 		}
+		if(store!=null) peers.addAll(store.segmentPeers(filename));
+		return new ArrayList<String>(peers);
 	}
 	
 	/**
@@ -139,22 +394,17 @@ public class IndexServer {
 			return;
 		}
 		String hit = hits.remove(0);
-		synchronized(keyValueMap) {
-			synchronized(lastTimeSeen) {
-				if(keyValueMap.containsKey(hit)) {
-					List<String> peers = new ArrayList<String>(keyValueMap.get(hit));
-					Collections.sort(peers,
-					new Comparator<String>() {
-						@Override
-						public int compare(String o1, String o2) {
-							// sort largest to smallest
-							return lastTimeSeen.get(o2).compareTo(lastTimeSeen.get(o1));
-						}
-					});
-					log.info("Sending query response: "+peers.get(0)+":"+hit);
-					client.emit(queryResponse, peers.get(0)+":"+hit);
-				}
-			}
+		List<String> peers = peersFor(hit);
+		Map<String,String> hashes = hashesFor(hit);
+		sortBySeen(peers);
+		// the most recently seen peer for each content under the filename
+		Set<String> contents = new HashSet<>();
+		for(String peer : peers) {
+			String hash = hashes.get(peer);
+			if(!contents.add(hash==null?"":hash)) continue;
+			String response = peer+":"+ContentHash.append(hit, hash);
+			log.info("Sending query response: "+response);
+			client.emit(queryResponse, response);
 		}
 		Utils.getInstance().setTimeout(()->{
 			transmitHits(hits,client);
@@ -162,26 +412,100 @@ public class IndexServer {
 	}
 	
 	/**
-	 * Generate hits and return them to the client. Not a very
-	 * efficient search mechanism, but ok for testing.
+	 * Sort peers by the time they were last seen, most recent first.
+	 * @param peers list of "PeerIP:PeerPort" strings, which may be followed
+	 * by ":filename"
+	 */
+	private static void sortBySeen(List<String> peers) {
+		synchronized(lastTimeSeen) {
+			Collections.sort(peers,
+			new Comparator<String>() {
+				@Override
+				public int compare(String o1, String o2) {
+					// sort largest to smallest, peers never seen go last
+					return lastTimeSeen.getOrDefault(peerOf(o2),0L).compareTo(
+							lastTimeSeen.getOrDefault(peerOf(o1),0L));
+				}
+			});
+		}
+	}
+	
+	/**
+	 * 
+	 * @param entry "PeerIP:PeerPort" or "PeerIP:PeerPort:filename"
+	 * @return "PeerIP:PeerPort"
+	 */
+	private static String peerOf(String entry) {
+		int colon=entry.indexOf(':', entry.indexOf(':')+1);
+		return colon<0?entry:entry.substring(0, colon);
+	}
+	
+	/**
+	 * Send the client the peers that have a file, most recently seen first.
+	 * If the query has a content hash, the peers are those that have the
+	 * same content under any filename, otherwise they are the peers that
+	 * have the filename.
+	 * @param query "filename" or "filename|hash"
+	 * @param client
+	 */
+	private static void transmitSources(String query,Endpoint client) {
+		String filename = ContentHash.strip(query);
+		String hash = ContentHash.of(query);
+		List<String> entries;
+		if(hash!=null) {
+			entries = filesWith(hash);
+		} else {
+			entries = new ArrayList<>();
+			for(String peer : peersFor(filename)) entries.add(peer+":"+filename);
+		}
+		sortBySeen(entries);
+		StringBuilder sb = new StringBuilder(query);
+		// one line per peer, even if it has the content under several names
+		Set<String> peers = new HashSet<>();
+		for(String entry : entries) {
+			if(peers.size()>=maxSources) break;
+			if(peers.add(peerOf(entry))) sb.append("\n").append(entry);
+		}
+		log.info("Sending "+peers.size()+" sources for: "+query);
+		client.emit(sourcesResponse, sb.toString());
+	}
+	
+	/**
+	 * Generate hits and return them to the client. A filename is a hit if it
+	 * matches any of the terms, see {@link QueryTerm} for the term syntax.
+	 * Filenames in memory are looked up in the token index, filenames in the
+	 * on-disk segment in its term tables.
 	 * @param query a comma separated list of terms to search for
 	 */
 	private static void queryIndex(String query,Endpoint client) {
 		String[] terms = query.split(",");
+		Set<String> normalized = QueryCache.normalize(terms);
+		long generation = 0;
+		if(queryCache!=null) {
+			List<String> cached = queryCache.get(normalized);
+			if(cached!=null) {
+				transmitHits(cached,client);
+				return;
+			}
+			generation = queryCache.generation();
+		}
+		List<QueryTerm> parsed = new ArrayList<>();
+		normalized.forEach((term)->{parsed.add(QueryTerm.parse(term));});
 		Set<String> hits = new HashSet<>();
-		List<String> filenames;
 		synchronized(keyValueMap) {
-			filenames=new ArrayList<String>(keyValueMap.keySet());
+			for(QueryTerm term : parsed) {
+				hits.addAll(term.lookup(tokenIndex));
+			}
 		}
-		for(String filename : filenames) {
-			String filelower=filename.toLowerCase();
-			for(String term : terms) {
-				if(filelower.contains(term.toLowerCase())) {
-					hits.add(filename);
-				}
+		if(store!=null) {
+			// read straight from the mapped segment
+			for(QueryTerm term : parsed) {
+				hits.addAll(term.lookup(store));
 			}
 		}
-		transmitHits(new ArrayList<String>(hits),client);
+		List<String> result = new ArrayList<String>(hits);
+		if(queryCache!=null) queryCache.put(normalized, result, generation);
+		transmitHits(result,client);
 	}
 	
 	/**
@@ -191,8 +515,195 @@ public class IndexServer {
 	 */
 	private static void peerUpdate(String peerport) {
 		synchronized(lastTimeSeen) {
-			lastTimeSeen.put(peerport, Instant.now().toEpochMilli());
+			long now=Instant.now().toEpochMilli();
+			Long previous=lastTimeSeen.put(peerport, now);
+			if(previous!=null) removeSeen(previous, peerport);
+			seenOrder.computeIfAbsent(now, (k)->new HashSet<String>()).add(peerport);
+			if(store!=null) store.appendPeerUpdate(peerport, now);
+		}
+	}
+	
+	/**
+	 * Remove a peer from the time ordered index. Caller must hold the lock
+	 * on lastTimeSeen.
+	 * @param time the time the peer was last seen
+	 * @param peerport
+	 */
+	private static void removeSeen(long time,String peerport) {
+		Set<String> peers=seenOrder.get(time);
+		if(peers!=null) {
+			peers.remove(peerport);
+			if(peers.isEmpty()) seenOrder.remove(time);
+		}
+	}
+	
+	/**
+	 * Remove peers that have not been seen within the ttl from every file's
+	 * set of peers, and remove files that are left with no peers. Only the
+	 * expired head of the time ordered index is visited, not the whole index.
+	 * The peer's entries in the on-disk segment are hidden and counted as
+	 * reclaimed along with those in memory.
+	 */
+	private static void expirePeers() {
+		long cutoff=Instant.now().toEpochMilli()-peerTtl;
+		List<String> expired=new ArrayList<>();
+		synchronized(lastTimeSeen) {
+			SortedMap<Long,Set<String>> head=seenOrder.headMap(cutoff);
+			head.values().forEach((peers)->{expired.addAll(peers);});
+			head.clear();
+			expired.forEach((peerport)->{lastTimeSeen.remove(peerport);});
+		}
+		if(!expired.isEmpty()) {
+			int entries=0;
+			int files=0;
+			int peers=0;
+			Set<String> changed=new HashSet<>();
+			synchronized(keyValueMap) {
+				for(String peerport : expired) {
+					synchronized(lastTimeSeen) {
+						// it came back while we were waiting for the lock
+						if(lastTimeSeen.containsKey(peerport)) continue;
+					}
+					peers++;
+					Set<String> reclaimed=new HashSet<>();
+					if(store!=null) {
+						// a peer that expired before and came back is already hidden
+						if(!store.isExpired(peerport)) reclaimed.addAll(store.segmentFiles(peerport));
+						store.appendPeerExpired(peerport);
+					}
+					Set<String> filenames=peerFiles.remove(peerport);
+					if(filenames!=null) {
+						for(String filename : filenames) {
+							Map<String,String> hashes=fileHashes.get(filename);
+							if(hashes!=null) {
+								String hash=hashes.remove(peerport);
+								if(hash!=null) removeContent(hash,peerport+":"+filename);
+								if(hashes.isEmpty()) fileHashes.remove(filename);
+							}
+							Set<String> possiblepeers=keyValueMap.get(filename);
+							if(possiblepeers!=null && possiblepeers.remove(peerport)) {
+								reclaimed.add(filename);
+								if(possiblepeers.isEmpty()) {
+									keyValueMap.remove(filename);
+									tokenIndex.remove(filename);
+								}
+							}
+						}
+					}
+					for(String filename : reclaimed) {
+						entries++;
+						changed.add(filename);
+						if(!keyValueMap.containsKey(filename) &&
+								(store==null || store.segmentPeers(filename).isEmpty())) files++;
+					}
+				}
+				peersExpired+=peers;
+				entriesReclaimed+=entries;
+				filesReclaimed+=files;
+				if(queryCache!=null) queryCache.sourcesRemoved(changed);
+			}
+			log.info("Expired "+peers+" peers, reclaimed "+entries+" index entries and "
+					+files+" files");
+		}
+		Utils.getInstance().setTimeout(()->{
+			expirePeers();
+		}, sweepInterval);
+	}
+	
+	/**
+	 * Compact the on-disk index, on the compactor thread. The log is rotated
+	 * while holding the locks on the in-memory maps, so that every update is
+	 * either in the snapshot or in the new log. Once the new segment is mapped
+	 * the snapshot's entries are dropped from memory.
+	 */
+	private static void compactIndex() {
+		Map<String,Set<String>> files=new HashMap<>();
+		Map<String,Map<String,String>> hashes=new HashMap<>();
+		Map<String,Long> peers;
+		try {
+			synchronized(keyValueMap) {
+				synchronized(lastTimeSeen) {
+					keyValueMap.forEach((filename,peerports)->{
+						files.put(filename, new HashSet<String>(peerports));
+					});
+					fileHashes.forEach((filename,peerHashes)->{
+						hashes.put(filename, new HashMap<String,String>(peerHashes));
+					});
+					peers=new HashMap<>(lastTimeSeen);
+					store.rotateLog();
+				}
+			}
+			store.compact(files, hashes, peers);
+		} catch (IOException e) {
+			log.severe("could not compact the index: "+e.getMessage());
+			return;
+		}
+		trimIndex(files, hashes);
+	}
+	
+	/**
+	 * Drop the entries that a compaction wrote to the segment from the
+	 * in-memory maps, leaving only the entries added since the log was
+	 * rotated. An entry is kept if its content hash has changed since, or if
+	 * its peer has expired and given it again, as the segment hides it.
+	 * @param files the snapshot that was compacted, filename to peers
+	 * @param hashes the snapshot that was compacted, filename to peer to hash
+	 */
+	private static void trimIndex(Map<String,Set<String>> files,Map<String,Map<String,String>> hashes) {
+		int trimmed=0;
+		synchronized(keyValueMap) {
+			for(Map.Entry<String,Set<String>> entry : files.entrySet()) {
+				String filename=entry.getKey();
+				Set<String> possiblepeers=keyValueMap.get(filename);
+				if(possiblepeers==null) continue;
+				Map<String,String> compactedHashes=hashes.getOrDefault(filename, Collections.emptyMap());
+				Map<String,String> peerHashes=fileHashes.get(filename);
+				for(String peerport : entry.getValue()) {
+					if(!possiblepeers.contains(peerport) || store.isExpired(peerport)) continue;
+					String hash=peerHashes==null?null:peerHashes.get(peerport);
+					if(!Objects.equals(hash, compactedHashes.get(peerport))) continue;
+					possiblepeers.remove(peerport);
+					trimmed++;
+					Set<String> filenames=peerFiles.get(peerport);
+					if(filenames!=null) {
+						filenames.remove(filename);
+						if(filenames.isEmpty()) peerFiles.remove(peerport);
+					}
+					if(hash!=null) {
+						peerHashes.remove(peerport);
+						removeContent(hash,peerport+":"+filename);
+					}
+				}
+				if(peerHashes!=null && peerHashes.isEmpty()) fileHashes.remove(filename);
+				if(possiblepeers.isEmpty()) {
+					keyValueMap.remove(filename);
+					tokenIndex.remove(filename);
+				}
+			}
+		}
+		log.info("dropped "+trimmed+" compacted index entries from memory");
+	}
+	
+	/**
+	 * 
+	 * @return the index and cache metrics in the form "name=value,name=value,..."
+	 */
+	private static String stats() {
+		StringBuilder sb=new StringBuilder();
+		synchronized(keyValueMap) {
+			sb.append("files="+keyValueMap.size());
+			sb.append(",tokens="+tokenIndex.tokenCount());
+			sb.append(",contents="+contentIndex.size());
+			sb.append(",peersExpired="+peersExpired);
+			sb.append(",entriesReclaimed="+entriesReclaimed);
+			sb.append(",filesReclaimed="+filesReclaimed);
+		}
+		synchronized(lastTimeSeen) {
+			sb.append(",peers="+lastTimeSeen.size());
 		}
+		if(store!=null) sb.append(",segmentFiles="+store.segmentFileCount());
+		if(queryCache!=null) sb.append(","+queryCache.stats());
+		return sb.toString();
 	}
 	
 	private static void help(Options options){
@@ -213,6 +724,12 @@ public class IndexServer {
         Options options = new Options();
         options.addOption("port",true,"server port, an integer");
         options.addOption("password",true,"password for server");
+        options.addOption("indexDir",true,"directory to keep a persistent index in, a string");
+        options.addOption("compactInterval",true,"seconds between index compactions, an integer");
+        options.addOption("peerTtl",true,"seconds before a peer that is not seen expires, an integer, 0 for never");
+        options.addOption("queryCacheSize",true,"number of query results to cache, an integer, 0 for no cache");
+        options.addOption("shards",true,"all index server shards in order, in the format host:port,host:port,...");
+        options.addOption("shard",true,"the position of this server in the list of shards, an integer from 0");
         
        
         CommandLineParser parser = new DefaultParser();
@@ -232,11 +749,99 @@ public class IndexServer {
 			}
         }
         
+        if(cmd.hasOption("compactInterval")){
+        	try{
+        		compactInterval = Integer.parseInt(cmd.getOptionValue("compactInterval"))*1000;
+			} catch (NumberFormatException e){
+				System.out.println("-compactInterval requires a number of seconds, parsed: "+
+						cmd.getOptionValue("compactInterval"));
+				help(options);
+			}
+        	if(compactInterval<=0) {
+        		System.out.println("-compactInterval must be at least 1 second");
+        		help(options);
+        	}
+        }
+        
+        if(cmd.hasOption("peerTtl")){
+        	try{
+        		peerTtl = Long.parseLong(cmd.getOptionValue("peerTtl"))*1000;
+			} catch (NumberFormatException e){
+				System.out.println("-peerTtl requires a number of seconds, parsed: "+
+						cmd.getOptionValue("peerTtl"));
+				help(options);
+			}
+        }
+        
+        if(cmd.hasOption("queryCacheSize")){
+        	try{
+        		int size = Integer.parseInt(cmd.getOptionValue("queryCacheSize"));
+        		queryCache = size>0 ? new QueryCache(size) : null;
+			} catch (NumberFormatException e){
+				System.out.println("-queryCacheSize requires an integer, parsed: "+
+						cmd.getOptionValue("queryCacheSize"));
+				help(options);
+			}
+        }
+        
+        if(cmd.hasOption("shards")) {
+        	try {
+        		shards = new ShardMap(cmd.getOptionValue("shards"));
+        		shard = Integer.parseInt(cmd.getOptionValue("shard","0"));
+        	} catch (IllegalArgumentException e) {
+        		System.out.println("-shards or -shard is malformed: "+e.getMessage());
+        		help(options);
+        	}
+        	if(shard<0 || shard>=shards.size()) {
+        		System.out.println("-shard must be between 0 and "+(shards.size()-1));
+        		help(options);
+        	}
+        	log.info("owning shard "+shard+" of "+shards.size());
+        }
+        
+        if(cmd.hasOption("indexDir")) {
+        	File indexDir = new File(cmd.getOptionValue("indexDir"));
+        	store = new IndexStore(indexDir);
+        	store.replay(keyValueMap, fileHashes, lastTimeSeen);
+        	log.info("using persistent index in "+indexDir+" with "+
+        			store.segmentFileCount()+" mapped files");
+        	compactor = Executors.newSingleThreadScheduledExecutor((runnable)->{
+        		Thread thread = new Thread(runnable,"Index-Compactor");
+        		thread.setDaemon(true);
+        		return thread;
+        	});
+        	compactor.scheduleWithFixedDelay(()->{
+        		compactIndex();
+        	}, compactInterval, compactInterval, TimeUnit.MILLISECONDS);
+        }
+        
+        // build the token and expiry indexes for whatever the store gave us
+        keyValueMap.forEach((filename,peerports)->{
+        	tokenIndex.add(filename);
+        	peerports.forEach((peerport)->{
+        		peerFiles.computeIfAbsent(peerport, (k)->new HashSet<String>()).add(filename);
+        	});
+        });
+        fileHashes.forEach((filename,peerHashes)->{
+        	peerHashes.forEach((peerport,hash)->{
+        		contentIndex.computeIfAbsent(hash, (k)->new HashSet<String>()).add(peerport+":"+filename);
+        	});
+        });
+        lastTimeSeen.forEach((peerport,time)->{
+        	seenOrder.computeIfAbsent(time, (k)->new HashSet<String>()).add(peerport);
+        });
+        if(peerTtl>0) {
+        	Utils.getInstance().setTimeout(()->{
+        		expirePeers();
+        	}, sweepInterval);
+        }
+        
         // create a server manager and setup event handlers
         ServerManager serverManager;
         
         if(cmd.hasOption("password")) {
-        	serverManager = new ServerManager(port,cmd.getOptionValue("password"));
+        	password = cmd.getOptionValue("password");
+        	serverManager = new ServerManager(port,password);
         } else {
         	serverManager = new ServerManager(port);
         }
@@ -253,18 +858,36 @@ public class IndexServer {
         		String[] parts=update.split(":",3);
         		if(parts.length!=3) {
         			endpoint.emit(indexUpdateError,update);
+        			return;
+        		}
+        		String filename = ContentHash.strip(parts[2]);
+        		if(shards!=null && shards.shardFor(filename)!=shard) {
+        			log.warning("Index update belongs to shard "+shards.shardFor(filename)+": "+update);
+        			endpoint.emit(indexUpdateError,update);
         		} else {
 	        		String peerport = parts[0]+":"+parts[1];
-	        		indexUpdate(parts[2],peerport);
+	        		indexUpdate(filename,peerport,ContentHash.of(parts[2]));
         		}
         	}).on(queryIndex, (eventArgs2)->{
         		String query = (String) eventArgs2[0];
         		log.info("Received query: "+query);
         		queryIndex(query,endpoint);
+        	}).on(querySources, (eventArgs2)->{
+        		String query = (String) eventArgs2[0];
+        		log.info("Received sources query: "+query);
+        		transmitSources(query,endpoint);
         	}).on(peerUpdate, (eventArgs2)->{
         		String peerport = (String) eventArgs2[0];
         		log.info("Received peer update: "+peerport);
         		peerUpdate(peerport);
+        	}).on(indexStats, (eventArgs2)->{
+        		String msg = (String) eventArgs2[0];
+        		if(password!=null && !password.equals(msg)) {
+        			log.warning("incorrect password given by client: "+endpoint.getOtherEndpointId());
+        			endpoint.emit(indexStatsError, "incorrect password");
+        		} else {
+        			endpoint.emit(indexStatsReply, stats());
+        		}
         	});
         }).on(ServerManager.sessionStopped,(eventArgs)->{
         	Endpoint endpoint = (Endpoint)eventArgs[0];
@@ -0,0 +1,553 @@
+package pb;
+
+import java.awt.Color;
+import java.awt.Graphics;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.CommandLineParser;
+import org.apache.commons.cli.DefaultParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+
+import pb.app.BinaryBoardFormat;
+import pb.app.BoardRaster;
+import pb.app.Whiteboard;
+import pb.app.WhiteboardApp;
+import pb.app.WhiteboardPath;
+import pb.app.WhiteboardPoint;
+
+/**
+ * Measures the whiteboard's board representation on generated boards, so
+ * that changes to it can be compared. Boards are random walks, like strokes
+ * drawn with the mouse, with the same seed every run.
+ * <ul>
+ * <li>-memory: heap bytes per point of a board held as lists of
+ * {@link WhiteboardPoint} objects, as paths used to be, and as packed
+ * {@link WhiteboardPath}s.</li>
+ * <li>-parse: time and bytes allocated to load the board from its text
+ * format by splitting it into strings, as it used to be, and with
+ * {@link Whiteboard#whiteboardFromString(String, String, int)}.</li>
+ * <li>-serialize: time to convert the board to its text format path by
+ * path, as it used to be, and with {@link Whiteboard#toString()} after a
+ * path is added and when nothing has changed.</li>
+ * <li>-binary: size of the board and time to convert it in the text and
+ * the binary format, checking that a board loaded from its text format
+ * survives the round trip through the binary format unchanged.</li>
+ * <li>-index: on a board of -paths paths, time to redraw a tile by
+ * drawing every path, as the board used to be drawn, and by drawing the
+ * paths that {@link Whiteboard#pathsIn(Rectangle, List)} finds near it,
+ * checking that both give the same pixels, and time to find the paths at
+ * a point by looking at every path and with the index.</li>
+ * <li>-raster: time to draw the whole board on one image, as it used to
+ * be drawn, on {@link BoardRaster} tiles one after the other and on tiles
+ * in parallel on the common fork-join pool, checking that all three give
+ * the same pixels.</li>
+ * </ul>
+ * Timed benchmarks run a number of warm up rounds before the measured
+ * rounds, so that the code being measured has been compiled.
+ * @author aaron
+ *
+ */
+public class WhiteboardBenchmark {
+
+	/**
+	 * Number of points in the generated board.
+	 */
+	private static int points=1000000;
+
+	/**
+	 * Number of points in each path of the generated board.
+	 */
+	private static int pathLength=100;
+
+	/**
+	 * Number of paths in the board of the index benchmark.
+	 */
+	private static int indexPaths=100000;
+
+	/**
+	 * Width and height of the tile redrawn by the index benchmark (pixels).
+	 */
+	private static final int tileSize=256;
+
+	/**
+	 * Size of the area the generated boards are drawn on (pixels).
+	 */
+	private static final int width=1000;
+	private static final int height=800;
+
+	/**
+	 * Number of unmeasured and measured rounds of timed benchmarks.
+	 */
+	private static int warmups=5;
+	private static int rounds=10;
+
+	private static final ThreadMXBean threads=ManagementFactory.getThreadMXBean();
+
+	private static void help(Options options){
+		String header = "Whiteboard benchmarks for Unimelb COMP90015\n\n";
+		String footer = "\ncontact aharwood@unimelb.edu.au for issues.";
+		HelpFormatter formatter = new HelpFormatter();
+		formatter.printHelp("pb.WhiteboardBenchmark", header, options, footer, true);
+		System.exit(-1);
+	}
+
+	/**
+	 * Generate a board as a random walk.
+	 * @param seed
+	 * @return the paths of the board
+	 */
+	private static List<WhiteboardPath> generateBoard(long seed) {
+		return generateBoard(seed,points);
+	}
+
+	/**
+	 * Generate a board with a number of points as a random walk.
+	 * @param seed
+	 * @param points
+	 * @return the paths of the board
+	 */
+	private static List<WhiteboardPath> generateBoard(long seed,long points) {
+		Random random=new Random(seed);
+		List<WhiteboardPath> paths=new ArrayList<>();
+		for(long p=0;p<points;p+=pathLength) {
+			WhiteboardPath path=new WhiteboardPath(random.nextBoolean()?Color.black:Color.red);
+			int x=random.nextInt(width), y=random.nextInt(height);
+			for(long i=0;i<Math.min(pathLength, points-p);i++) {
+				path.addPoint(x, y);
+				x+=random.nextInt(9)-4;
+				y+=random.nextInt(9)-4;
+			}
+			path.finish();
+			paths.add(path);
+		}
+		return paths;
+	}
+
+	/**
+	 *
+	 * @return bytes in use on the heap, after collecting garbage
+	 */
+	private static long usedHeap() {
+		Runtime runtime=Runtime.getRuntime();
+		long used=Long.MAX_VALUE;
+		// collect several times, the lowest reading has the least garbage
+		for(int i=0;i<5;i++) {
+			System.gc();
+			try {
+				Thread.sleep(100);
+			} catch (InterruptedException e) {
+				break;
+			}
+			used=Math.min(used, runtime.totalMemory()-runtime.freeMemory());
+		}
+		return used;
+	}
+
+	/**
+	 * Generate a board and put it in a whiteboard.
+	 * @param name
+	 * @return the whiteboard
+	 */
+	private static Whiteboard generateWhiteboard(String name) {
+		Whiteboard whiteboard=new Whiteboard(name,false);
+		for(WhiteboardPath path : generateBoard(1)) {
+			whiteboard.addPath(path, whiteboard.getVersion());
+		}
+		return whiteboard;
+	}
+
+	/**
+	 *
+	 * @return bytes allocated by the current thread so far, or -1 if the JVM
+	 * does not count them
+	 */
+	private static long allocatedBytes() {
+		if(threads instanceof com.sun.management.ThreadMXBean) {
+			return ((com.sun.management.ThreadMXBean)threads).getThreadAllocatedBytes(
+					Thread.currentThread().getId());
+		}
+		return -1;
+	}
+
+	/**
+	 * A task that is timed, returning something that depends on its work so
+	 * that the work can't be optimised away.
+	 */
+	private interface ITimed {
+		long run();
+	}
+
+	/**
+	 * Run a task for the warm up rounds and then the measured rounds.
+	 * @param task
+	 * @return average time and bytes allocated per measured round, in the
+	 * form "x.x ms, y.y MB allocated"
+	 */
+	private static String time(ITimed task) {
+		long check=0;
+		for(int i=0;i<warmups;i++) check+=task.run();
+		long allocated=allocatedBytes();
+		long start=System.nanoTime();
+		for(int i=0;i<rounds;i++) check+=task.run();
+		long nanos=System.nanoTime()-start;
+		allocated=allocated<0?-1:allocatedBytes()-allocated;
+		if(check==42) System.out.print(""); // uses check
+		return String.format("%.1f ms, %.1f MB allocated", nanos/1e6/rounds,
+				allocated<0?Double.NaN:allocated/1048576.0/rounds);
+	}
+
+	/**
+	 * Load a board the way it was loaded before it was parsed in place.
+	 * @param data version%PATHS
+	 * @return the sum of the coordinates
+	 */
+	private static long splitParse(String data) {
+		long count=0;
+		String[] parts=data.split("%");
+		for(int i=1;i<parts.length;i++) {
+			String[] points=parts[i].split(">");
+			for(int j=1;j<points.length;j++) {
+				String[] xy=points[j].split(",");
+				count+=Integer.parseInt(xy[0])+Integer.parseInt(xy[1]);
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Compare loading a board by splitting its text and by parsing it in
+	 * place.
+	 */
+	private static void parse() {
+		String name="localhost:8000:bench";
+		String text=generateWhiteboard(name).toString();
+		String data=WhiteboardApp.getBoardData(text);
+		double mb=text.length()/1048576.0;
+		String split=time(()->splitParse(data));
+		Whiteboard loaded=new Whiteboard(name,true);
+		String scan=time(()->{
+			loaded.whiteboardFromString(name, text, name.length()+1);
+			return loaded.getVersion();
+		});
+		System.out.println(String.format("parse: %.1f MB board, split %s, single pass %s", mb, split, scan));
+	}
+
+	/**
+	 * Convert a board the way it was converted before its text format was
+	 * kept up to date, making a string of each path.
+	 * @param whiteboard
+	 * @param paths the board's paths
+	 * @return the length of the text
+	 */
+	private static long pathByPath(Whiteboard whiteboard,List<WhiteboardPath> paths) {
+		StringBuilder sb=new StringBuilder("");
+		sb.append(whiteboard.getNameAndVersion());
+		for(WhiteboardPath path : paths) {
+			StringBuilder encoded=new StringBuilder();
+			path.appendTo(encoded);
+			sb.append("%"+encoded.toString());
+		}
+		return sb.toString().length();
+	}
+
+	/**
+	 * Compare converting a board to its text format path by path with
+	 * converting it incrementally.
+	 */
+	private static void serialize() {
+		Whiteboard whiteboard=generateWhiteboard("localhost:8000:bench");
+		List<WhiteboardPath> paths=generateBoard(1);
+		WhiteboardPath stroke=paths.get(0);
+		String full=time(()->pathByPath(whiteboard,paths));
+		String added=time(()->{
+			whiteboard.addPath(stroke, whiteboard.getVersion());
+			long length=whiteboard.toString().length();
+			whiteboard.undo(whiteboard.getVersion());
+			return length;
+		});
+		String unchanged=time(()->whiteboard.toString().length());
+		System.out.println(String.format("serialize: %.1f MB board, path by path %s,"
+				+ " after adding a path %s, unchanged %s", whiteboard.toString().length()/1048576.0,
+				full, added, unchanged));
+	}
+
+	/**
+	 * Compare the text and binary formats of a board, after checking that
+	 * the binary format is lossless.
+	 */
+	private static void binary() {
+		String name="localhost:8000:bench";
+		String text=generateWhiteboard(name).toString();
+		Whiteboard fromText=new Whiteboard(name,true);
+		fromText.whiteboardFromString(name, text, name.length()+1);
+		byte[] bytes=fromText.toBinary();
+		Whiteboard fromBinary=new Whiteboard(name,true);
+		if(!fromBinary.whiteboardFromBinary(name, ByteBuffer.wrap(bytes))
+				|| !fromBinary.toString().equals(text)) {
+			System.out.println("binary: round trip through the binary format changed the board");
+			return;
+		}
+		List<WhiteboardPath> paths=generateBoard(1);
+		String textEncode=time(()->pathByPath(fromText,paths));
+		String binaryEncode=time(()->BinaryBoardFormat.encode(1, paths).length);
+		String textDecode=time(()->{
+			fromBinary.whiteboardFromString(name, text, name.length()+1);
+			return fromBinary.getVersion();
+		});
+		String binaryDecode=time(()->{
+			List<WhiteboardPath> decoded=new ArrayList<>();
+			try {
+				return BinaryBoardFormat.decode(ByteBuffer.wrap(bytes), decoded)+decoded.size();
+			} catch (IOException e) {
+				throw new IllegalStateException(e);
+			}
+		});
+		System.out.println(String.format("binary: round trip ok, text %.1f MB (%.1f bytes/point),"
+				+ " binary %.1f MB (%.1f bytes/point)", text.length()/1048576.0, (double)text.length()/points,
+				bytes.length/1048576.0, (double)bytes.length/points));
+		System.out.println("binary: encode text "+textEncode+", binary "+binaryEncode);
+		System.out.println("binary: decode text "+textDecode+", binary "+binaryDecode);
+	}
+
+	/**
+	 * Draw paths on a tile.
+	 * @param tile
+	 * @param bounds where the tile is on the board
+	 * @param paths
+	 * @return the number of paths drawn
+	 */
+	private static long drawTile(BufferedImage tile,Rectangle bounds,List<WhiteboardPath> paths) {
+		Graphics2D g2=tile.createGraphics();
+		g2.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+		g2.translate(-bounds.x, -bounds.y);
+		g2.setPaint(Color.white);
+		g2.fillRect(bounds.x, bounds.y, bounds.width, bounds.height);
+		for(WhiteboardPath path : paths) {
+			path.drawOnBoard(g2);
+		}
+		g2.dispose();
+		return paths.size();
+	}
+
+	/**
+	 * Compare redrawing a tile and finding the paths at a point by visiting
+	 * every path and by using the board's index of where the paths are.
+	 */
+	private static void index() {
+		List<WhiteboardPath> paths=generateBoard(1,(long)indexPaths*pathLength);
+		Whiteboard whiteboard=new Whiteboard("localhost:8000:bench",false);
+		long start=System.nanoTime();
+		for(WhiteboardPath path : paths) {
+			whiteboard.addPath(path, whiteboard.getVersion());
+		}
+		double addMs=(System.nanoTime()-start)/1e6;
+		Rectangle bounds=new Rectangle(tileSize, tileSize, tileSize, tileSize);
+		// antialiased lines color a pixel either side of them
+		Rectangle reach=new Rectangle(bounds);
+		reach.grow(1, 1);
+		BufferedImage full=new BufferedImage(tileSize, tileSize, BufferedImage.TYPE_INT_RGB);
+		BufferedImage indexed=new BufferedImage(tileSize, tileSize, BufferedImage.TYPE_INT_RGB);
+		List<WhiteboardPath> near=new ArrayList<>();
+		whiteboard.pathsIn(reach, near);
+		drawTile(full,bounds,paths);
+		drawTile(indexed,bounds,near);
+		for(int y=0;y<tileSize;y++) {
+			for(int x=0;x<tileSize;x++) {
+				if(full.getRGB(x, y)!=indexed.getRGB(x, y)) {
+					System.out.println("index: indexed redraw differs from full replay at "+x+","+y);
+					return;
+				}
+			}
+		}
+		String replay=time(()->drawTile(full,bounds,paths));
+		String redraw=time(()->{
+			List<WhiteboardPath> found=new ArrayList<>();
+			whiteboard.pathsIn(reach, found);
+			return drawTile(indexed,bounds,found);
+		});
+		Rectangle point=new Rectangle(500, 400, 1, 1);
+		String scan=time(()->{
+			long count=0;
+			for(WhiteboardPath path : paths) {
+				if(path.intersects(point)) count++;
+			}
+			return count;
+		});
+		String lookup=time(()->{
+			List<WhiteboardPath> found=new ArrayList<>();
+			whiteboard.pathsIn(point, found);
+			return found.size();
+		});
+		System.out.println(String.format("index: %d paths, indexed as added in %.1f ms, %d near the tile",
+				paths.size(), addMs, near.size()));
+		System.out.println("index: redraw tile full replay "+replay+", indexed "+redraw);
+		System.out.println("index: paths at a point scan "+scan+", indexed "+lookup);
+	}
+
+	/**
+	 * Draw a whiteboard on tiles and paint them on an image.
+	 * @param whiteboard
+	 * @param image
+	 * @param pool if not null, draw the tiles in parallel on the pool
+	 * @return the number of points drawn
+	 */
+	private static long drawTiles(Whiteboard whiteboard,BufferedImage image,ForkJoinPool pool) {
+		BoardRaster raster=new BoardRaster();
+		raster.update(whiteboard);
+		if(pool!=null) {
+			BoardRaster.Frame frame=raster.newFrame(width, height);
+			frame.draw(pool);
+			raster.install(frame);
+		}
+		raster.cover(width, height);
+		Graphics g=image.getGraphics();
+		raster.paint(g, new Rectangle(0, 0, width, height), true);
+		g.dispose();
+		return raster.points();
+	}
+
+	/**
+	 * Compare drawing a whole board on one image, on tiles and on tiles in
+	 * parallel.
+	 */
+	private static void raster() {
+		Whiteboard whiteboard=generateWhiteboard("localhost:8000:bench");
+		List<WhiteboardPath> paths=generateBoard(1);
+		ForkJoinPool pool=ForkJoinPool.commonPool();
+		BufferedImage single=new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+		BufferedImage serial=new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+		BufferedImage parallel=new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+		Rectangle all=new Rectangle(0, 0, width, height);
+		drawTile(single,all,paths);
+		drawTiles(whiteboard,serial,null);
+		drawTiles(whiteboard,parallel,pool);
+		for(int y=0;y<height;y++) {
+			for(int x=0;x<width;x++) {
+				if(single.getRGB(x, y)!=serial.getRGB(x, y) || single.getRGB(x, y)!=parallel.getRGB(x, y)) {
+					System.out.println("raster: tiles differ from one image at "+x+","+y);
+					return;
+				}
+			}
+		}
+		String one=time(()->drawTile(single,all,paths));
+		String tiles=time(()->drawTiles(whiteboard,serial,null));
+		String parallelTiles=time(()->drawTiles(whiteboard,parallel,pool));
+		System.out.println(String.format("raster: %d points on %dx%d, one image %s, tiles %s,"
+				+ " tiles in parallel on %d threads %s", points, width, height, one, tiles,
+				pool.getParallelism(), parallelTiles));
+	}
+
+	/**
+	 * Compare the heap used by a board held as point objects and as packed
+	 * paths.
+	 */
+	private static void memory() {
+		long base=usedHeap();
+		List<ArrayList<WhiteboardPoint>> objects=new ArrayList<>();
+		for(WhiteboardPath path : generateBoard(1)) {
+			ArrayList<WhiteboardPoint> list=new ArrayList<>(path.length());
+			for(int i=0;i<path.length();i++) {
+				list.add(new WhiteboardPoint(path.getX(i),path.getY(i)));
+			}
+			objects.add(list);
+		}
+		long objectBytes=usedHeap()-base;
+		// the board is used after measuring, so it is not collected before
+		int paths=objects.size();
+		objects=null;
+
+		base=usedHeap();
+		List<WhiteboardPath> packed=generateBoard(1);
+		long packedBytes=usedHeap()-base;
+		paths=Math.max(paths, packed.size());
+
+		System.out.println(String.format("memory: %d points in %d paths, point objects %.1f bytes/point,"
+				+ " packed %.1f bytes/point", points, paths,
+				(double)objectBytes/points, (double)packedBytes/points));
+	}
+
+	public static void main(String[] args) {
+		// set a nice log format
+		System.setProperty("java.util.logging.SimpleFormatter.format",
+                "[%1$tl:%1$tM:%1$tS:%1$tL] %2$s %4$s: %5$s%n");
+
+		Options options = new Options();
+        options.addOption("points",true,"number of points in the generated board, an integer");
+        options.addOption("pathLength",true,"number of points in each path, an integer");
+        options.addOption("memory",false,"measure heap bytes per point");
+        options.addOption("parse",false,"measure loading a board from its text format");
+        options.addOption("serialize",false,"measure converting a board to its text format");
+        options.addOption("binary",false,"compare the text and binary formats of a board");
+        options.addOption("paths",true,"number of paths in the board of the index benchmark, an integer");
+        options.addOption("index",false,"compare redrawing part of a board with and without its index");
+        options.addOption("raster",false,"compare drawing a board on one image, on tiles and in parallel");
+
+        CommandLineParser parser = new DefaultParser();
+        CommandLine cmd = null;
+        try {
+			cmd = parser.parse( options, args);
+		} catch (ParseException e1) {
+			help(options);
+		}
+
+        if(cmd.hasOption("points")){
+        	try{
+        		points = Integer.parseInt(cmd.getOptionValue("points"));
+			} catch (NumberFormatException e){
+				System.out.println("-points requires a number, parsed: "+
+						cmd.getOptionValue("points"));
+				help(options);
+			}
+        }
+
+        if(cmd.hasOption("pathLength")){
+        	try{
+        		pathLength = Integer.parseInt(cmd.getOptionValue("pathLength"));
+			} catch (NumberFormatException e){
+				System.out.println("-pathLength requires a number, parsed: "+
+						cmd.getOptionValue("pathLength"));
+				help(options);
+			}
+        }
+
+        if(cmd.hasOption("paths")){
+        	try{
+        		indexPaths = Integer.parseInt(cmd.getOptionValue("paths"));
+			} catch (NumberFormatException e){
+				System.out.println("-paths requires a number, parsed: "+
+						cmd.getOptionValue("paths"));
+				help(options);
+			}
+        }
+
+        if(points<=0 || pathLength<=0 || indexPaths<=0) {
+        	System.out.println("-points, -pathLength and -paths must be positive");
+        	help(options);
+        }
+
+        // run every benchmark if none is chosen
+        boolean all = !cmd.hasOption("memory") && !cmd.hasOption("parse") && !cmd.hasOption("serialize")
+        		&& !cmd.hasOption("binary") && !cmd.hasOption("index")
+        		&& !cmd.hasOption("raster");
+        if(all || cmd.hasOption("memory")) memory();
+        if(all || cmd.hasOption("parse")) parse();
+        if(all || cmd.hasOption("serialize")) serialize();
+        if(all || cmd.hasOption("binary")) binary();
+        if(all || cmd.hasOption("index")) index();
+        if(all || cmd.hasOption("raster")) raster();
+	}
+}
@@ -36,6 +36,11 @@ public class WhiteboardPeer {
 	 * host to use when contacting the index server
 	 */
 	private static String host=Utils.serverHost; // default host for the index server
+
+	/**
+	 * most points of a path being drawn sent at once
+	 */
+	private static int strokeBatch=16; // default, 0 to send paths only when finished
 	
 	/**
 	 * Print some help.
@@ -58,6 +63,7 @@ public class WhiteboardPeer {
         options.addOption("port",true,"peer server port, an integer");
         options.addOption("host",true,"whiteboard server hostname, a string");
         options.addOption("whiteboardServerPort",true,"whiteboard server port, an integer");
+        options.addOption("strokeBatch",true,"most points of a path being drawn sent at once, 0 to send paths only when finished, an integer");
 		
         CommandLineParser parser = new DefaultParser();
         CommandLine cmd = null;
@@ -91,7 +97,22 @@ public class WhiteboardPeer {
         	host = cmd.getOptionValue("host");
         }
         
+        if(cmd.hasOption("strokeBatch")) {
+        	try{
+        		strokeBatch = Integer.parseInt(cmd.getOptionValue("strokeBatch"));
+			} catch (NumberFormatException e){
+				System.out.println("-strokeBatch requires a number, parsed: "+
+						cmd.getOptionValue("strokeBatch"));
+				help(options);
+			}
+        	if(strokeBatch<0) {
+        		System.out.println("-strokeBatch must not be negative");
+        		help(options);
+        	}
+        }
+        
 		WhiteboardApp whiteboard = new WhiteboardApp(peerPort,host,whiteboardServerPort);
+		whiteboard.setStrokeBatch(strokeBatch);
 		whiteboard.waitToFinish();
 		Utils.getInstance().cleanUp();
 	}
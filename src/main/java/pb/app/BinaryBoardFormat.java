@@ -0,0 +1,229 @@
+package pb.app;
+
+import java.awt.Color;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A compact binary form of a board's version and paths, the same content as
+ * the text format "version%PATHS", for sending boards to other peers and
+ * saving them to disk. The format is:
+ * <ul>
+ * <li>the magic bytes "PBWB" and a format version byte;</li>
+ * <li>the board version;</li>
+ * <li>the palette: the number of colors, then each color as 4 bytes ARGB;</li>
+ * <li>the number of paths, then for each path its index in the palette,
+ * its number of points and the points. Each coordinate is the difference
+ * from the same coordinate of the point before, the first point is the
+ * difference from 0,0.</li>
+ * </ul>
+ * Numbers are unsigned varints, 7 bits per byte with the high bit set on
+ * every byte but the last, and signed numbers are zig-zag encoded first so
+ * that small negative numbers are small too. Strokes drawn with the mouse
+ * move a few pixels between points, so most coordinates take one byte
+ * rather than the several digits and separator of the text format.
+ *
+ * @see {@link Whiteboard#toBinary()}
+ * @author aaron
+ *
+ */
+public class BinaryBoardFormat {
+
+	private static final byte[] magic={'P','B','W','B'};
+
+	/**
+	 * Version of the format, changed if the format changes.
+	 */
+	private static final byte formatVersion=1;
+
+	/**
+	 * Colors that paths are compared with by identity, decoded to the same
+	 * objects.
+	 */
+	private static final Color[] namedColors={Color.black,Color.red};
+
+	/**
+	 * Encode a board.
+	 * @param version the board version
+	 * @param paths the board's paths
+	 * @return the board in the binary format
+	 */
+	public static byte[] encode(long version,List<WhiteboardPath> paths) {
+		List<Color> palette=new ArrayList<>();
+		int[] colors=new int[paths.size()];
+		int points=0;
+		for(int i=0;i<paths.size();i++) {
+			WhiteboardPath path=paths.get(i);
+			colors[i]=palette.indexOf(path.color);
+			if(colors[i]<0) {
+				colors[i]=palette.size();
+				palette.add(path.color);
+			}
+			points+=path.length();
+		}
+		// most points take 2 bytes, the writer grows if they take more
+		Writer out=new Writer(64+4*palette.size()+12*paths.size()+2*points);
+		out.put(magic);
+		out.put(formatVersion);
+		out.putVarLong((version<<1)^(version>>63));
+		out.putVarInt(palette.size());
+		for(Color color : palette) {
+			out.putInt(color.getRGB());
+		}
+		out.putVarInt(paths.size());
+		for(int i=0;i<paths.size();i++) {
+			WhiteboardPath path=paths.get(i);
+			out.putVarInt(colors[i]);
+			out.putVarInt(path.length());
+			int x=0, y=0;
+			for(int j=0;j<path.length();j++) {
+				// differences wrap around, so any int survives the round trip
+				out.putVarInt(zigzag(path.getX(j)-x));
+				out.putVarInt(zigzag(path.getY(j)-y));
+				x=path.getX(j);
+				y=path.getY(j);
+			}
+		}
+		return out.toByteArray();
+	}
+
+	/**
+	 * Decode a board.
+	 * @param data the board in the binary format, from the buffer's position
+	 * to its limit
+	 * @param paths the board's paths are added to this
+	 * @return the board version
+	 * @throws IOException if the data is not a board in the binary format
+	 */
+	public static long decode(ByteBuffer data,List<WhiteboardPath> paths) throws IOException {
+		try {
+			byte[] header=new byte[magic.length];
+			data.get(header);
+			if(!Arrays.equals(header, magic)) throw new IOException("not a binary board");
+			byte format=data.get();
+			if(format!=formatVersion) throw new IOException("unknown binary board format "+format);
+			long zigzagged=getVarLong(data);
+			long version=(zigzagged>>>1)^-(zigzagged&1);
+			int colorCount=getCount(data,4);
+			Color[] palette=new Color[colorCount];
+			for(int i=0;i<colorCount;i++) {
+				palette[i]=color(data.getInt());
+			}
+			int pathCount=getCount(data,2);
+			for(int i=0;i<pathCount;i++) {
+				int color=getVarInt(data);
+				if(color<0 || color>=colorCount) throw new IOException("path color is not in the palette");
+				int points=getCount(data,2);
+				WhiteboardPath path=new WhiteboardPath(palette[color],points);
+				int x=0, y=0;
+				for(int j=0;j<points;j++) {
+					x+=unzigzag(getVarInt(data));
+					y+=unzigzag(getVarInt(data));
+					path.addPoint(x, y);
+				}
+				path.finish();
+				paths.add(path);
+			}
+			return version;
+		} catch (BufferUnderflowException e) {
+			throw new IOException("binary board is truncated");
+		}
+	}
+
+	private static Color color(int argb) {
+		for(Color color : namedColors) {
+			if(color.getRGB()==argb) return color;
+		}
+		return new Color(argb,true);
+	}
+
+	private static int zigzag(int n) {
+		return (n<<1)^(n>>31);
+	}
+
+	private static int unzigzag(int n) {
+		return (n>>>1)^-(n&1);
+	}
+
+	/**
+	 * Read a count of items that take at least the given number of bytes
+	 * each, so that a corrupt count can't make the reader allocate more than
+	 * the data could hold.
+	 */
+	private static int getCount(ByteBuffer data,int minBytes) throws IOException {
+		int count=getVarInt(data);
+		if(count<0 || count>data.remaining()/minBytes) throw new IOException("count is larger than the data");
+		return count;
+	}
+
+	private static int getVarInt(ByteBuffer data) throws IOException {
+		long n=getVarLong(data);
+		if(n>>>32!=0) throw new IOException("varint is too large");
+		return (int)n;
+	}
+
+	private static long getVarLong(ByteBuffer data) throws IOException {
+		long n=0;
+		for(int shift=0;shift<64;shift+=7) {
+			byte b=data.get();
+			n|=(long)(b&0x7f)<<shift;
+			if(b>=0) return n;
+		}
+		throw new IOException("varint is too long");
+	}
+
+	/**
+	 * A growable byte array, without the locking of a byte array stream.
+	 */
+	private static class Writer {
+		private byte[] bytes;
+		private int size=0;
+
+		Writer(int capacity) {
+			bytes=new byte[capacity];
+		}
+
+		private void ensure(int n) {
+			if(size+n>bytes.length) bytes=Arrays.copyOf(bytes, Math.max(size+n, bytes.length*2));
+		}
+
+		void put(byte b) {
+			ensure(1);
+			bytes[size++]=b;
+		}
+
+		void put(byte[] b) {
+			ensure(b.length);
+			System.arraycopy(b, 0, bytes, size, b.length);
+			size+=b.length;
+		}
+
+		void putInt(int n) {
+			ensure(4);
+			for(int shift=24;shift>=0;shift-=8) {
+				bytes[size++]=(byte)(n>>>shift);
+			}
+		}
+
+		void putVarInt(int n) {
+			putVarLong(n&0xffffffffL);
+		}
+
+		void putVarLong(long n) {
+			ensure(10);
+			while((n&~0x7fL)!=0) {
+				bytes[size++]=(byte)((n&0x7f)|0x80);
+				n>>>=7;
+			}
+			bytes[size++]=(byte)n;
+		}
+
+		byte[] toByteArray() {
+			return Arrays.copyOf(bytes, size);
+		}
+	}
+}
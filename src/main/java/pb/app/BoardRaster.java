@@ -0,0 +1,395 @@
+package pb.app;
+
+import java.awt.Color;
+import java.awt.Graphics;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+/**
+ * A drawing of a board on square tiles, each with its own image that is kept
+ * between updates. A path added to the board is drawn on just the tiles its
+ * bounds touch; a path removed from it, e.g. by an undo, marks just the
+ * tiles its bounds touch to be drawn again from scratch, which happens when
+ * they are next painted, with the paths that the board's index finds near
+ * them. The area that has changed is collected, so that only it needs to be
+ * repainted.
+ * <br/>
+ * Drawing every tile of a large board from scratch takes a while, so it can
+ * be done as a {@link Frame} instead: the frame's tiles are drawn in
+ * parallel, away from the tiles in use, and then installed in one go.
+ * <br/>
+ * Not thread safe, apart from drawing a frame, the caller guards it.
+ *
+ * @see {@link DrawArea}
+ * @author aaron
+ *
+ */
+public class BoardRaster {
+
+	/**
+	 * Width and height of a tile (pixels).
+	 */
+	public static final int tileSize=256;
+
+	/**
+	 * Antialiased lines color the pixels next to them too, so a path is
+	 * taken to cover this much more than its points (pixels).
+	 */
+	private static final int margin=1;
+
+	/**
+	 * A tile of the board and its image, drawn on in board coordinates.
+	 */
+	private static class Tile {
+		final BufferedImage image;
+		final Graphics2D g2;
+		/**
+		 * False if the image must be drawn from scratch before it is used.
+		 */
+		boolean valid=false;
+
+		Tile(int row,int col) {
+			image=new BufferedImage(tileSize, tileSize, BufferedImage.TYPE_INT_RGB);
+			g2=image.createGraphics();
+			g2.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+			g2.translate(-col*tileSize, -row*tileSize);
+			g2.setPaint(Color.white);
+			g2.fillRect(col*tileSize, row*tileSize, tileSize, tileSize);
+		}
+
+		/**
+		 * Draw the tile from scratch.
+		 * @param row
+		 * @param col
+		 * @param board the board being drawn, or null if none is
+		 * @param generation the generation of the board being drawn
+		 * @param paths the paths of the board being drawn
+		 */
+		void draw(int row,int col,Whiteboard board,long generation,List<WhiteboardPath> paths) {
+			Rectangle bounds=new Rectangle(col*tileSize, row*tileSize, tileSize, tileSize);
+			g2.setPaint(Color.white);
+			g2.fillRect(bounds.x, bounds.y, bounds.width, bounds.height);
+			bounds.grow(margin, margin);
+			List<WhiteboardPath> near=new ArrayList<>();
+			if(board==null || !board.pathsIn(bounds, generation, paths.size(), near)) {
+				// the board has changed since, look through what is being drawn
+				for(WhiteboardPath path : paths) {
+					if(path.intersects(bounds)) near.add(path);
+				}
+			}
+			for(WhiteboardPath path : near) {
+				path.drawOnBoard(g2);
+			}
+			valid=true;
+		}
+	}
+
+	/**
+	 * Every tile of a board, drawn from scratch in parallel. The board's
+	 * paths are taken when the frame is made, and the frame can only be
+	 * installed if the board has only had paths added since.
+	 */
+	public static class Frame {
+		private final Whiteboard board;
+		private final long generation;
+		private final List<WhiteboardPath> paths;
+		private final Tile[][] tiles;
+		private volatile boolean cancelled=false;
+
+		private Frame(Whiteboard board,long generation,List<WhiteboardPath> paths,int rows,int cols) {
+			this.board=board;
+			this.generation=generation;
+			this.paths=paths;
+			tiles=new Tile[rows][cols];
+		}
+
+		/**
+		 * Draw every tile, each as a task of its own on the pool, returning
+		 * once they are drawn. Can be called from any thread.
+		 * @param pool
+		 */
+		public void draw(ForkJoinPool pool) {
+			List<ForkJoinTask<?>> tasks=new ArrayList<>();
+			for(int row=0;row<tiles.length;row++) {
+				for(int col=0;col<tiles[row].length;col++) {
+					int r=row, c=col;
+					tasks.add(ForkJoinTask.adapt(()->{
+						if(cancelled) return;
+						Tile tile=new Tile(r,c);
+						tile.draw(r, c, board, generation, paths);
+						tiles[r][c]=tile;
+					}));
+				}
+			}
+			pool.invoke(ForkJoinTask.adapt(()->{
+				ForkJoinTask.invokeAll(tasks);
+			}));
+		}
+
+		/**
+		 * Stop drawing the frame, it won't be installed.
+		 */
+		public void cancel() {
+			cancelled=true;
+		}
+
+		/**
+		 *
+		 * @return the number of tiles in the frame
+		 */
+		public int tileCount() {
+			return tiles.length>0?tiles.length*tiles[0].length:0;
+		}
+	}
+
+	/**
+	 * Tiles covering the area painted so far, by row then column, null
+	 * until they are first painted.
+	 */
+	private Tile[][] tiles=new Tile[0][0];
+
+	/**
+	 * The board drawn on the tiles, null if they are blank, its generation
+	 * and the paths of it that are drawn.
+	 */
+	private Whiteboard board;
+	private long generation;
+	private ArrayList<WhiteboardPath> paths=new ArrayList<>();
+
+	/**
+	 * The area that has changed since it was last taken, null if none has.
+	 */
+	private Rectangle dirty;
+
+	/**
+	 * Bring the drawing up to date with a whiteboard. If only paths have
+	 * been added to it since it was last drawn, only they are drawn, on the
+	 * tiles they touch. If paths have been removed, the tiles they touch are
+	 * marked to be drawn again, and if it is another board, or none of the
+	 * paths drawn are left, every tile is.
+	 * @param whiteboard
+	 * @return true if every tile is to be drawn again
+	 */
+	public boolean update(Whiteboard whiteboard) {
+		List<WhiteboardPath> added=new ArrayList<>();
+		boolean same=whiteboard==board;
+		long current=whiteboard.pathsToDraw(same?generation:-1, same?paths.size():0, added);
+		boolean redraw=false;
+		if(same && current==generation) {
+			paths.addAll(added);
+		} else {
+			// added has every path of the board, keep those still drawn
+			int kept=0;
+			if(same) {
+				while(kept<added.size() && kept<paths.size() && added.get(kept)==paths.get(kept)) kept++;
+			}
+			if(kept==0) {
+				invalidateAll();
+				redraw=true;
+			} else {
+				for(WhiteboardPath removed : paths.subList(kept, paths.size())) {
+					invalidate(padded(removed.getBounds()));
+				}
+			}
+			paths=new ArrayList<>(added);
+			added=added.subList(kept, added.size());
+		}
+		for(WhiteboardPath path : added) {
+			drawOnTiles(path);
+		}
+		board=whiteboard;
+		generation=current;
+		return redraw;
+	}
+
+	/**
+	 * Forget the board, every tile is to be drawn blank.
+	 */
+	public void clear() {
+		board=null;
+		paths=new ArrayList<>();
+		invalidateAll();
+	}
+
+	/**
+	 *
+	 * @return the number of points in the paths drawn
+	 */
+	public long points() {
+		long points=0;
+		for(WhiteboardPath path : paths) {
+			points+=path.length();
+		}
+		return points;
+	}
+
+	/**
+	 *
+	 * @return the area that has changed since this was last called, null if
+	 * none has; it may extend past the tiles
+	 */
+	public Rectangle takeDirty() {
+		Rectangle area=dirty;
+		dirty=null;
+		return area;
+	}
+
+	/**
+	 * Make sure there are tiles covering an area from 0,0.
+	 * @param width
+	 * @param height
+	 */
+	public void cover(int width,int height) {
+		int rows=Math.max(tiles.length, (height+tileSize-1)/tileSize);
+		int cols=Math.max(tiles.length>0?tiles[0].length:0, (width+tileSize-1)/tileSize);
+		if(rows==tiles.length && (rows==0 || cols==tiles[0].length)) return;
+		Tile[][] covering=new Tile[rows][];
+		for(int row=0;row<rows;row++) {
+			covering[row]=row<tiles.length?Arrays.copyOf(tiles[row], cols):new Tile[cols];
+		}
+		tiles=covering;
+	}
+
+	/**
+	 * Paint the tiles touching an area.
+	 * @param g
+	 * @param area
+	 * @param refresh if false, tiles are painted as they are without first
+	 * drawing them from scratch if that is due, e.g. while a frame is being
+	 * drawn
+	 */
+	public void paint(Graphics g,Rectangle area,boolean refresh) {
+		int[] range=tileRange(area);
+		for(int row=range[1];row<=range[3];row++) {
+			for(int col=range[0];col<=range[2];col++) {
+				Tile tile=tiles[row][col];
+				if(tile==null) {
+					tile=new Tile(row,col);
+					tiles[row][col]=tile;
+				}
+				if(refresh && !tile.valid) tile.draw(row, col, board, generation, paths);
+				g.drawImage(tile.image, col*tileSize, row*tileSize, null);
+			}
+		}
+	}
+
+	/**
+	 * Make a frame to draw every tile covering an area from 0,0 from
+	 * scratch, with the paths drawn now.
+	 * @param width
+	 * @param height
+	 * @return the frame, to be drawn and then installed
+	 */
+	public Frame newFrame(int width,int height) {
+		cover(width,height);
+		return new Frame(board, generation, new ArrayList<>(paths), tiles.length,
+				tiles.length>0?tiles[0].length:0);
+	}
+
+	/**
+	 * Use a drawn frame's tiles in place of the current ones, then draw the
+	 * paths added since the frame was made.
+	 * @param frame
+	 * @return false if the frame could not be installed, because it was
+	 * cancelled or the board has changed in some way other than having paths
+	 * added since the frame was made
+	 */
+	public boolean install(Frame frame) {
+		if(frame.cancelled || frame.board!=board || frame.generation!=generation
+				|| frame.paths.size()>paths.size()) return false;
+		cover(frame.tiles.length>0?frame.tiles[0].length*tileSize:0, frame.tiles.length*tileSize);
+		for(int row=0;row<frame.tiles.length;row++) {
+			System.arraycopy(frame.tiles[row], 0, tiles[row], 0, frame.tiles[row].length);
+		}
+		for(WhiteboardPath path : paths.subList(frame.paths.size(), paths.size())) {
+			drawOnTiles(path);
+		}
+		markDirty(new Rectangle(0, 0, tiles.length>0?tiles[0].length*tileSize:0, tiles.length*tileSize));
+		return true;
+	}
+
+	/**
+	 * Draw a path on the tiles it touches that are up to date, the others
+	 * include it when they are drawn from scratch.
+	 * @param path
+	 */
+	private void drawOnTiles(WhiteboardPath path) {
+		Rectangle area=padded(path.getBounds());
+		int[] range=tileRange(area);
+		for(int row=range[1];row<=range[3];row++) {
+			for(int col=range[0];col<=range[2];col++) {
+				Tile tile=tiles[row][col];
+				if(tile!=null && tile.valid) path.drawOnBoard(tile.g2);
+			}
+		}
+		markDirty(area);
+	}
+
+	/**
+	 * Mark the tiles touching an area to be drawn from scratch.
+	 * @param area
+	 */
+	private void invalidate(Rectangle area) {
+		int[] range=tileRange(area);
+		for(int row=range[1];row<=range[3];row++) {
+			for(int col=range[0];col<=range[2];col++) {
+				if(tiles[row][col]!=null) tiles[row][col].valid=false;
+			}
+		}
+		markDirty(area);
+	}
+
+	/**
+	 * Mark every tile to be drawn from scratch.
+	 */
+	private void invalidateAll() {
+		for(Tile[] row : tiles) {
+			for(Tile tile : row) {
+				if(tile!=null) tile.valid=false;
+			}
+		}
+		markDirty(new Rectangle(0, 0, Integer.MAX_VALUE, Integer.MAX_VALUE));
+	}
+
+	private void markDirty(Rectangle area) {
+		if(area.isEmpty()) return;
+		if(dirty==null) dirty=new Rectangle(area);
+		else dirty.add(area);
+	}
+
+	/**
+	 *
+	 * @param area
+	 * @return the first column, first row, last column and last row of the
+	 * tiles that the area touches, the last before the first if it touches
+	 * none
+	 */
+	private int[] tileRange(Rectangle area) {
+		int rows=tiles.length;
+		int cols=rows>0?tiles[0].length:0;
+		if(area.isEmpty()) return new int[] {0,0,-1,-1};
+		return new int[] {
+			(int)Math.max(0, Math.floorDiv((long)area.x, tileSize)),
+			(int)Math.max(0, Math.floorDiv((long)area.y, tileSize)),
+			(int)Math.min(cols-1, Math.floorDiv((long)area.x+area.width-1, tileSize)),
+			(int)Math.min(rows-1, Math.floorDiv((long)area.y+area.height-1, tileSize))
+		};
+	}
+
+	/**
+	 *
+	 * @param bounds the bounds of a path
+	 * @return the area that drawing the path colors
+	 */
+	static Rectangle padded(Rectangle bounds) {
+		if(!bounds.isEmpty()) bounds.grow(margin, margin);
+		return bounds;
+	}
+}
@@ -1,104 +1,361 @@
 package pb.app;
 
 import java.awt.Color;
+import java.awt.DisplayMode;
 import java.awt.Graphics;
 import java.awt.Graphics2D;
-import java.awt.Image;
+import java.awt.GraphicsEnvironment;
+import java.awt.HeadlessException;
+import java.awt.Rectangle;
 import java.awt.RenderingHints;
 import java.awt.event.MouseAdapter;
 import java.awt.event.MouseEvent;
 import java.awt.event.MouseMotionAdapter;
+import java.util.concurrent.ForkJoinPool;
 import java.util.logging.Logger;
 
 import javax.swing.JComponent;
+import javax.swing.SwingUtilities;
+import javax.swing.Timer;
 
 /**
  * Initial code obtained from:
  * https://www.ssaurel.com/blog/learn-how-to-make-a-swing-painting-and-drawing-application/
- * 
- * You probably don't need to modify this class.
+ * <br/>
+ * The board is drawn on tiles that are kept between renders, see
+ * {@link BoardRaster}. Rendering is scheduled rather than done straight
+ * away: a board can be marked to be rendered from any thread, e.g. when an
+ * update to it arrives from a peer, and once per display refresh the Swing
+ * thread brings the tiles up to date with the last board marked, drawing
+ * every path added since in one go, and repaints just the area that
+ * changed. The path being drawn with the mouse is not part of the tiles,
+ * it is painted over them until it is added to the board, as are the paths
+ * being drawn on other peers.
+ * <br/>
+ * While a path is being drawn its new points are sent to the other peers in
+ * small batches, every {@link #streamInterval} ms or every strokeBatch
+ * points, whichever comes first, so they see it as it is drawn.
+ * <br/>
+ * When a large board has to be drawn from scratch, e.g. when it has just
+ * been loaded, its tiles are drawn in parallel on a fork-join pool rather
+ * than on the Swing thread as they are painted. The tiles of what was drawn
+ * before are painted until the new ones are installed, in one go on the
+ * Swing thread.
  */
 @SuppressWarnings("serial")
 public class DrawArea extends JComponent {
 	private static Logger log = Logger.getLogger(DrawArea.class.getName());
 
-	// Image in which we're going to draw
-	private Image image;
-	// Graphics2D object ==> used to draw on
-	private Graphics2D g2;
-	// Mouse coordinates
-	private int currentX, currentY, oldX, oldY;
-	
+	/**
+	 * Boards with at least this many points are drawn from scratch in
+	 * parallel. Drawing every tile of a board this size on one core takes
+	 * about 100 ms (WhiteboardBenchmark -raster), long enough to notice the
+	 * Swing thread stall, so it is moved off that thread even where there
+	 * is only one core to draw on.
+	 */
+	private static final long parallelPoints=100000;
+
+	/**
+	 * Pool that boards are drawn on in parallel.
+	 */
+	private static final ForkJoinPool pool=ForkJoinPool.commonPool();
+
+	/**
+	 * Most time that new points of the path being drawn wait before they
+	 * are sent (ms).
+	 */
+	private static final int streamInterval=16;
+
+	private final WhiteboardApp whiteboardApp;
+
 	private WhiteboardPath currentPath;
-	
+
 	private Color currentColor=Color.black;
-	
+
+	/**
+	 * Most points of the path being drawn sent at once, 0 to only send the
+	 * path when it is finished.
+	 */
+	private int strokeBatch=16;
+
+	/**
+	 * Identifies the path being drawn to the other peers, and the number of
+	 * its points that have been sent.
+	 */
+	private String strokeId;
+	private int streamedPoints=0;
+
+	/**
+	 * Sends the new points of the path being drawn once they have waited
+	 * long enough.
+	 */
+	private final Timer streamTimer;
+
+	/**
+	 * The board last rendered, whose live strokes are painted, null if
+	 * there is none.
+	 */
+	private volatile Whiteboard shownBoard;
+
+	/**
+	 * Guards the raster, the pending frame and the dirty area.
+	 */
+	private final Object renderLock=new Object();
+
+	/**
+	 * The board's tiles.
+	 */
+	private final BoardRaster raster=new BoardRaster();
+
+	/**
+	 * The board frame being drawn in parallel, null if none is.
+	 */
+	private BoardRaster.Frame pendingFrame;
+
+	/**
+	 * The area to repaint at the end of the frame, null if there is none.
+	 */
+	private Rectangle dirty;
+
+	/**
+	 * True if the tiles are to be brought up to date at the end of the
+	 * frame, with renderBoard, or made blank if it is null.
+	 */
+	private boolean renderPending=false;
+	private Whiteboard renderBoard;
+
+	/**
+	 * Metrics, guarded by the render lock.
+	 */
+	private long renderRequests=0;
+	private long renders=0;
+	private long frames=0;
+	private long frameNanos=0;
+	private long maxFrameNanos=0;
+
+	/**
+	 * Renders and repaints once per frame while either is requested.
+	 */
+	private final Timer frameTimer;
+
 	public DrawArea(WhiteboardApp whiteboardApp) {
+		this.whiteboardApp=whiteboardApp;
 		setDoubleBuffered(false);
+		frameTimer=new Timer(frameInterval(), (e)->{
+			endFrame();
+		});
+		frameTimer.setRepeats(false);
+		streamTimer=new Timer(streamInterval, (e)->{
+			streamStroke();
+		});
+		streamTimer.setRepeats(false);
 		addMouseListener(new MouseAdapter() {
 			public void mousePressed(MouseEvent e) {
-				// save coord x,y when mouse is pressed
-				oldX = e.getX();
-				oldY = e.getY();
 				currentPath = new WhiteboardPath(currentColor);
-				currentPath.addPoint(oldX, oldY);
-				if(g2!=null) {
-					g2.setPaint(currentColor);
-				}
+				currentPath.addPoint(e.getX(), e.getY());
+				strokeId=whiteboardApp.newStrokeId();
+				streamedPoints=0;
 			}
-			
+
 			public void mouseReleased(MouseEvent e) {
-				if(currentPath!=null && currentPath.length()>1) {
+				if(currentPath==null) return;
+				streamTimer.stop();
+				if(currentPath.length()>1) {
 					// a path has been created
 					log.info("path created: "+currentPath.toString());
 					whiteboardApp.pathCreatedLocally(currentPath);
-					currentPath=null;
 				}
+				if(streamedPoints>0) {
+					// after the path, so the others show it drawn as they stop showing it live
+					whiteboardApp.strokeEndedLocally(strokeId);
+				}
+				markDirty(BoardRaster.padded(currentPath.getBounds()));
+				currentPath=null;
 			}
 		});
 
 		addMouseMotionListener(new MouseMotionAdapter() {
 			public void mouseDragged(MouseEvent e) {
-				currentX = e.getX();
-				currentY = e.getY();
-				if (g2 != null) {
-					g2.drawLine(oldX, oldY, currentX, currentY);
-					repaint();
-					oldX = currentX;
-					oldY = currentY;
-					currentPath.addPoint(oldX, oldY);
+				if (currentPath != null) {
+					int last=currentPath.length()-1;
+					Rectangle segment=new Rectangle(currentPath.getX(last), currentPath.getY(last), 1, 1);
+					segment.add(new Rectangle(e.getX(), e.getY(), 1, 1));
+					currentPath.addPoint(e.getX(), e.getY());
+					markDirty(BoardRaster.padded(segment));
+					if(strokeBatch>0) {
+						if(currentPath.length()-streamedPoints>=strokeBatch) streamStroke();
+						else streamTimer.start();
+					}
 				}
 			}
 		});
 	}
 
+	/**
+	 *
+	 * @return the time between refreshes of the display (ms), assuming 60Hz
+	 * if it is not known
+	 */
+	private static int frameInterval() {
+		int rate=DisplayMode.REFRESH_RATE_UNKNOWN;
+		try {
+			rate=GraphicsEnvironment.getLocalGraphicsEnvironment().getDefaultScreenDevice()
+					.getDisplayMode().getRefreshRate();
+		} catch (HeadlessException e) {
+			// no display, the default will do
+		}
+		if(rate==DisplayMode.REFRESH_RATE_UNKNOWN || rate<=0) rate=60;
+		return Math.max(1, 1000/rate);
+	}
+
 	protected void paintComponent(Graphics g) {
-		if (image == null) {
-			image = createImage(getSize().width, getSize().height);
-			g2 = (Graphics2D) image.getGraphics();
-			g2.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
-			clear();
+		Rectangle clip=g.getClipBounds();
+		if(clip==null) clip=new Rectangle(0, 0, getWidth(), getHeight());
+		synchronized(renderLock) {
+			raster.cover(getWidth(), getHeight());
+			raster.paint(g, clip, pendingFrame==null);
+		}
+		Graphics2D overlay = (Graphics2D) g;
+		overlay.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+		Whiteboard board=shownBoard;
+		if(board!=null) {
+			for(WhiteboardPath stroke : board.getLiveStrokes()) {
+				stroke.drawOnBoard(overlay);
+			}
+		}
+		if(currentPath!=null) {
+			currentPath.drawOnBoard(overlay);
 		}
+	}
 
-		g.drawImage(image, 0, 0, null);
+	/**
+	 * Send the points of the path being drawn that haven't been sent.
+	 */
+	private void streamStroke() {
+		if(currentPath==null || currentPath.length()<=streamedPoints) return;
+		streamTimer.stop();
+		WhiteboardPath points=new WhiteboardPath(currentPath.color, currentPath.length()-streamedPoints);
+		for(int i=streamedPoints;i<currentPath.length();i++) {
+			points.addPoint(currentPath.getX(i), currentPath.getY(i));
+		}
+		streamedPoints=currentPath.length();
+		whiteboardApp.strokePointsLocally(strokeId, points);
 	}
-	
+
 	/**
-	 * Draw a whiteboard path on the board.
-	 * @param whiteboardPath
+	 * Repaint the area that a path being drawn on another peer has changed.
+	 * Can be called from any thread.
+	 * @param area
 	 */
-	public void drawPath(WhiteboardPath whiteboardPath) {
-		whiteboardPath.drawOnBoard(g2);
-		repaint();
+	public void repaintStroke(Rectangle area) {
+		markDirty(BoardRaster.padded(area));
+	}
+
+	/**
+	 * Ask for an area of the draw area to be repainted, the repaint happens
+	 * at the end of the current frame, so requests within a frame result in
+	 * one repaint of the area they cover. Can be called from any thread.
+	 * @param area may be null
+	 */
+	private void markDirty(Rectangle area) {
+		if(area==null) return;
+		area=area.intersection(new Rectangle(0, 0, getWidth(), getHeight()));
+		if(area.isEmpty()) return;
+		synchronized(renderLock) {
+			if(dirty==null) dirty=area;
+			else dirty.add(area);
+		}
+		// does nothing if the timer is already running
+		frameTimer.start();
+	}
+
+	/**
+	 * Mark a whiteboard to be drawn on the draw area at the end of the
+	 * frame. Can be called from any thread; marking it again, or marking
+	 * another board, within the frame results in one render.
+	 * @param whiteboard
+	 */
+	public void scheduleRender(Whiteboard whiteboard) {
+		synchronized(renderLock) {
+			renderPending=true;
+			renderBoard=whiteboard;
+			renderRequests++;
+		}
+		frameTimer.start();
 	}
 
 	// now we create exposed methods
 	public void clear() {
-		if(g2!=null) {
-			g2.setPaint(Color.white);
-			// draw white on entire draw area to clear
-			g2.fillRect(0, 0, getSize().width, getSize().height);
-			repaint();
+		synchronized(renderLock) {
+			renderPending=true;
+			renderBoard=null;
+			renderRequests++;
+		}
+		frameTimer.start();
+	}
+
+	/**
+	 * End the frame on the Swing thread: render the board if that has been
+	 * requested and paint what has changed.
+	 */
+	private void endFrame() {
+		long start=System.nanoTime();
+		Rectangle area;
+		synchronized(renderLock) {
+			boolean rendering=renderPending;
+			if(rendering) {
+				render(renderBoard);
+				renderPending=false;
+				renderBoard=null;
+			}
+			area=dirty;
+			dirty=null;
+			// rendering restarts the timer, there may be nothing left to do
+			if(!rendering && area==null) return;
+		}
+		if(area!=null) paintImmediately(area);
+		long elapsed=System.nanoTime()-start;
+		synchronized(renderLock) {
+			frames++;
+			frameNanos+=elapsed;
+			maxFrameNanos=Math.max(maxFrameNanos, elapsed);
+		}
+	}
+
+	/**
+	 * Bring the tiles up to date with a whiteboard. If only paths have been
+	 * added to it since it was last drawn, only they are drawn, on the tiles
+	 * they touch. If paths have been removed, the tiles they touch are drawn
+	 * again. If it is drawn from scratch and is large, it is drawn in
+	 * parallel. Caller must hold the render lock.
+	 * @param whiteboard the board, or null to make the tiles blank
+	 */
+	private void render(Whiteboard whiteboard) {
+		renders++;
+		shownBoard=whiteboard;
+		boolean redraw;
+		if(whiteboard==null) {
+			raster.clear();
+			redraw=true;
+		} else {
+			redraw=raster.update(whiteboard);
+		}
+		if(redraw) {
+			if(pendingFrame!=null) pendingFrame.cancel();
+			pendingFrame=null;
+			if(whiteboard!=null && raster.points()>=parallelPoints) drawFrame();
+		}
+		markDirty(raster.takeDirty());
+	}
+
+	/**
+	 *
+	 * @return the rendering metrics in the form "name=value,name=value,..."
+	 */
+	public String stats() {
+		synchronized(renderLock) {
+			return String.format("renderRequests=%d,renders=%d,frames=%d,avgFrameMs=%.2f,maxFrameMs=%.2f",
+					renderRequests, renders, frames, frames==0?0.0:frameNanos/1e6/frames, maxFrameNanos/1e6);
 		}
 	}
 
@@ -106,4 +363,52 @@ public class DrawArea extends JComponent {
 		currentColor=color;
 	}
 
-}
\ No newline at end of file
+	/**
+	 * Set how many points of the path being drawn are sent at most at once.
+	 * @param strokeBatch 0 to only send paths when they are finished
+	 */
+	public void setStrokeBatch(int strokeBatch) {
+		this.strokeBatch=strokeBatch;
+	}
+
+	/**
+	 * Draw every tile of the board from scratch on the pool, and install
+	 * them on the Swing thread when they are drawn. Caller must hold the
+	 * render lock.
+	 */
+	private void drawFrame() {
+		BoardRaster.Frame drawing=raster.newFrame(getWidth(), getHeight());
+		pendingFrame=drawing;
+		long start=System.nanoTime();
+		pool.execute(()->{
+			boolean[] drawn={false};
+			try {
+				drawing.draw(pool);
+				drawn[0]=true;
+			} catch (RuntimeException e) {
+				log.warning("could not draw the board in parallel: "+e);
+			} finally {
+				// the pending frame is always cleared, or tiles are never
+				// drawn on the Swing thread again
+				SwingUtilities.invokeLater(()->{
+					synchronized(renderLock) {
+						if(pendingFrame!=drawing) return;
+						pendingFrame=null;
+						if(!drawn[0]) {
+							// draw the tiles as they are painted instead
+							repaint();
+						} else if(raster.install(drawing)) {
+							log.info("drew "+drawing.tileCount()+" tiles in parallel in "
+									+(System.nanoTime()-start)/1000000+" ms");
+						} else if(raster.points()>=parallelPoints) {
+							// the board changed while it was being drawn
+							drawFrame();
+						}
+						markDirty(raster.takeDirty());
+					}
+				});
+			}
+		});
+	}
+
+}
@@ -0,0 +1,171 @@
+package pb.app;
+
+import java.awt.Rectangle;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A uniform grid over the board that lists, for each cell, the paths whose
+ * bounds touch it, so that the paths near an area can be found without
+ * visiting every path of the board. Paths are known by their index in the
+ * board and are removed in the reverse order they were added, which is how
+ * an undo removes them.
+ * <br/>
+ * A path whose bounds cover more than {@link #maxCells} cells, e.g. because
+ * of one far away point, is not put in the grid but in a list that every
+ * query looks at. Not thread safe, the whiteboard guards it.
+ *
+ * @see {@link Whiteboard#pathsIn(Rectangle, java.util.List)}
+ * @author aaron
+ *
+ */
+class PathIndex {
+
+	/**
+	 * Width and height of a cell (pixels).
+	 */
+	private static final int cellSize=128;
+
+	/**
+	 * Most cells a path is listed in.
+	 */
+	private static final int maxCells=256;
+
+	/**
+	 * A growable list of path indexes, in the order they were added.
+	 */
+	private static class IntList {
+		int[] items=new int[4];
+		int size=0;
+
+		void add(int item) {
+			if(size==items.length) items=Arrays.copyOf(items, size*2);
+			items[size++]=item;
+		}
+
+		boolean removeLast(int item) {
+			if(size==0 || items[size-1]!=item) return false;
+			size--;
+			return true;
+		}
+	}
+
+	/**
+	 * Paths in each cell, by cell column and row, cells without paths are
+	 * left out.
+	 */
+	private final Map<Long,IntList> cells=new HashMap<>();
+
+	/**
+	 * Paths that cover too many cells to list in each.
+	 */
+	private final IntList large=new IntList();
+
+	/**
+	 * Add a path.
+	 * @param index the path's index in the board
+	 * @param bounds the path's bounds
+	 */
+	void add(int index,Rectangle bounds) {
+		if(bounds.isEmpty()) return;
+		long[] range=cellRange(bounds);
+		if(cellCount(range)>maxCells) {
+			large.add(index);
+			return;
+		}
+		for(long row=range[1];row<=range[3];row++) {
+			for(long col=range[0];col<=range[2];col++) {
+				cells.computeIfAbsent(key(col,row), (k)->new IntList()).add(index);
+			}
+		}
+	}
+
+	/**
+	 * Remove the path that was added last.
+	 * @param index the path's index in the board
+	 * @param bounds the path's bounds
+	 */
+	void removeLast(int index,Rectangle bounds) {
+		if(bounds.isEmpty() || large.removeLast(index)) return;
+		long[] range=cellRange(bounds);
+		for(long row=range[1];row<=range[3];row++) {
+			for(long col=range[0];col<=range[2];col++) {
+				Long key=key(col,row);
+				IntList cell=cells.get(key);
+				if(cell!=null && cell.removeLast(index) && cell.size==0) cells.remove(key);
+			}
+		}
+	}
+
+	/**
+	 * Remove every path.
+	 */
+	void clear() {
+		cells.clear();
+		large.size=0;
+	}
+
+	/**
+	 * Find the paths that may touch an area.
+	 * @param area
+	 * @return the indexes of the paths listed in the cells the area touches,
+	 * which includes every path whose bounds touch the area
+	 */
+	BitSet query(Rectangle area) {
+		BitSet found=new BitSet();
+		for(int i=0;i<large.size;i++) {
+			found.set(large.items[i]);
+		}
+		if(area.isEmpty()) return found;
+		long[] range=cellRange(area);
+		if(cellCount(range)>cells.size()) {
+			// fewer cells have paths than the area covers
+			for(Map.Entry<Long,IntList> entry : cells.entrySet()) {
+				long col=entry.getKey()>>32;
+				long row=(int)(long)entry.getKey();
+				if(col>=range[0] && col<=range[2] && row>=range[1] && row<=range[3]) {
+					addAll(found,entry.getValue());
+				}
+			}
+		} else {
+			for(long row=range[1];row<=range[3];row++) {
+				for(long col=range[0];col<=range[2];col++) {
+					IntList cell=cells.get(key(col,row));
+					if(cell!=null) addAll(found,cell);
+				}
+			}
+		}
+		return found;
+	}
+
+	private static void addAll(BitSet found,IntList cell) {
+		for(int i=0;i<cell.size;i++) {
+			found.set(cell.items[i]);
+		}
+	}
+
+	private static Long key(long col,long row) {
+		return (col<<32)|(row&0xffffffffL);
+	}
+
+	/**
+	 *
+	 * @param area not empty
+	 * @return the first column, first row, last column and last row of the
+	 * cells the area touches
+	 */
+	private static long[] cellRange(Rectangle area) {
+		return new long[] {
+			Math.floorDiv((long)area.x, cellSize),
+			Math.floorDiv((long)area.y, cellSize),
+			Math.floorDiv((long)area.x+area.width-1, cellSize),
+			Math.floorDiv((long)area.y+area.height-1, cellSize)
+		};
+	}
+
+	private static long cellCount(long[] range) {
+		return (range[2]-range[0]+1)*(range[3]-range[1]+1);
+	}
+}
@@ -1,6 +1,14 @@
 package pb.app;
 
+import java.awt.Rectangle;
+import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.logging.Logger;
 
 /**
@@ -17,6 +25,60 @@ public class Whiteboard {
 	 */
 	private ArrayList<WhiteboardPath> paths;
 	
+	/**
+	 * Where the paths are on the board, so that drawing or looking up part
+	 * of the board only visits the paths near it.
+	 */
+	private final PathIndex index=new PathIndex();
+	
+	/**
+	 * The first encodedCount paths in the text format, "%path" for each
+	 * path, and the index in it after each path. Paths are appended when
+	 * the board is next converted and cut off when they are removed, so
+	 * that the board is not converted path by path every time it is sent.
+	 */
+	private final StringBuilder encodedPaths=new StringBuilder();
+	private int[] pathEnds=new int[16];
+	private int encodedCount=0;
+	
+	/**
+	 * The whole board in the text format, cached until the board changes,
+	 * null until then.
+	 */
+	private String snapshot;
+	
+	/**
+	 * The version and paths in the binary format, cached until the board
+	 * changes, null until then.
+	 */
+	private byte[] binarySnapshot;
+	
+	/**
+	 * Changed whenever paths are removed or replaced, rather than added, so
+	 * that a drawing of the board knows whether it can just draw the new
+	 * paths.
+	 */
+	private long generation=0;
+	
+	/**
+	 * Most strokes being drawn on other peers that are kept.
+	 */
+	private static final int maxLiveStrokes=64;
+	
+	/**
+	 * Paths being drawn on other peers, by stroke id, shown until they are
+	 * committed. They are not part of the board's paths or version. A peer
+	 * that goes away mid-stroke never commits it, so only the most recently
+	 * started strokes are kept.
+	 */
+	private final Map<String,WhiteboardPath> liveStrokes=new LinkedHashMap<>() {
+		private static final long serialVersionUID = 1L;
+		
+		protected boolean removeEldestEntry(Map.Entry<String,WhiteboardPath> eldest) {
+			return size()>maxLiveStrokes;
+		}
+	};
+	
 	/**
 	 * Name of the whiteboard, peer:port:boarid
 	 */
@@ -58,30 +120,92 @@ public class Whiteboard {
 	 * @param data the board data, i.e. version%PATHS 
 	 */
 	public void whiteboardFromString(String name,String data) {
-		String[] parts = data.split("%");
+		whiteboardFromString(name,data,0);
+	}
+	
+	/**
+	 * Initialize a whiteboard from the end of a string, e.g. the board data
+	 * after the name in a board data event, so that it needn't be copied out
+	 * first. The data is scanned once, each path is parsed in place.
+	 * 
+	 * @param name the board name, i.e. peer:port:boardid
+	 * @param data a string ending in the board data, i.e. version%PATHS
+	 * @param start index of the board data in the string
+	 */
+	public synchronized void whiteboardFromString(String name,String data,int start) {
 		paths = new ArrayList<>();
+		index.clear();
+		forgetEncoded();
+		generation++;
 		this.name=name;
 		version=-1;
-		if(parts.length<1) {
-			log.severe("whiteboard data is malformed: "+data);
-			return;
-		}
+		int end=data.length();
+		start=Math.min(start, end);
+		int versionEnd=WhiteboardPath.indexOf(data,'%',start,end);
 		try {
-			version=Integer.parseInt(parts[0]);
+			version=Integer.parseInt(data,start,versionEnd,10);
 		} catch (NumberFormatException e) {
-			log.severe("whiteboard data is malformed: "+data);
+			log.severe("whiteboard data is malformed: "+data.substring(start,versionEnd));
 			return;
 		}
-		if(parts.length>1) {
-			for (int i = 1; i < parts.length; i++) {
-				String path = parts[i];
-				if (path.length() > 0) {
-					paths.add(new WhiteboardPath(path));
-				}
+		for(int i=versionEnd+1;i<end;) {
+			int pathEnd=WhiteboardPath.indexOf(data,'%',i,end);
+			if(pathEnd>i) {
+				paths.add(new WhiteboardPath(data,i,pathEnd));
 			}
+			i=pathEnd+1;
+		}
+		indexPaths();
+	}
+	
+	/**
+	 * Initialize a whiteboard from its binary format.
+	 * 
+	 * @param name the board name, i.e. peer:port:boardid
+	 * @param data the board version and paths in the binary format, from
+	 * the buffer's position to its limit
+	 * @return true if the data was a board in the binary format
+	 * @see {@link BinaryBoardFormat}
+	 */
+	public synchronized boolean whiteboardFromBinary(String name,ByteBuffer data) {
+		paths = new ArrayList<>();
+		index.clear();
+		forgetEncoded();
+		generation++;
+		this.name=name;
+		version=-1;
+		ArrayList<WhiteboardPath> loaded = new ArrayList<>();
+		try {
+			version=BinaryBoardFormat.decode(data, loaded);
+		} catch (IOException e) {
+			log.severe("whiteboard binary data is malformed: "+e.getMessage());
+			return false;
+		}
+		paths = loaded;
+		indexPaths();
+		return true;
+	}
+	
+	/**
+	 * Index every path, after the board is loaded.
+	 */
+	private void indexPaths() {
+		for(int i=0;i<paths.size();i++) {
+			index.add(i, paths.get(i).getBounds());
 		}
 	}
 	
+	/**
+	 * Convert the version and paths of this whiteboard to the binary format.
+	 * 
+	 * @return the board in the binary format, not to be modified
+	 * @see {@link BinaryBoardFormat}
+	 */
+	public synchronized byte[] toBinary() {
+		if(binarySnapshot==null) binarySnapshot=BinaryBoardFormat.encode(version, paths);
+		return binarySnapshot;
+	}
+	
 	/**
 	 * Convert this whiteboard to a string.
 	 * 
@@ -89,29 +213,160 @@ public class Whiteboard {
 	 *         "name%version%PATHS" for the case when there are one or more paths,
 	 *         where each path is separated by a "%"
 	 */
-	public String toString() {
-		StringBuilder sb = new StringBuilder("");
+	public synchronized String toString() {
+		if(snapshot!=null) return snapshot;
+		encodePaths();
+		StringBuilder sb = new StringBuilder(name.length()+24+encodedPaths.length());
 		sb.append(getNameAndVersion());
 		if(paths.size()==0) 
 			sb.append("%");
 		else {
-			for (int i = 0; i < paths.size(); i++) {
-				sb.append("%"+paths.get(i));
-			}
+			sb.append(encodedPaths);
+		}
+		snapshot = sb.toString();
+		return snapshot;
+	}
+	
+	/**
+	 * Append the paths added since the board was last converted to the
+	 * text format of the paths.
+	 */
+	private void encodePaths() {
+		if(paths.size()>pathEnds.length) {
+			pathEnds=Arrays.copyOf(pathEnds, Math.max(paths.size(), pathEnds.length*2));
+		}
+		for(;encodedCount<paths.size();encodedCount++) {
+			encodedPaths.append('%');
+			paths.get(encodedCount).appendTo(encodedPaths);
+			pathEnds[encodedCount]=encodedPaths.length();
+		}
+	}
+	
+	/**
+	 * Cut removed paths off the text format of the paths.
+	 */
+	private void forgetEncoded() {
+		snapshot=null;
+		binarySnapshot=null;
+		if(encodedCount<=paths.size()) return;
+		encodedCount=paths.size();
+		encodedPaths.setLength(encodedCount>0?pathEnds[encodedCount-1]:0);
+		if(encodedCount==0) {
+			encodedPaths.trimToSize();
+			pathEnds=new int[16];
 		}
-		return sb.toString();
 	}
 	
 	/**
-	 * Draw the white board on the drawing area. Clears the draw
-	 * area and draws all paths.
+	 * Draw the white board on the drawing area. The board is drawn at the
+	 * end of the drawing area's frame, so this can be called from any thread
+	 * and calls within a frame are drawn once. Only the paths added since
+	 * the board was last drawn on it are drawn, unless paths have been
+	 * removed since.
 	 * @param drawArea
 	 */
 	public void draw(DrawArea drawArea) {
-		drawArea.clear();
-		for(WhiteboardPath path : paths) {
-			drawArea.drawPath(path);
+		drawArea.scheduleRender(this);
+	}
+	
+	/**
+	 * Get the paths that a drawing of the board needs to draw.
+	 * @param drawnGeneration the generation of the board when it was drawn
+	 * @param drawnPaths the number of paths that were drawn
+	 * @param toDraw the paths after the drawn paths are added to this, or
+	 * every path if the generation has changed
+	 * @return the current generation, if it is not drawnGeneration then the
+	 * board must be drawn from scratch
+	 */
+	public synchronized long pathsToDraw(long drawnGeneration,int drawnPaths,List<WhiteboardPath> toDraw) {
+		if(drawnGeneration!=generation) {
+			toDraw.addAll(paths);
+		} else {
+			toDraw.addAll(paths.subList(drawnPaths, paths.size()));
+		}
+		return generation;
+	}
+	
+	/**
+	 * Get the paths whose bounds touch an area, in the order they were
+	 * added, only visiting the paths near the area.
+	 * @param area
+	 * @param found the paths are added to this
+	 */
+	public synchronized void pathsIn(Rectangle area,List<WhiteboardPath> found) {
+		pathsIn(area,generation,paths.size(),found);
+	}
+	
+	/**
+	 * Get the paths of a drawing of the board whose bounds touch an area, in
+	 * the order they were added, only visiting the paths near the area.
+	 * @param area
+	 * @param drawnGeneration the generation of the board when it was drawn
+	 * @param drawnPaths the number of paths that were drawn
+	 * @param found the paths are added to this
+	 * @return false if the generation has changed, when the drawing's
+	 * paths are no longer the first paths of the board and none are added
+	 */
+	public synchronized boolean pathsIn(Rectangle area,long drawnGeneration,int drawnPaths,
+			List<WhiteboardPath> found) {
+		if(drawnGeneration!=generation) return false;
+		BitSet near=index.query(area);
+		for(int i=near.nextSetBit(0);i>=0 && i<drawnPaths;i=near.nextSetBit(i+1)) {
+			WhiteboardPath path=paths.get(i);
+			if(path.intersects(area)) found.add(path);
+		}
+		return true;
+	}
+	
+	/**
+	 * Add points to a path being drawn on another peer.
+	 * @param strokeId identifies the path being drawn
+	 * @param points the points added to the path since it was last updated,
+	 * with the path's color
+	 * @return the area that the added points change, including the segment
+	 * from the path's point before them
+	 */
+	public synchronized Rectangle appendStroke(String strokeId,WhiteboardPath points) {
+		Rectangle changed=points.getBounds();
+		WhiteboardPath stroke=liveStrokes.get(strokeId);
+		if(stroke==null) {
+			stroke=new WhiteboardPath(points.color);
+			liveStrokes.put(strokeId, stroke);
+		} else if(stroke.length()>0) {
+			int last=stroke.length()-1;
+			changed.add(new Rectangle(stroke.getX(last), stroke.getY(last), 1, 1));
+		}
+		for(int i=0;i<points.length();i++) {
+			stroke.addPoint(points.getX(i), points.getY(i));
+		}
+		return changed;
+	}
+	
+	/**
+	 * A path being drawn on another peer has been committed, or abandoned,
+	 * and is no longer shown.
+	 * @param strokeId identifies the path being drawn
+	 * @return the area the path covered, empty if it is not known
+	 */
+	public synchronized Rectangle endStroke(String strokeId) {
+		WhiteboardPath stroke=liveStrokes.remove(strokeId);
+		return stroke==null?new Rectangle():stroke.getBounds();
+	}
+	
+	/**
+	 * 
+	 * @return copies of the paths being drawn on other peers, oldest first
+	 */
+	public synchronized List<WhiteboardPath> getLiveStrokes() {
+		List<WhiteboardPath> strokes=new ArrayList<>(liveStrokes.size());
+		for(WhiteboardPath stroke : liveStrokes.values()) {
+			WhiteboardPath copy=new WhiteboardPath(stroke.color,stroke.length());
+			for(int i=0;i<stroke.length();i++) {
+				copy.addPoint(stroke.getX(i), stroke.getY(i));
+			}
+			strokes.add(copy);
 		}
+		return strokes;
 	}
 	
 	////
@@ -126,7 +381,11 @@ public class Whiteboard {
 	 */
 	public synchronized boolean addPath(WhiteboardPath newPath,long versionBeingUpdated) {
 		if(version!=versionBeingUpdated) return false;
+		newPath.finish();
+		index.add(paths.size(), newPath.getBounds());
 		paths.add(newPath);
+		snapshot=null;
+		binarySnapshot=null;
 		this.version++;
 		return true;
 	}
@@ -139,6 +398,9 @@ public class Whiteboard {
 	public synchronized boolean clear(long versionBeingUpdated) {
 		if(version!=versionBeingUpdated) return false;
 		paths.clear();
+		index.clear();
+		forgetEncoded();
+		generation++;
 		this.version++;
 		return true;
 	}
@@ -149,8 +411,11 @@ public class Whiteboard {
 	public synchronized boolean undo(long versionBeingUpdated) {
 		if(version!=versionBeingUpdated) return false;
 		if(paths.size()>0) {
-			paths.remove(paths.size()-1);
+			WhiteboardPath removed=paths.remove(paths.size()-1);
+			index.removeLast(paths.size(), removed.getBounds());
+			generation++;
 		}
+		forgetEncoded();
 		this.version++;
 		return true;
 	}
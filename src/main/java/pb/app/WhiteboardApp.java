@@ -11,13 +11,18 @@ import java.awt.BorderLayout;
 import java.awt.Color;
 import java.awt.Component;
 import java.awt.Container;
+import java.awt.Rectangle;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.awt.event.ItemEvent;
 import java.awt.event.ItemListener;
 import java.awt.event.WindowAdapter;
 import java.awt.event.WindowEvent;
+import java.io.File;
+import java.io.IOException;
 import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
 import java.net.UnknownHostException;
 import java.time.Instant;
 import java.util.*;
@@ -29,6 +34,7 @@ import javax.swing.BoxLayout;
 import javax.swing.JButton;
 import javax.swing.JCheckBox;
 import javax.swing.JComboBox;
+import javax.swing.JFileChooser;
 import javax.swing.JFrame;
 import javax.swing.JOptionPane;
 import javax.swing.JPanel;
@@ -78,6 +84,23 @@ public class WhiteboardApp {
 	 */
 	public static final String boardData = "BOARD_DATA";
 
+	/**
+	 * Emitted to another peer to get the entire board data for a given board in
+	 * the binary format, which is sent back as a bulk frame on the stream
+	 * {@link #boardDataBinary}. Argument must have format "host:port:boardid".
+	 * <ul>
+	 * <li>{@code args[0] instanceof String}</li>
+	 * </ul>
+	 */
+	public static final String getBoardDataBinary = "GET_BOARD_DATA_BINARY";
+
+	/**
+	 * The stream on which the entire board data for a given board is sent in the
+	 * binary format, see {@link BinaryBoardFormat}. The stream id has format
+	 * "BOARD_DATA_BINARY:host:port:boardid".
+	 */
+	public static final String boardDataBinary = "BOARD_DATA_BINARY";
+
 	/**
 	 * Emitted to another peer to add a path to a board managed by that peer.
 	 * Argument must have format "host:port:boardid%version%PATH". The numeric value
@@ -144,6 +167,32 @@ public class WhiteboardApp {
 	 */
 	public static final String boardClearAccepted = "BOARD_CLEAR_ACCEPTED";
 
+	/**
+	 * Emitted to another peer while a path is being drawn, with the points added
+	 * to it since it was last emitted, so that the path can be shown as it is
+	 * drawn. The board owner passes it on to the other peers listening to the
+	 * board. When the path is finished it is added to the board with
+	 * {@link #boardPathUpdate}, and then {@link #boardStrokeCommit} is emitted.
+	 * Argument must have format "host:port:boardid%strokeid%PATH", where
+	 * strokeid identifies the path being drawn and PATH has the color of the
+	 * path and the points added.
+	 * <ul>
+	 * <li>{@code args[0] instanceof String}</li>
+	 * </ul>
+	 */
+	public static final String boardStrokePoints = "BOARD_STROKE_POINTS";
+
+	/**
+	 * Emitted to another peer when a path that was being drawn has been added to
+	 * the board, or abandoned, so that it is no longer shown as being drawn. The
+	 * board owner passes it on to the other peers listening to the board.
+	 * Argument must have format "host:port:boardid%strokeid".
+	 * <ul>
+	 * <li>{@code args[0] instanceof String}</li>
+	 * </ul>
+	 */
+	public static final String boardStrokeCommit = "BOARD_STROKE_COMMIT";
+
 	/**
 	 * Emitted to another peer to indicate a board no longer exists and should be
 	 * deleted. Argument must have format "host:port:boardid".
@@ -199,6 +248,18 @@ public class WhiteboardApp {
 	 */
 	private boolean selfEmit = false;
 
+	/**
+	 * Number of paths drawn on this peer, to identify them while they are
+	 * being drawn.
+	 */
+	private final AtomicInteger strokeCount = new AtomicInteger();
+
+	/**
+	 * Most points of a path being drawn that are emitted at once, 0 to only
+	 * emit paths when they are finished.
+	 */
+	private int strokeBatch = 16;
+
 	/**
 	 * The client manager is for setting up connections with whiteboard server.
 	 */
@@ -210,7 +271,7 @@ public class WhiteboardApp {
 	 * need to modify these things... don't modify these things [LOTR reference?].
 	 */
 	
-	JButton clearBtn, blackBtn, redBtn, createBoardBtn, deleteBoardBtn, undoBtn;
+	JButton clearBtn, blackBtn, redBtn, createBoardBtn, deleteBoardBtn, undoBtn, saveBoardBtn, openBoardBtn;
 	JCheckBox sharedCheckbox ;
 	DrawArea drawArea;
 	JComboBox<String> boardComboBox;
@@ -247,8 +308,9 @@ public class WhiteboardApp {
 	 * @return peer:port:boardid
 	 */
 	public static String getBoardName(String data) {
-		String[] parts=data.split("%",2);
-		return parts[0];
+		// not split, which would copy the rest of a whole board
+		int end=data.indexOf('%');
+		return end<0?data:data.substring(0,end);
 	}
 	
 	/**
@@ -386,12 +448,31 @@ public class WhiteboardApp {
 			// listen to the whiteboard peer event when connection established
 			peerConnection.on(PeerManager.peerStarted, (eventArgs) -> {
 				Endpoint endpoint = (Endpoint) eventArgs[0];
+				// listen to BOARD_DATA_BINARY then update the whiteboard
+				endpoint.onBulk(boardDataBinary+":"+peerBoard, (streamId,data,length)->{
+					Whiteboard peerWhiteboard = whiteboards.get(peerBoard);
+					if (length>Integer.MAX_VALUE || peerWhiteboard==null) return;
+					ByteBuffer bytes = ByteBuffer.allocate((int) length);
+					while (bytes.hasRemaining()) {
+						if (data.read(bytes)==-1) break;
+					}
+					bytes.flip();
+					if (!peerWhiteboard.whiteboardFromBinary(peerBoard, bytes)) {
+						endpoint.emit(getBoardData, peerBoard);
+						return;
+					}
+					log.info("Getting new whiteboard data");
+					if (selectedBoard==peerWhiteboard) {
+						// drawn from scratch, in parallel if it is large
+						selectedBoard.draw(drawArea);
+					}
+				});
 				// listen to the whiteboard peers' operation or query update
 				endpoint.on(boardData, (Args) -> {
 					// listen to BOARD_DATA then update the whiteboard
 					Whiteboard peerWhiteboard = whiteboards.get(peerBoard);
-					String currentBoard = getBoardName((String) Args[0]);
-					String peerData = getBoardData((String) Args[0]);
+					String data = (String) Args[0];
+					String currentBoard = getBoardName(data);
 					// Check if gets the correct board
 					if (!currentBoard.equals(peerBoard)) {
 						endpoint.emit(getBoardData, peerBoard);
@@ -399,9 +480,14 @@ public class WhiteboardApp {
 						log.warning("Required board: " + peerBoard + "while received board" + currentBoard);
 						return;
 					}
-					peerWhiteboard.whiteboardFromString(peerBoard, peerData);
+					// parse the board data in place, after the name
+					peerWhiteboard.whiteboardFromString(peerBoard, data, currentBoard.length()+1);
 					whiteboards.replace(currentBoard,whiteboards.get(currentBoard), peerWhiteboard);
 					log.info("Getting new whiteboard data");
+					if (selectedBoard==peerWhiteboard) {
+						// drawn from scratch, in parallel if it is large
+						selectedBoard.draw(drawArea);
+					}
 
 				}).on(boardPathUpdate, (Args) -> {
 					if (selfEmit){
@@ -431,6 +517,12 @@ public class WhiteboardApp {
 				}).on(boardPathAccepted, (Args) -> {
 					// New board path accepted
 					System.out.print("new path add successfully on board" + (String) Args[0]);
+				}).on(boardStrokePoints, (Args) -> {
+					// points of a path being drawn on another peer
+					strokeUpdateReceived(endpoint, boardStrokePoints, (String) Args[0]);
+				}).on(boardStrokeCommit, (Args) -> {
+					// a path being drawn on another peer is finished
+					strokeUpdateReceived(endpoint, boardStrokeCommit, (String) Args[0]);
 				}).on(boardUndoUpdate, (Args) -> {
 					if (selfEmit){
 						selfEmit = false;
@@ -489,7 +581,7 @@ public class WhiteboardApp {
 					log.info("whiteboard operation failed");
 					String boardDetail = (String) Args[0];
 					String boardName = getBoardName(boardDetail);
-					endpoint.emit(getBoardData, boardName);
+					endpoint.emit(getBoardDataBinary, boardName);
 					log.info("trying to re-synchronize the whiteboard data");
 				}).on(boardDeleted, (Args) -> {
 					// Board Deleted
@@ -519,8 +611,8 @@ public class WhiteboardApp {
 						}
 						log.info("new board added: " + peerBoard);
 						log.info("querying a new whiteboard " + peerBoard);
-						// emit GET_BOARD_DATA
-						endpoint.emit(getBoardData, peerBoard);
+						// emit GET_BOARD_DATA_BINARY
+						endpoint.emit(getBoardDataBinary, peerBoard);
 						log.info("getting data for whiteboard " + peerBoard);
 					}
 				}
@@ -579,6 +671,81 @@ public class WhiteboardApp {
 	}
 	
 	
+	/**
+	 * A path being drawn on another peer has been updated: show the update, and
+	 * pass it on to the other peers listening to the board if this peer owns it.
+	 * @param source - the peer the update came from
+	 * @param updateMessage - {@link #boardStrokePoints} or {@link #boardStrokeCommit}
+	 * @param update - the update, host:port:boardid%strokeid[%PATH]
+	 */
+	private void strokeUpdateReceived(Endpoint source, String updateMessage, String update) {
+		String boardName = getBoardName(update);
+		Whiteboard board = whiteboards.get(boardName);
+		if (board == null) return;
+		int idStart = boardName.length()+1;
+		int idEnd = update.indexOf('%', idStart);
+		if (idStart > update.length()) {
+			log.warning("stroke update without a stroke id: " + update);
+			return;
+		}
+		String strokeId = update.substring(idStart, idEnd<0 ? update.length() : idEnd);
+		Rectangle changed;
+		if (updateMessage.equals(boardStrokePoints)) {
+			if (idEnd < 0) {
+				log.warning("stroke update without points: " + update);
+				return;
+			}
+			// parse the points in place, after the stroke id
+			changed = board.appendStroke(strokeId, new WhiteboardPath(update, idEnd+1, update.length()));
+		} else {
+			changed = board.endStroke(strokeId);
+		}
+		if (selectedBoard == board) {
+			drawArea.repaintStroke(changed);
+		}
+		if (!board.isRemote()) {
+			relayStrokeUpdate(source, board, updateMessage, update);
+		}
+	}
+
+	/**
+	 * Emit an update of a path being drawn to the peers listening to a board
+	 * owned by this peer. Unlike {@link #broadcastUpdate}, this does not change
+	 * the selfEmit flag, as the update does not change the board.
+	 * @param sourceClient - the peer the update came from, not emitted to (null
+	 * if the path is being drawn on this peer)
+	 * @param whiteboard - the whiteboard the path is being drawn on
+	 * @param updateMessage - {@link #boardStrokePoints} or {@link #boardStrokeCommit}
+	 * @param update - the update
+	 */
+	private void relayStrokeUpdate(Endpoint sourceClient, Whiteboard whiteboard, String updateMessage, String update) {
+		synchronized(clientEndpoints) {
+			clientEndpoints.forEach((client, boardName) -> {
+				if (client != sourceClient && boardName.equals(whiteboard.getName())) {
+					client.emit(updateMessage, update);
+				}
+			});
+		}
+	}
+
+	/**
+	 * Emit an update of a path being drawn on this peer, to the board owner if
+	 * the board is remote, otherwise to the peers listening to the board.
+	 * @param whiteboard - the whiteboard the path is being drawn on
+	 * @param updateMessage - {@link #boardStrokePoints} or {@link #boardStrokeCommit}
+	 * @param update - the update
+	 */
+	private void sendStrokeUpdate(Whiteboard whiteboard, String updateMessage, String update) {
+		if (whiteboard.isRemote()) {
+			Endpoint whiteboardPeer = whiteboardPeers.get(whiteboard.getName());
+			if (whiteboardPeer != null) {
+				whiteboardPeer.emit(updateMessage, update);
+			}
+		} else {
+			relayStrokeUpdate(null, whiteboard, updateMessage, update);
+		}
+	}
+	
 	/******
 	 * 
 	 * Methods to manipulate data locally. Distributed systems related code has been
@@ -619,6 +786,15 @@ public class WhiteboardApp {
 					endpoint.emit(boardData, board.toString());
 					System.out.println("board" + boardName + " data send.");
 				}
+			}).on(getBoardDataBinary, (Args) -> {
+				// listen to get board data query, for the binary format
+				String boardName=(String)Args[0];
+				System.out.println("emitting board " + boardName + " binary data to "+ endpoint.getOtherEndpointId());
+				Whiteboard board=whiteboards.get(boardName);
+				if (board!=null) {
+					endpoint.sendBulk(boardDataBinary+":"+boardName, ByteBuffer.wrap(board.toBinary()));
+					System.out.println("board" + boardName + " binary data send.");
+				}
 			}).on(boardPathUpdate, (Args) -> {
 				if (selfEmit){
 					selfEmit = false;
@@ -649,6 +825,12 @@ public class WhiteboardApp {
 			}).on(boardPathAccepted, (Args) -> {
 				// New board path accepted
 				System.out.print("new path " + (String) Args[0] + " is added successfully on client: " + endpoint.getOtherEndpointId());
+			}).on(boardStrokePoints, (Args) -> {
+				// points of a path being drawn on a listening peer
+				strokeUpdateReceived(endpoint, boardStrokePoints, (String) Args[0]);
+			}).on(boardStrokeCommit, (Args) -> {
+				// a path being drawn on a listening peer is finished
+				strokeUpdateReceived(endpoint, boardStrokeCommit, (String) Args[0]);
 			}).on(boardUndoUpdate, (Args) -> {
 				if (selfEmit){
 					selfEmit = false;
@@ -859,6 +1041,47 @@ public class WhiteboardApp {
 		}
 	}
 	
+	/**
+	 * 
+	 * @return an id for a path being drawn, unique to it, peer:port:strokeN
+	 */
+	public String newStrokeId() {
+		return peerport+":stroke"+strokeCount.incrementAndGet();
+	}
+	
+	/**
+	 * Points have been added to the path being drawn on the selected board,
+	 * emit them so that other peers can show the path as it is drawn.
+	 * @param strokeId - identifies the path being drawn
+	 * @param points - the points added since they were last emitted
+	 */
+	public void strokePointsLocally(String strokeId, WhiteboardPath points) {
+		if(selectedBoard!=null) {
+			sendStrokeUpdate(selectedBoard, boardStrokePoints,
+					selectedBoard.getName()+"%"+strokeId+"%"+points.toString());
+		}
+	}
+	
+	/**
+	 * The path being drawn on the selected board, whose points have been
+	 * emitted, is finished, and has been added to the board if it could be.
+	 * @param strokeId - identifies the path that was being drawn
+	 */
+	public void strokeEndedLocally(String strokeId) {
+		if(selectedBoard!=null) {
+			sendStrokeUpdate(selectedBoard, boardStrokeCommit, selectedBoard.getName()+"%"+strokeId);
+		}
+	}
+	
+	/**
+	 * Set how many points of a path being drawn are emitted at most at once.
+	 * @param strokeBatch - 0 to only emit paths when they are finished
+	 */
+	public void setStrokeBatch(int strokeBatch) {
+		this.strokeBatch = strokeBatch;
+		if(drawArea!=null) drawArea.setStrokeBatch(strokeBatch);
+	}
+	
 	/**
 	 * Clear the selected whiteboard.
 	 */
@@ -921,6 +1144,45 @@ public class WhiteboardApp {
 		}
 	}
 	
+	/**
+	 * Save the selected board to a file in the binary format.
+	 * @param file
+	 */
+	public void saveBoard(File file) {
+		if(selectedBoard==null) {
+			log.severe("there is no selected board to save");
+			return;
+		}
+		try {
+			Files.write(file.toPath(), selectedBoard.toBinary());
+			log.info("saved board "+selectedBoard.getName()+" to "+file);
+		} catch (IOException e) {
+			log.severe("could not save board to "+file+": "+e.getMessage());
+			JOptionPane.showMessageDialog(null, "Could not save the board: "+e.getMessage());
+		}
+	}
+	
+	/**
+	 * Open a board saved in the binary format as a new local board.
+	 * @param file
+	 */
+	public void openBoard(File file) {
+		String name = peerport+":board"+Instant.now().toEpochMilli();
+		Whiteboard whiteboard = new Whiteboard(name,false);
+		try {
+			if(!whiteboard.whiteboardFromBinary(name, ByteBuffer.wrap(Files.readAllBytes(file.toPath())))) {
+				JOptionPane.showMessageDialog(null, "Not a saved board: "+file);
+				return;
+			}
+		} catch (IOException e) {
+			log.severe("could not open board "+file+": "+e.getMessage());
+			JOptionPane.showMessageDialog(null, "Could not open the board: "+e.getMessage());
+			return;
+		}
+		log.info("opened board "+file+" as "+name);
+		addBoard(whiteboard,true);
+	}
+	
 	/**
 	 * The variable selectedBoard has been set.
 	 */
@@ -974,6 +1236,7 @@ public class WhiteboardApp {
 			log.info("Unsharing board " +  whiteboard.getName());	
     	});
     	whiteboards.clear();
+    	if(drawArea!=null) log.info("drawing: "+drawArea.stats());
 	
     	// exist program
 		if(serverEndpoint != null) {
@@ -997,9 +1260,10 @@ public class WhiteboardApp {
 	 * Redraw the screen with the selected board
 	 */
 	public void drawSelectedWhiteboard() {
-		drawArea.clear();
 		if(selectedBoard!=null) {
 			selectedBoard.draw(drawArea);
+		} else {
+			drawArea.clear();
 		}
 	}
 	
@@ -1015,6 +1279,7 @@ public class WhiteboardApp {
 		content.setLayout(new BorderLayout());
 		// create draw area
 		drawArea = new DrawArea(this);
+		drawArea.setStrokeBatch(strokeBatch);
 
 		// add to content pane
 		content.add(drawArea, BorderLayout.CENTER);
@@ -1070,6 +1335,20 @@ public class WhiteboardApp {
 						return;
 					}
 					deleteBoard(selectedBoard.getName());
+				} else if (e.getSource() == saveBoardBtn) {
+					if(selectedBoard==null) {
+						log.severe("there is no selected board to save");
+						return;
+					}
+					JFileChooser chooser = new JFileChooser();
+					if(chooser.showSaveDialog(drawArea)==JFileChooser.APPROVE_OPTION) {
+						saveBoard(chooser.getSelectedFile());
+					}
+				} else if (e.getSource() == openBoardBtn) {
+					JFileChooser chooser = new JFileChooser();
+					if(chooser.showOpenDialog(drawArea)==JFileChooser.APPROVE_OPTION) {
+						openBoard(chooser.getSelectedFile());
+					}
 				}
 			}
 		};
@@ -1098,6 +1377,14 @@ public class WhiteboardApp {
 		undoBtn.addActionListener(actionListener);
 		undoBtn.setToolTipText("Remove the last path drawn on the board - triggers an undo on remote copies as well");
 		undoBtn.setAlignmentX(Component.CENTER_ALIGNMENT);
+		saveBoardBtn = new JButton("Save Board");
+		saveBoardBtn.addActionListener(actionListener);
+		saveBoardBtn.setToolTipText("Save the current board to a file");
+		saveBoardBtn.setAlignmentX(Component.CENTER_ALIGNMENT);
+		openBoardBtn = new JButton("Open Board");
+		openBoardBtn.addActionListener(actionListener);
+		openBoardBtn.setToolTipText("Open a saved board as a new board - creates it locally and not shared by default");
+		openBoardBtn.setAlignmentX(Component.CENTER_ALIGNMENT);
 		sharedCheckbox = new JCheckBox("Shared");
 		sharedCheckbox.addItemListener(new ItemListener() {    
 	         public void itemStateChanged(ItemEvent e) { 
@@ -1119,6 +1406,8 @@ public class WhiteboardApp {
 		controls.add(sharedCheckbox);
 		controls.add(createBoardBtn);
 		controls.add(deleteBoardBtn);
+		controls.add(saveBoardBtn);
+		controls.add(openBoardBtn);
 		controls.add(blackBtn);
 		controls.add(redBtn);
 		controls.add(undoBtn);
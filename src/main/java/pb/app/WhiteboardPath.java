@@ -2,12 +2,15 @@ package pb.app;
 
 import java.awt.Color;
 import java.awt.Graphics2D;
-import java.util.ArrayList;
+import java.awt.Rectangle;
+import java.util.Arrays;
 import java.util.logging.Logger;
 
 /**
- * Class for maintaining a path.
- * You probably don't need to modify this class.
+ * Class for maintaining a path. The points are packed into one int array,
+ * x then y for each point, rather than being held as a list of
+ * {@link WhiteboardPoint} objects, so a point takes 8 bytes instead of an
+ * object and a reference to it.
  * @author aaron
  *
  */
@@ -15,9 +18,35 @@ public class WhiteboardPath {
 	private static Logger log = Logger.getLogger(WhiteboardPath.class.getName());
 	
 	/**
-	 * List of points in the path.
+	 * Coordinates of the points in the path, x then y for each point. Only
+	 * the first 2*length entries are used.
 	 */
-	ArrayList<WhiteboardPoint> points;
+	private int[] coords;
+	
+	/**
+	 * Number of points in the path.
+	 */
+	private int length=0;
+	
+	/**
+	 * Smallest and largest coordinates of the points, kept as points are
+	 * added so that the area the path covers is known without scanning it.
+	 */
+	private int minX=Integer.MAX_VALUE;
+	private int minY=Integer.MAX_VALUE;
+	private int maxX=Integer.MIN_VALUE;
+	private int maxY=Integer.MIN_VALUE;
+	
+	/**
+	 * True once the path is complete and no more points will be added.
+	 */
+	private boolean finished=false;
+	
+	/**
+	 * The path in its text format, cached the first time a finished path is
+	 * converted, null until then.
+	 */
+	private String encoded;
 	
 	/**
 	 * Color of the path.
@@ -30,7 +59,17 @@ public class WhiteboardPath {
 	 */
 	public WhiteboardPath(Color color) {
 		this.color=color;
-		points=new ArrayList<>();
+		coords=new int[16];
+	}
+	
+	/**
+	 * Create a new path with a color and room for a number of points.
+	 * @param color
+	 * @param capacity
+	 */
+	WhiteboardPath(Color color,int capacity) {
+		this.color=color;
+		coords=new int[2*capacity];
 	}
 	
 	/**
@@ -39,15 +78,33 @@ public class WhiteboardPath {
 	 * @param data
 	 */
 	public WhiteboardPath(String data) {
-		String[] parts = data.split(">");
-		points=new ArrayList<>();
-		this.color=Color.black;
-		if(parts.length>=1) {
-			color=parseColor(parts[0]);
-			for(int i=1;i<parts.length;i++) {
-				points.add(new WhiteboardPoint(parts[i]));
-			}
+		this(data,0,data.length());
+	}
+	
+	/**
+	 * Initialize a path from part of a string, in the format color>POINTS.
+	 * The part is scanned once and the coordinates are parsed in place,
+	 * without splitting it into strings, so that loading a large board only
+	 * allocates the paths themselves.
+	 * @param data
+	 * @param start index of the first character of the path
+	 * @param end index after the last character of the path
+	 */
+	WhiteboardPath(String data,int start,int end) {
+		int colorEnd=indexOf(data,'>',start,end);
+		color=parseColor(data,start,colorEnd);
+		// count the points, so the array is allocated once at its size
+		int count=0;
+		for(int i=colorEnd;i<end-1;i++) {
+			if(data.charAt(i)=='>') count++;
+		}
+		coords=new int[2*count];
+		for(int i=colorEnd+1;i<end;) {
+			int pointEnd=indexOf(data,'>',i,end);
+			parsePoint(data,i,pointEnd);
+			i=pointEnd+1;
 		}
+		finished=true;
 	}
 	
 	/**
@@ -56,7 +113,27 @@ public class WhiteboardPath {
 	 * @param y
 	 */
 	public void addPoint(int x, int y) {
-		points.add(new WhiteboardPoint(x,y));
+		if(2*length==coords.length) {
+			coords=Arrays.copyOf(coords, 2*Math.max(8, length+length/2));
+		}
+		coords[2*length]=x;
+		coords[2*length+1]=y;
+		length++;
+		if(x<minX) minX=x;
+		if(x>maxX) maxX=x;
+		if(y<minY) minY=y;
+		if(y>maxY) maxY=y;
+		finished=false;
+		encoded=null;
+	}
+	
+	/**
+	 * The path is complete: release the room kept for adding points, and
+	 * cache the text format of the path from now on.
+	 */
+	public void finish() {
+		if(coords.length>2*length) coords=Arrays.copyOf(coords, 2*length);
+		finished=true;
 	}
 	
 	/**
@@ -64,7 +141,47 @@ public class WhiteboardPath {
 	 * @return the length of the path
 	 */
 	public int length() {
-		return points.size();
+		return length;
+	}
+	
+	/**
+	 * 
+	 * @param i index of a point in the path
+	 * @return the x coordinate of the point
+	 */
+	public int getX(int i) {
+		return coords[2*i];
+	}
+	
+	/**
+	 * 
+	 * @param i index of a point in the path
+	 * @return the y coordinate of the point
+	 */
+	public int getY(int i) {
+		return coords[2*i+1];
+	}
+	
+	/**
+	 * 
+	 * @return the smallest rectangle of pixels holding every point of the
+	 * path, empty if the path has no points
+	 */
+	public Rectangle getBounds() {
+		if(length==0) return new Rectangle();
+		return new Rectangle(minX, minY, (int)Math.min((long)maxX-minX+1, Integer.MAX_VALUE),
+				(int)Math.min((long)maxY-minY+1, Integer.MAX_VALUE));
+	}
+	
+	/**
+	 * 
+	 * @param area
+	 * @return true if the bounds of the path touch the area
+	 */
+	public boolean intersects(Rectangle area) {
+		if(length==0 || area.isEmpty()) return false;
+		return minX<(long)area.x+area.width && maxX>=area.x
+				&& minY<(long)area.y+area.height && maxY>=area.y;
 	}
 	
 	/**
@@ -72,13 +189,12 @@ public class WhiteboardPath {
 	 * @param g2
 	 */
 	public void drawOnBoard(Graphics2D g2) {
-		if(points.size()<=1) {
+		if(length<=1) {
 			return;
 		}
 		g2.setPaint(color);
-		for(int i=1;i<points.size();i++) {
-			g2.drawLine(points.get(i-1).x, points.get(i-1).y,
-					points.get(i).x, points.get(i).y);
+		for(int i=2;i<2*length;i+=2) {
+			g2.drawLine(coords[i-2], coords[i-1], coords[i], coords[i+1]);
 		}
 	}
 	
@@ -87,28 +203,75 @@ public class WhiteboardPath {
 	 * @return the path as a string in the format color>POINTS
 	 */
 	public String toString() {
+		if(encoded!=null) return encoded;
 		StringBuilder sb = new StringBuilder();
-		sb.append(colorString()+">");
-		for(int i=0;i<points.size();i++) {
-			sb.append(points.get(i).toString());
-			if(i!=points.size()-1) {
-				sb.append(">");
+		appendTo(sb);
+		String path = sb.toString();
+		if(finished) encoded = path;
+		return path;
+	}
+	
+	/**
+	 * Append the path to a string builder in the format color>POINTS,
+	 * without making a string of it first.
+	 * @param sb
+	 */
+	public void appendTo(StringBuilder sb) {
+		if(encoded!=null) {
+			sb.append(encoded);
+			return;
+		}
+		sb.append(colorString()).append('>');
+		for(int i=0;i<length;i++) {
+			sb.append(coords[2*i]).append(',').append(coords[2*i+1]);
+			if(i!=length-1) {
+				sb.append('>');
 			}
 		}
-		return sb.toString();
+	}
+	
+	/**
+	 * 
+	 * @param data
+	 * @param c
+	 * @param start
+	 * @param end
+	 * @return the index of the first c in data from start, or end if there
+	 * is none before end
+	 */
+	static int indexOf(String data,char c,int start,int end) {
+		for(int i=start;i<end;i++) {
+			if(data.charAt(i)==c) return i;
+		}
+		return end;
+	}
+	
+	/**
+	 * Add the point in the format x,y between start and end.
+	 */
+	private void parsePoint(String data,int start,int end) {
+		int comma=indexOf(data,',',start,end);
+		if(comma<end) {
+			try {
+				addPoint(Integer.parseInt(data,start,comma,10),Integer.parseInt(data,comma+1,end,10));
+				return;
+			} catch (NumberFormatException e) {
+				
+			}
+		}
+		log.severe("invalid point ["+data.substring(start,end)+"] defaulting to (0,0)");
+		addPoint(0,0);
 	}
 	
 	/*
 	 * Private methods to format/parse color value.
 	 */
 	
-	private Color parseColor(String data) {
-		switch(data) {
-		case "black": return Color.black;
-		case "red": return Color.red;
-		default: log.warning("color defaulting to black");
-			return Color.black;
-		}
+	private Color parseColor(String data,int start,int end) {
+		if(data.startsWith("black",start) && end-start==5) return Color.black;
+		if(data.startsWith("red",start) && end-start==3) return Color.red;
+		log.warning("color defaulting to black");
+		return Color.black;
 	}
 	
 	private String colorString() {
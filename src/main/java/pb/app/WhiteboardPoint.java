@@ -36,11 +36,11 @@ public class WhiteboardPoint {
 	 * @param data
 	 */
 	public WhiteboardPoint(String data) {
-		String[] parts=data.split(",");
-		if(parts.length==2) {
+		int comma=data.indexOf(',');
+		if(comma>=0) {
 			try {
-				x=Integer.parseInt(parts[0]);
-				y=Integer.parseInt(parts[1]);
+				x=Integer.parseInt(data,0,comma,10);
+				y=Integer.parseInt(data,comma+1,data.length(),10);
 				return;
 			} catch (NumberFormatException e) {
 				
@@ -0,0 +1,53 @@
+package pb.index;
+
+import java.util.regex.Pattern;
+
+/**
+ * The optional content hash that follows a filename in index updates, query
+ * responses and sources queries, in the form "filename|hash". The hash is the
+ * top SHA-256 digest of the file in lower case hex, so two files with the
+ * same hash have the same bytes whatever they are called.
+ *
+ * @see {@link pb.IndexServer}
+ * @author aaron
+ *
+ */
+public class ContentHash {
+
+	/**
+	 * Separates the filename from the hash.
+	 */
+	public static final char separator='|';
+
+	private static final Pattern hashSuffix=Pattern.compile(".*\\|[0-9a-f]{64}");
+
+	/**
+	 *
+	 * @param item "filename" or "filename|hash"
+	 * @return the hash or null if there isn't one
+	 */
+	public static String of(String item) {
+		if(!hashSuffix.matcher(item).matches()) return null;
+		return item.substring(item.length()-64);
+	}
+
+	/**
+	 *
+	 * @param item "filename" or "filename|hash"
+	 * @return the filename without the hash
+	 */
+	public static String strip(String item) {
+		if(!hashSuffix.matcher(item).matches()) return item;
+		return item.substring(0, item.length()-65);
+	}
+
+	/**
+	 *
+	 * @param filename
+	 * @param hash possibly null
+	 * @return "filename|hash" or just the filename if there is no hash
+	 */
+	public static String append(String filename,String hash) {
+		return hash==null?filename:filename+separator+hash;
+	}
+}
@@ -0,0 +1,1091 @@
+package pb.index;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Logger;
+
+import org.apache.commons.codec.DecoderException;
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.io.input.CountingInputStream;
+
+/**
+ * Optional on-disk storage for the {@link pb.IndexServer}. Every update is
+ * appended to a log as it arrives, and the log is periodically compacted into
+ * a segment file. The segment is memory mapped and read in place, so a
+ * restarted index server can answer queries from it straight away, without
+ * first loading every filename back into its in-memory maps. Only the log
+ * written since the last compaction (and the small table of peers) is
+ * replayed into memory on start up.
+ * <br/>
+ * The log is a sequence of records, each starting with a type byte:
+ * <ul>
+ * <li>{@link #indexRecord}: {@code writeUTF(filename)}, {@code writeUTF(peerport)}</li>
+ * <li>{@link #hashedIndexRecord}: {@code writeUTF(filename)}, {@code writeUTF(peerport)},
+ * {@code writeUTF(hash)}</li>
+ * <li>{@link #peerRecord}: {@code writeUTF(peerport)}, {@code writeLong(lastSeen)}</li>
+ * <li>{@link #expireRecord}: {@code writeUTF(peerport)}</li>
+ * </ul>
+ * An expired peer is hidden from the segment until the next compaction
+ * drops its entries for good. It stays hidden if it is seen again before
+ * then, the same as its in-memory entries are gone for good: its files come
+ * back as it gives them again.
+ * <br/>
+ * The segment has a header {@code magic, version, peerCount, fileCount,
+ * contentCount, contentOffset, tokenCount, tokenOffset, extensionCount,
+ * extensionOffset, gramCount, gramOffset}, followed by a table of absolute offsets for
+ * the peers and another for the files. A peer entry is {@code int length,
+ * UTF-8 bytes, long lastSeen, int n, int[n] file index}, so that the files of
+ * a peer that expires are found without reading the file table, and a file
+ * entry is {@code int length, UTF-8 bytes, int n, int[n] peer index, int[n]
+ * content index}, where the content
+ * index is -1 if the peer did not give a content hash. Both tables are sorted
+ * by name so that lookups can binary search. The content table at
+ * contentOffset has fixed size entries {@code byte[32] hash, int file index,
+ * int peer index}, sorted by hash, so that the files with some content can be
+ * found by binary search too.
+ * <br/>
+ * Queries are answered from three term tables, at tokenOffset, extensionOffset
+ * and gramOffset, so that they never scan the segment: the case folded tokens
+ * of the filenames, their extensions and their grams (see
+ * {@link TokenIndex#grams(String)}). Each table is {@code count} absolute
+ * offsets followed by entries {@code int length, UTF-8 bytes, int n, int[n]
+ * file index}, sorted by term. A segment with any other version than
+ * {@link #segmentVersion} is ignored like any other invalid segment.
+ *
+ * @see {@link pb.IndexServer}
+ * @author aaron
+ *
+ */
+public class IndexStore {
+	private static Logger log = Logger.getLogger(IndexStore.class.getName());
+
+	/**
+	 * Log record for an index update.
+	 */
+	private static final byte indexRecord = 1;
+
+	/**
+	 * Log record for a peer update.
+	 */
+	private static final byte peerRecord = 2;
+
+	/**
+	 * Log record for a peer that has expired.
+	 */
+	private static final byte expireRecord = 3;
+
+	/**
+	 * Log record for an index update with a content hash.
+	 */
+	private static final byte hashedIndexRecord = 4;
+
+	/**
+	 * Identifies a segment file.
+	 */
+	private static final int segmentMagic = 0x50424958; // "PBIX"
+
+	/**
+	 * Segment format version.
+	 */
+	private static final int segmentVersion = 4;
+
+	/**
+	 * Size of the segment header in bytes.
+	 */
+	private static final int headerSize = 48;
+
+	/**
+	 * Size of a content table entry in bytes.
+	 */
+	private static final int contentEntrySize = 40;
+
+	/**
+	 * The log of updates since the last compaction.
+	 */
+	private final File logFile;
+
+	/**
+	 * The log that is currently being compacted, if any. It is only deleted
+	 * after the new segment has been written, so if we crash part way through
+	 * it is simply replayed again on start up.
+	 */
+	private final File compactingLogFile;
+
+	/**
+	 * The compacted, memory mapped segment.
+	 */
+	private final File segmentFile;
+
+	/**
+	 * Output for appending to the log.
+	 */
+	private DataOutputStream logOut;
+
+	/**
+	 * The currently mapped segment, replaced as a whole when compaction
+	 * finishes so readers never see a half written segment.
+	 */
+	private volatile Segment segment;
+
+	/**
+	 * Peers that have expired since the segment was written. Their entries
+	 * in the segment are ignored.
+	 */
+	private final Set<String> expiredPeers = ConcurrentHashMap.newKeySet();
+
+	/**
+	 * The expired peers at the time the log was rotated, these are the ones
+	 * that the compaction removes.
+	 */
+	private Set<String> compactingExpiredPeers = new HashSet<>();
+
+	/**
+	 * Open (or create) the index store in the given directory.
+	 * @param dir directory to keep the log and segment files in
+	 * @throws IOException if the directory or log can't be opened
+	 */
+	public IndexStore(File dir) throws IOException {
+		if(!dir.isDirectory() && !dir.mkdirs()) {
+			throw new IOException("could not create index directory: "+dir);
+		}
+		logFile = new File(dir,"index.log");
+		compactingLogFile = new File(dir,"index.log.compacting");
+		segmentFile = new File(dir,"index.seg");
+		segment = Segment.map(segmentFile);
+		if(segment!=null) {
+			log.info("mapped index segment with "+segment.fileCount+" files and "
+					+segment.peerCount+" peers");
+		}
+	}
+
+	/**
+	 * Load the peer table from the segment and replay the logs into the given
+	 * maps, then open the log for appending. The files in the segment are
+	 * not loaded, they are read from the mapped segment when needed.
+	 * @param keyValueMap filename to set of peers
+	 * @param fileHashes filename to peer to content hash
+	 * @param lastTimeSeen peer to last time seen
+	 * @throws IOException if the log can't be opened for appending
+	 */
+	public void replay(Map<String,Set<String>> keyValueMap,Map<String,Map<String,String>> fileHashes,
+			Map<String,Long> lastTimeSeen) throws IOException {
+		Segment current = segment;
+		if(current!=null) {
+			for(int i=0;i<current.peerCount;i++) {
+				lastTimeSeen.put(current.peer(i), current.peerLastSeen(i));
+			}
+		}
+		if(compactingLogFile.exists()) {
+			replayLog(compactingLogFile,keyValueMap,fileHashes,lastTimeSeen);
+		}
+		if(logFile.exists()) {
+			replayLog(logFile,keyValueMap,fileHashes,lastTimeSeen);
+		}
+		openLog();
+	}
+
+	/**
+	 * Replay a single log file. A partially written record at the end of the
+	 * log, e.g. from a crash, is truncated away.
+	 */
+	private void replayLog(File file,Map<String,Set<String>> keyValueMap,
+			Map<String,Map<String,String>> fileHashes,Map<String,Long> lastTimeSeen) throws IOException {
+		long good=0;
+		int records=0;
+		try(CountingInputStream counter = new CountingInputStream(
+				new BufferedInputStream(new FileInputStream(file)));
+			DataInputStream in = new DataInputStream(counter)) {
+			while(true) {
+				byte type = in.readByte();
+				switch(type) {
+				case indexRecord:
+					String filename = in.readUTF();
+					String peerport = in.readUTF();
+					keyValueMap.computeIfAbsent(filename,(k)->new HashSet<String>()).add(peerport);
+					break;
+				case hashedIndexRecord:
+					String hashedFilename = in.readUTF();
+					String hashedPeerport = in.readUTF();
+					String hash = in.readUTF();
+					keyValueMap.computeIfAbsent(hashedFilename,(k)->new HashSet<String>()).add(hashedPeerport);
+					fileHashes.computeIfAbsent(hashedFilename,(k)->new HashMap<String,String>())
+						.put(hashedPeerport,hash);
+					break;
+				case peerRecord:
+					String peer = in.readUTF();
+					long lastSeen = in.readLong();
+					lastTimeSeen.merge(peer,lastSeen,Math::max);
+					break;
+				case expireRecord:
+					String expired = in.readUTF();
+					lastTimeSeen.remove(expired);
+					keyValueMap.values().removeIf((peerports)->{
+						peerports.remove(expired);
+						return peerports.isEmpty();
+					});
+					fileHashes.values().removeIf((hashes)->{
+						hashes.remove(expired);
+						return hashes.isEmpty();
+					});
+					expiredPeers.add(expired);
+					break;
+				default:
+					throw new IOException("unknown log record type: "+type);
+				}
+				good=counter.getByteCount();
+				records++;
+			}
+		} catch (EOFException e) {
+			// end of the log
+		} catch (IOException e) {
+			log.warning("index log is corrupt after "+records+" records: "+e.getMessage());
+		}
+		if(good<file.length()) {
+			log.warning("truncating index log "+file+" to "+good+" bytes");
+			try(FileChannel channel = FileChannel.open(file.toPath(),StandardOpenOption.WRITE)) {
+				channel.truncate(good);
+			}
+		}
+		log.info("replayed "+records+" records from "+file);
+	}
+
+	private void openLog() throws IOException {
+		logOut = new DataOutputStream(new BufferedOutputStream(
+				new FileOutputStream(logFile,true)));
+	}
+
+	/**
+	 * Append an index update to the log.
+	 * @param filename
+	 * @param peerport
+	 * @param hash the content hash, null if the peer did not give one
+	 */
+	public synchronized void appendIndexUpdate(String filename,String peerport,String hash) {
+		try {
+			logOut.writeByte(hash==null?indexRecord:hashedIndexRecord);
+			logOut.writeUTF(filename);
+			logOut.writeUTF(peerport);
+			if(hash!=null) logOut.writeUTF(hash);
+			logOut.flush();
+		} catch (IOException e) {
+			log.severe("could not append index update to the log: "+e.getMessage());
+		}
+	}
+
+	/**
+	 * Append a peer update to the log.
+	 * @param peerport
+	 * @param lastSeen
+	 */
+	public synchronized void appendPeerUpdate(String peerport,long lastSeen) {
+		try {
+			logOut.writeByte(peerRecord);
+			logOut.writeUTF(peerport);
+			logOut.writeLong(lastSeen);
+			logOut.flush();
+		} catch (IOException e) {
+			log.severe("could not append peer update to the log: "+e.getMessage());
+		}
+	}
+
+	/**
+	 * Append a peer expiry to the log and hide the peer's entries in the
+	 * segment.
+	 * @param peerport
+	 */
+	public synchronized void appendPeerExpired(String peerport) {
+		try {
+			logOut.writeByte(expireRecord);
+			logOut.writeUTF(peerport);
+			logOut.flush();
+		} catch (IOException e) {
+			log.severe("could not append peer expiry to the log: "+e.getMessage());
+		}
+		expiredPeers.add(peerport);
+	}
+
+	/**
+	 *
+	 * @param peerport
+	 * @return true if the peer has expired since the segment was written, so
+	 * that its entries in the segment are hidden
+	 */
+	public boolean isExpired(String peerport) {
+		return expiredPeers.contains(peerport);
+	}
+
+	/**
+	 * Set the current log aside for compaction and start a fresh one. The
+	 * caller must hold whatever locks make the snapshot of the in-memory
+	 * maps consistent with the log, so that no update is in neither.
+	 * @throws IOException
+	 */
+	public synchronized void rotateLog() throws IOException {
+		compactingExpiredPeers = new HashSet<>(expiredPeers);
+		logOut.close();
+		if(compactingLogFile.exists()) {
+			// a previous compaction failed, keep its records as well
+			try(FileOutputStream out = new FileOutputStream(compactingLogFile,true)) {
+				Files.copy(logFile.toPath(),out);
+			}
+			Files.delete(logFile.toPath());
+		} else {
+			Files.move(logFile.toPath(),compactingLogFile.toPath(),
+					StandardCopyOption.ATOMIC_MOVE);
+		}
+		openLog();
+	}
+
+	/**
+	 * Merge the current segment with a snapshot of the in-memory maps, write
+	 * it as the new segment and map it. Must follow {@link #rotateLog()}.
+	 * @param keyValueMap snapshot of filename to set of peers
+	 * @param fileHashes snapshot of filename to peer to content hash
+	 * @param lastTimeSeen snapshot of peer to last time seen
+	 * @throws IOException
+	 */
+	public void compact(Map<String,Set<String>> keyValueMap,Map<String,Map<String,String>> fileHashes,
+			Map<String,Long> lastTimeSeen) throws IOException {
+		Segment current = segment;
+		Set<String> expired;
+		synchronized(this) {
+			expired = compactingExpiredPeers;
+		}
+		TreeMap<String,TreeSet<String>> files = new TreeMap<>();
+		Map<String,Map<String,String>> hashes = new HashMap<>();
+		TreeMap<String,Long> peers = new TreeMap<>();
+		if(current!=null) {
+			for(int i=0;i<current.peerCount;i++) {
+				String peer = current.peer(i);
+				if(!expired.contains(peer)) peers.put(peer,current.peerLastSeen(i));
+			}
+			for(int i=0;i<current.fileCount;i++) {
+				Set<String> peerports = current.peers(i);
+				peerports.removeAll(expired);
+				if(peerports.isEmpty()) continue;
+				String filename = current.filename(i);
+				files.computeIfAbsent(filename,(k)->new TreeSet<String>()).addAll(peerports);
+				Map<String,String> fileHashesOf = current.hashes(i);
+				fileHashesOf.keySet().retainAll(peerports);
+				if(!fileHashesOf.isEmpty()) hashes.put(filename,fileHashesOf);
+			}
+		}
+		lastTimeSeen.forEach((peer,lastSeen)->{
+			peers.merge(peer,lastSeen,Math::max);
+		});
+		keyValueMap.forEach((filename,peerports)->{
+			files.computeIfAbsent(filename,(k)->new TreeSet<String>()).addAll(peerports);
+		});
+		fileHashes.forEach((filename,peerHashes)->{
+			hashes.computeIfAbsent(filename,(k)->new HashMap<String,String>()).putAll(peerHashes);
+		});
+		// every peer referred to by a file needs an entry in the peer table
+		files.values().forEach((peerports)->{
+			peerports.forEach((peer)->{peers.putIfAbsent(peer,0L);});
+		});
+
+		File tmp = new File(segmentFile.getPath()+".tmp");
+		writeSegment(tmp,files,hashes,peers);
+		Files.move(tmp.toPath(),segmentFile.toPath(),
+				StandardCopyOption.REPLACE_EXISTING,StandardCopyOption.ATOMIC_MOVE);
+		segment = Segment.map(segmentFile);
+		expiredPeers.removeAll(expired);
+		Files.deleteIfExists(compactingLogFile.toPath());
+		log.info("compacted index segment to "+files.size()+" files and "+peers.size()+" peers");
+	}
+
+	private static void writeSegment(File file,TreeMap<String,TreeSet<String>> files,
+			Map<String,Map<String,String>> hashes,TreeMap<String,Long> peers) throws IOException {
+		List<byte[]> peerNames = new ArrayList<>(peers.size());
+		Map<String,Integer> peerIndex = new HashMap<>();
+		for(String peer : peers.keySet()) {
+			peerIndex.put(peer,peerNames.size());
+			peerNames.add(peer.getBytes(StandardCharsets.UTF_8));
+		}
+		List<byte[]> fileNames = new ArrayList<>(files.size());
+		for(String filename : files.keySet()) {
+			fileNames.add(filename.getBytes(StandardCharsets.UTF_8));
+		}
+		List<List<Integer>> peerFiles = new ArrayList<>(peers.size());
+		for(int p=0;p<peers.size();p++) {
+			peerFiles.add(new ArrayList<Integer>());
+		}
+		List<ContentEntry> content = new ArrayList<>();
+		int f=0;
+		for(Map.Entry<String,TreeSet<String>> entry : files.entrySet()) {
+			for(String peer : entry.getValue()) {
+				peerFiles.get(peerIndex.get(peer)).add(f);
+			}
+			Map<String,String> peerHashes = hashes.get(entry.getKey());
+			if(peerHashes!=null) {
+				for(String peer : entry.getValue()) {
+					String hash = peerHashes.get(peer);
+					if(hash!=null) content.add(new ContentEntry(hash,f,peerIndex.get(peer)));
+				}
+			}
+			f++;
+		}
+		content.sort((a,b)->a.hash.compareTo(b.hash));
+		Map<String,Integer> contentIndex = new HashMap<>();
+		for(int c=0;c<content.size();c++) {
+			contentIndex.put(content.get(c).file+":"+content.get(c).peer,c);
+		}
+		TreeMap<String,List<Integer>> tokens = new TreeMap<>();
+		TreeMap<String,List<Integer>> extensions = new TreeMap<>();
+		TreeMap<String,List<Integer>> grams = new TreeMap<>();
+		f=0;
+		for(String filename : files.keySet()) {
+			String folded = TokenIndex.fold(filename);
+			for(String token : new TreeSet<String>(TokenIndex.tokenize(folded))) {
+				tokens.computeIfAbsent(token,(k)->new ArrayList<Integer>()).add(f);
+			}
+			String ext = TokenIndex.extension(folded);
+			if(ext!=null) extensions.computeIfAbsent(ext,(k)->new ArrayList<Integer>()).add(f);
+			for(String gram : TokenIndex.grams(folded)) {
+				grams.computeIfAbsent(gram,(k)->new ArrayList<Integer>()).add(f);
+			}
+			f++;
+		}
+
+		try(FileOutputStream fileOut = new FileOutputStream(file);
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOut))) {
+			out.writeInt(segmentMagic);
+			out.writeInt(segmentVersion);
+			out.writeInt(peers.size());
+			out.writeInt(files.size());
+			out.writeInt(content.size());
+			int offset = headerSize+4*(peers.size()+files.size());
+			int i=0;
+			for(byte[] name : peerNames) {
+				offset+=4+name.length+8+4+4*peerFiles.get(i).size();
+				i++;
+			}
+			i=0;
+			for(TreeSet<String> peerports : files.values()) {
+				offset+=4+fileNames.get(i).length+4+8*peerports.size();
+				i++;
+			}
+			out.writeInt(offset);
+			// the term tables follow the content table
+			int tokenOffset = offset+contentEntrySize*content.size();
+			byte[] tokenTable = termTable(tokens,tokenOffset);
+			int extensionOffset = tokenOffset+tokenTable.length;
+			byte[] extensionTable = termTable(extensions,extensionOffset);
+			int gramOffset = extensionOffset+extensionTable.length;
+			byte[] gramTable = termTable(grams,gramOffset);
+			out.writeInt(tokens.size());
+			out.writeInt(tokenOffset);
+			out.writeInt(extensions.size());
+			out.writeInt(extensionOffset);
+			out.writeInt(grams.size());
+			out.writeInt(gramOffset);
+			// offset tables
+			offset = headerSize+4*(peers.size()+files.size());
+			i=0;
+			for(byte[] name : peerNames) {
+				out.writeInt(offset);
+				offset+=4+name.length+8+4+4*peerFiles.get(i).size();
+				i++;
+			}
+			i=0;
+			for(TreeSet<String> peerports : files.values()) {
+				// names are in the same order as the tree
+				out.writeInt(offset);
+				offset+=4+fileNames.get(i).length+4+8*peerports.size();
+				i++;
+			}
+			// entries
+			i=0;
+			for(Long lastSeen : peers.values()) {
+				out.writeInt(peerNames.get(i).length);
+				out.write(peerNames.get(i));
+				out.writeLong(lastSeen);
+				out.writeInt(peerFiles.get(i).size());
+				for(int index : peerFiles.get(i)) {
+					out.writeInt(index);
+				}
+				i++;
+			}
+			i=0;
+			for(TreeSet<String> peerports : files.values()) {
+				out.writeInt(fileNames.get(i).length);
+				out.write(fileNames.get(i));
+				out.writeInt(peerports.size());
+				for(String peer : peerports) {
+					out.writeInt(peerIndex.get(peer));
+				}
+				for(String peer : peerports) {
+					out.writeInt(contentIndex.getOrDefault(i+":"+peerIndex.get(peer),-1));
+				}
+				i++;
+			}
+			for(ContentEntry entry : content) {
+				out.write(Hex.decodeHex(entry.hash));
+				out.writeInt(entry.file);
+				out.writeInt(entry.peer);
+			}
+			out.write(tokenTable);
+			out.write(extensionTable);
+			out.write(gramTable);
+			out.flush();
+			fileOut.getFD().sync();
+		} catch (DecoderException e) {
+			throw new IOException("content hash is not hex: "+e.getMessage());
+		}
+	}
+
+	/**
+	 * Lay out a term table.
+	 * @param terms term to the (ascending) indexes of the files with the term
+	 * @param tableOffset where the table goes in the segment
+	 * @return the table
+	 */
+	private static byte[] termTable(TreeMap<String,List<Integer>> terms,int tableOffset) throws IOException {
+		ByteArrayOutputStream entries = new ByteArrayOutputStream();
+		DataOutputStream entriesOut = new DataOutputStream(entries);
+		ByteArrayOutputStream table = new ByteArrayOutputStream();
+		DataOutputStream tableOut = new DataOutputStream(table);
+		int base = tableOffset+4*terms.size();
+		for(Map.Entry<String,List<Integer>> entry : terms.entrySet()) {
+			tableOut.writeInt(base+entriesOut.size());
+			byte[] term = entry.getKey().getBytes(StandardCharsets.UTF_8);
+			entriesOut.writeInt(term.length);
+			entriesOut.write(term);
+			entriesOut.writeInt(entry.getValue().size());
+			for(int file : entry.getValue()) {
+				entriesOut.writeInt(file);
+			}
+		}
+		entries.writeTo(tableOut);
+		return table.toByteArray();
+	}
+
+	/**
+	 *
+	 * @return the number of files in the mapped segment
+	 */
+	public int segmentFileCount() {
+		Segment current = segment;
+		return current==null?0:current.fileCount;
+	}
+
+	/**
+	 *
+	 * @param prefix case folded prefix
+	 * @return filenames in the segment with a token that starts with the prefix
+	 */
+	public Set<String> segmentPrefix(String prefix) {
+		Segment current = segment;
+		if(current==null) return new HashSet<String>();
+		BitSet found = new BitSet();
+		for(int i=current.findTerm(current.tokens,prefix);
+				i<current.tokens.count && current.term(current.tokens,i).startsWith(prefix);i++) {
+			current.addFiles(current.tokens,i,found);
+		}
+		return visible(current,found);
+	}
+
+	/**
+	 *
+	 * @param token case folded token
+	 * @return filenames in the segment that have the token
+	 */
+	public Set<String> segmentToken(String token) {
+		return segmentExact(segment,token,false);
+	}
+
+	/**
+	 *
+	 * @param ext case folded extension
+	 * @return filenames in the segment with the extension
+	 */
+	public Set<String> segmentExtension(String ext) {
+		return segmentExact(segment,ext,true);
+	}
+
+	private Set<String> segmentExact(Segment current,String term,boolean extension) {
+		if(current==null) return new HashSet<String>();
+		Segment.Terms terms = extension?current.extensions:current.tokens;
+		BitSet found = new BitSet();
+		int i = current.findTerm(terms,term);
+		if(i<terms.count && current.term(terms,i).equals(term)) current.addFiles(terms,i,found);
+		return visible(current,found);
+	}
+
+	/**
+	 * Find the filenames that contain a term from the grams table. A term no
+	 * longer than a gram is the start of a gram, a longer term is in the files
+	 * that have all of its grams. Candidates are checked against the filename.
+	 * @param term case folded term
+	 * @return filenames in the segment that contain the term
+	 */
+	public Set<String> segmentSubstring(String term) {
+		Segment current = segment;
+		if(current==null) return new HashSet<String>();
+		BitSet found = new BitSet();
+		if(term.isEmpty()) {
+			found.set(0,current.fileCount);
+		} else if(term.length()<=TokenIndex.gramLength) {
+			for(int i=current.findTerm(current.grams,term);
+					i<current.grams.count && current.term(current.grams,i).startsWith(term);i++) {
+				current.addFiles(current.grams,i,found);
+			}
+		} else {
+			for(int start=0;start+TokenIndex.gramLength<=term.length();start++) {
+				String gram = term.substring(start,start+TokenIndex.gramLength);
+				int i = current.findTerm(current.grams,gram);
+				BitSet files = new BitSet();
+				if(i<current.grams.count && current.term(current.grams,i).equals(gram)) {
+					current.addFiles(current.grams,i,files);
+				}
+				if(start==0) found=files;
+				else found.and(files);
+				if(found.isEmpty()) break;
+			}
+		}
+		Set<String> result = new HashSet<>();
+		for(int i=found.nextSetBit(0);i>=0;i=found.nextSetBit(i+1)) {
+			String filename = current.filename(i);
+			if(TokenIndex.fold(filename).contains(term) && isVisible(current,i)) result.add(filename);
+		}
+		return result;
+	}
+
+	/**
+	 *
+	 * @return the filenames of the files, leaving out files whose peers have
+	 * all expired
+	 */
+	private Set<String> visible(Segment current,BitSet files) {
+		Set<String> result = new HashSet<>();
+		for(int i=files.nextSetBit(0);i>=0;i=files.nextSetBit(i+1)) {
+			if(isVisible(current,i)) result.add(current.filename(i));
+		}
+		return result;
+	}
+
+	private boolean isVisible(Segment current,int file) {
+		if(expiredPeers.isEmpty()) return true;
+		Set<String> peerports = current.peers(file);
+		peerports.removeAll(expiredPeers);
+		return !peerports.isEmpty();
+	}
+
+	/**
+	 *
+	 * @param peerport
+	 * @return the files that the segment records the peer as having, whether
+	 * or not it has expired, possibly empty
+	 */
+	public List<String> segmentFiles(String peerport) {
+		Segment current = segment;
+		List<String> filenames = new ArrayList<>();
+		if(current==null) return filenames;
+		int p = current.findPeer(peerport);
+		if(p<0) return filenames;
+		for(int file : current.peerFiles(p)) {
+			filenames.add(current.filename(file));
+		}
+		return filenames;
+	}
+
+	/**
+	 *
+	 * @param filename
+	 * @return the peers that the segment records as having the file, possibly
+	 * empty
+	 */
+	public Set<String> segmentPeers(String filename) {
+		Segment current = segment;
+		if(current==null) return new HashSet<String>();
+		int i = current.findFile(filename);
+		if(i<0) return new HashSet<String>();
+		Set<String> peerports = current.peers(i);
+		if(!expiredPeers.isEmpty()) peerports.removeAll(expiredPeers);
+		return peerports;
+	}
+
+	/**
+	 *
+	 * @param filename
+	 * @return the content hashes that the segment records for the file's
+	 * peers, peer to hash, possibly empty
+	 */
+	public Map<String,String> segmentHashes(String filename) {
+		Segment current = segment;
+		if(current==null) return new HashMap<String,String>();
+		int i = current.findFile(filename);
+		if(i<0) return new HashMap<String,String>();
+		Map<String,String> hashes = current.hashes(i);
+		if(!expiredPeers.isEmpty()) hashes.keySet().removeAll(expiredPeers);
+		return hashes;
+	}
+
+	/**
+	 *
+	 * @param hash
+	 * @return the files that the segment records as having the content, as
+	 * "PeerIP:PeerPort:filename" strings, possibly empty
+	 */
+	public List<String> segmentContent(String hash) {
+		Segment current = segment;
+		List<String> entries = new ArrayList<>();
+		if(current==null) return entries;
+		for(int[] entry : current.content(hash)) {
+			String peer = current.peer(entry[1]);
+			if(!expiredPeers.contains(peer)) entries.add(peer+":"+current.filename(entry[0]));
+		}
+		return entries;
+	}
+
+	/**
+	 * Close the log.
+	 */
+	public synchronized void close() {
+		try {
+			if(logOut!=null) logOut.close();
+		} catch (IOException e) {
+			log.warning("index log did not close properly: "+e.getMessage());
+		}
+	}
+
+	/**
+	 * An entry of the content table being written.
+	 */
+	private static class ContentEntry {
+		private final String hash;
+		private final int file;
+		private final int peer;
+
+		ContentEntry(String hash,int file,int peer) {
+			this.hash=hash;
+			this.file=file;
+			this.peer=peer;
+		}
+	}
+
+	/**
+	 * A read only view of a mapped segment file. All reads use absolute
+	 * positions so that any number of threads can read at the same time.
+	 */
+	private static class Segment {
+		private final MappedByteBuffer buffer;
+		private final int peerCount;
+		private final int fileCount;
+		private final int contentCount;
+		private final int contentOffset;
+		private final Terms tokens;
+		private final Terms extensions;
+		private final Terms grams;
+
+		/**
+		 * The count and offset of a term table.
+		 */
+		private static class Terms {
+			private final int count;
+			private final int offset;
+
+			Terms(int count,int offset) {
+				this.count=count;
+				this.offset=offset;
+			}
+		}
+
+		private Segment(MappedByteBuffer buffer) {
+			this.buffer=buffer;
+			peerCount=buffer.getInt(8);
+			fileCount=buffer.getInt(12);
+			contentCount=buffer.getInt(16);
+			contentOffset=buffer.getInt(20);
+			tokens=new Terms(buffer.getInt(24),buffer.getInt(28));
+			extensions=new Terms(buffer.getInt(32),buffer.getInt(36));
+			grams=new Terms(buffer.getInt(40),buffer.getInt(44));
+		}
+
+		/**
+		 * Map a segment file.
+		 * @param file
+		 * @return the segment or null if there isn't a valid one
+		 */
+		static Segment map(File file) throws IOException {
+			if(!file.exists()) return null;
+			try(FileChannel channel = FileChannel.open(file.toPath(),StandardOpenOption.READ)) {
+				if(channel.size()<headerSize) {
+					log.severe("index segment is too short, ignoring it: "+file);
+					return null;
+				}
+				MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY,0,channel.size());
+				if(buffer.getInt(0)!=segmentMagic || buffer.getInt(4)!=segmentVersion) {
+					log.severe("not a valid index segment, ignoring it: "+file);
+					return null;
+				}
+				Segment segment = new Segment(buffer);
+				if(!segment.tablesFit()) {
+					log.severe("index segment is corrupt, ignoring it: "+file);
+					return null;
+				}
+				return segment;
+			}
+		}
+
+		/**
+		 * Check that the tables that the header describes are in the file,
+		 * without reading the tables.
+		 */
+		private boolean tablesFit() {
+			long size = buffer.capacity();
+			return peerCount>=0 && fileCount>=0 && contentCount>=0
+				&& headerSize+4L*peerCount+4L*fileCount<=size
+				&& contentOffset>=0 && contentOffset+(long)contentEntrySize*contentCount<=size
+				&& fits(tokens,size) && fits(extensions,size) && fits(grams,size);
+		}
+
+		private static boolean fits(Terms terms,long size) {
+			return terms.count>=0 && terms.offset>=0 && terms.offset+4L*terms.count<=size;
+		}
+
+		/**
+		 * An index read from the segment, checked so that a corrupt segment
+		 * can't refer outside a table.
+		 * @param i
+		 * @param count the size of the table
+		 * @return the index, or -1 if it is outside the table
+		 */
+		private static int checked(int i,int count) {
+			if(i>=0 && i<count) return i;
+			log.severe("index segment refers outside a table: "+i+" of "+count);
+			return -1;
+		}
+
+		private String string(int offset) {
+			ByteBuffer b = buffer.duplicate();
+			b.position(offset);
+			byte[] bytes = new byte[b.getInt()];
+			b.get(bytes);
+			return new String(bytes,StandardCharsets.UTF_8);
+		}
+
+		private int peerOffset(int i) {
+			return buffer.getInt(headerSize+4*i);
+		}
+
+		private int fileOffset(int i) {
+			return buffer.getInt(headerSize+4*(peerCount+i));
+		}
+
+		String peer(int i) {
+			return string(peerOffset(i));
+		}
+
+		long peerLastSeen(int i) {
+			int offset = peerOffset(i);
+			return buffer.getLong(offset+4+buffer.getInt(offset));
+		}
+
+		/**
+		 *
+		 * @param i index of a peer
+		 * @return the indexes of the peer's files, read from its entry
+		 */
+		List<Integer> peerFiles(int i) {
+			int offset = peerOffset(i);
+			offset+=4+buffer.getInt(offset)+8;
+			int n = buffer.getInt(offset);
+			List<Integer> files = new ArrayList<>(n);
+			for(int j=0;j<n;j++) {
+				int file = checked(buffer.getInt(offset+4+4*j),fileCount);
+				if(file>=0) files.add(file);
+			}
+			return files;
+		}
+
+		String filename(int i) {
+			return string(fileOffset(i));
+		}
+
+		Set<String> peers(int i) {
+			int offset = fileOffset(i);
+			offset+=4+buffer.getInt(offset);
+			int n = buffer.getInt(offset);
+			Set<String> peerports = new HashSet<>();
+			for(int j=0;j<n;j++) {
+				int p = checked(buffer.getInt(offset+4+4*j),peerCount);
+				if(p>=0) peerports.add(peer(p));
+			}
+			return peerports;
+		}
+
+		/**
+		 *
+		 * @param i index of a file
+		 * @return peer to content hash for the file's peers that gave one
+		 */
+		Map<String,String> hashes(int i) {
+			Map<String,String> hashes = new HashMap<>();
+			int offset = fileOffset(i);
+			offset+=4+buffer.getInt(offset);
+			int n = buffer.getInt(offset);
+			for(int j=0;j<n;j++) {
+				int c = buffer.getInt(offset+4+4*n+4*j);
+				if(c==-1) continue;
+				c = checked(c,contentCount);
+				int p = checked(buffer.getInt(offset+4+4*j),peerCount);
+				if(c>=0 && p>=0) hashes.put(peer(p), hash(c));
+			}
+			return hashes;
+		}
+
+		private String hash(int c) {
+			byte[] bytes = new byte[32];
+			ByteBuffer b = buffer.duplicate();
+			b.position(contentOffset+contentEntrySize*c);
+			b.get(bytes);
+			return Hex.encodeHexString(bytes);
+		}
+
+		/**
+		 * Compare the hash of a content table entry with a hash.
+		 * @param c index of the entry
+		 * @param hash
+		 * @return less than, equal to or greater than 0 as the entry's hash is
+		 * less than, equal to or greater than the hash
+		 */
+		private int compareHash(int c,byte[] hash) {
+			int offset = contentOffset+contentEntrySize*c;
+			for(int k=0;k<hash.length;k++) {
+				int cmp = Integer.compare(buffer.get(offset+k)&0xff,hash[k]&0xff);
+				if(cmp!=0) return cmp;
+			}
+			return 0;
+		}
+
+		/**
+		 * Binary search the (sorted) content table, comparing the hashes in
+		 * place.
+		 * @param hash
+		 * @return {file index, peer index} for each entry with the hash
+		 */
+		List<int[]> content(String hash) {
+			List<int[]> entries = new ArrayList<>();
+			byte[] key;
+			try {
+				key = Hex.decodeHex(hash);
+			} catch (DecoderException e) {
+				return entries;
+			}
+			if(key.length!=32) return entries;
+			int lo=0;
+			int hi=contentCount;
+			while(lo<hi) {
+				int mid=(lo+hi)>>>1;
+				if(compareHash(mid,key)<0) lo=mid+1;
+				else hi=mid;
+			}
+			for(int c=lo;c<contentCount && compareHash(c,key)==0;c++) {
+				int offset = contentOffset+contentEntrySize*c+32;
+				int file = checked(buffer.getInt(offset),fileCount);
+				int peer = checked(buffer.getInt(offset+4),peerCount);
+				if(file>=0 && peer>=0) entries.add(new int[] {file,peer});
+			}
+			return entries;
+		}
+
+		String term(Terms terms,int i) {
+			return string(buffer.getInt(terms.offset+4*i));
+		}
+
+		/**
+		 * Binary search a (sorted) term table.
+		 * @param terms
+		 * @param term
+		 * @return the index of the first term that is not less than the term
+		 */
+		int findTerm(Terms terms,String term) {
+			int lo=0;
+			int hi=terms.count;
+			while(lo<hi) {
+				int mid=(lo+hi)>>>1;
+				if(term(terms,mid).compareTo(term)<0) lo=mid+1;
+				else hi=mid;
+			}
+			return lo;
+		}
+
+		/**
+		 * Add the indexes of the files that have a term.
+		 * @param terms
+		 * @param i index of the term
+		 * @param files
+		 */
+		void addFiles(Terms terms,int i,BitSet files) {
+			int offset = buffer.getInt(terms.offset+4*i);
+			offset+=4+buffer.getInt(offset);
+			int n = buffer.getInt(offset);
+			for(int j=0;j<n;j++) {
+				int file = checked(buffer.getInt(offset+4+4*j),fileCount);
+				if(file>=0) files.set(file);
+			}
+		}
+
+		/**
+		 * Binary search the (sorted) peer table.
+		 * @param peerport
+		 * @return the index of the peer or -1 if it is not in the segment
+		 */
+		int findPeer(String peerport) {
+			int lo=0;
+			int hi=peerCount-1;
+			while(lo<=hi) {
+				int mid=(lo+hi)>>>1;
+				int cmp=peer(mid).compareTo(peerport);
+				if(cmp<0) lo=mid+1;
+				else if(cmp>0) hi=mid-1;
+				else return mid;
+			}
+			return -1;
+		}
+
+		/**
+		 * Binary search the (sorted) file table.
+		 * @param filename
+		 * @return the index of the file or -1 if it is not in the segment
+		 */
+		int findFile(String filename) {
+			int lo=0;
+			int hi=fileCount-1;
+			while(lo<=hi) {
+				int mid=(lo+hi)>>>1;
+				int cmp=filename(mid).compareTo(filename);
+				if(cmp<0) lo=mid+1;
+				else if(cmp>0) hi=mid-1;
+				else return mid;
+			}
+			return -1;
+		}
+	}
+}
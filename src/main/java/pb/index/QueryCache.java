@@ -0,0 +1,227 @@
+package pb.index;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * A least recently used cache of query results for the {@link pb.IndexServer}.
+ * Queries are keyed by their normalized set of terms, so "b,A" and "a,b" share
+ * an entry. The cache is bounded both by the number of entries and by the
+ * total number of hits held.
+ * <br/>
+ * Entries are invalidated incrementally rather than flushing the cache: a new
+ * filename only invalidates the entries with a term that it matches, and a
+ * filename losing sources only invalidates the entries that returned it.
+ *
+ * @see {@link pb.IndexServer}
+ * @author aaron
+ *
+ */
+public class QueryCache {
+
+	/**
+	 * Maximum number of cached queries.
+	 */
+	private final int maxEntries;
+
+	/**
+	 * Maximum number of hits, over all cached queries.
+	 */
+	private final int maxHits;
+
+	/**
+	 * Normalized query to its hits, in least recently used order.
+	 */
+	private final LinkedHashMap<String,List<String>> entries;
+
+	/**
+	 * Term to the cached queries that contain it.
+	 */
+	private final Map<String,Set<String>> termQueries;
+
+	/**
+	 * Filename to the cached queries that returned it.
+	 */
+	private final Map<String,Set<String>> filenameQueries;
+
+	/**
+	 * Total number of hits held.
+	 */
+	private int size=0;
+
+	/**
+	 * Incremented on every change to the index that could invalidate a
+	 * result, so that a result computed while the index changed is not
+	 * cached.
+	 */
+	private long generation=0;
+
+	/**
+	 * Metrics.
+	 */
+	private long hits=0;
+	private long misses=0;
+	private long evictions=0;
+	private long invalidations=0;
+
+	/**
+	 * Initialise the cache.
+	 * @param maxEntries maximum number of cached queries, the total number of
+	 * hits is bounded to 100 times this.
+	 */
+	public QueryCache(int maxEntries) {
+		this.maxEntries=maxEntries;
+		this.maxHits=maxEntries*100;
+		entries=new LinkedHashMap<>(16,0.75f,true);
+		termQueries=new HashMap<>();
+		filenameQueries=new HashMap<>();
+	}
+
+	/**
+	 * Normalize the terms of a query.
+	 * @param terms the query terms as given by the client
+	 * @return the sorted, distinct, lower case terms
+	 */
+	public static TreeSet<String> normalize(String[] terms) {
+		TreeSet<String> normalized=new TreeSet<>();
+		for(String term : terms) {
+			normalized.add(TokenIndex.fold(term));
+		}
+		return normalized;
+	}
+
+	/**
+	 *
+	 * @return the current generation, to pass to
+	 * {@link #put(Set, List, long)}
+	 */
+	public synchronized long generation() {
+		return generation;
+	}
+
+	/**
+	 * Look up a query.
+	 * @param terms normalized terms
+	 * @return a copy of the cached hits or null if the query is not cached
+	 */
+	public synchronized List<String> get(Set<String> terms) {
+		List<String> result=entries.get(String.join(",",terms));
+		if(result==null) {
+			misses++;
+			return null;
+		}
+		hits++;
+		return new ArrayList<String>(result);
+	}
+
+	/**
+	 * Cache the hits for a query, unless the index has changed since they
+	 * were computed.
+	 * @param terms normalized terms
+	 * @param result the hits
+	 * @param generation the generation before the hits were computed
+	 */
+	public synchronized void put(Set<String> terms,List<String> result,long generation) {
+		if(generation!=this.generation || result.size()>maxHits) return;
+		String query=String.join(",",terms);
+		if(entries.containsKey(query)) return;
+		entries.put(query,new ArrayList<String>(result));
+		size+=result.size();
+		for(String term : terms) {
+			termQueries.computeIfAbsent(term,(k)->new HashSet<String>()).add(query);
+		}
+		for(String filename : result) {
+			filenameQueries.computeIfAbsent(filename,(k)->new HashSet<String>()).add(query);
+		}
+		Iterator<Map.Entry<String,List<String>>> eldest=entries.entrySet().iterator();
+		while((entries.size()>maxEntries || size>maxHits) && eldest.hasNext()) {
+			Map.Entry<String,List<String>> victim=eldest.next();
+			if(victim.getKey().equals(query)) break;
+			eldest.remove();
+			forget(victim.getKey(),victim.getValue());
+			evictions++;
+		}
+	}
+
+	/**
+	 * A filename has been added to the index, invalidate the queries with a
+	 * term that matches it.
+	 * @param filename
+	 */
+	public synchronized void filenameAdded(String filename) {
+		generation++;
+		if(entries.isEmpty()) return;
+		String folded=TokenIndex.fold(filename);
+		List<String> stale=new ArrayList<>();
+		termQueries.forEach((term,queries)->{
+			if(QueryTerm.parse(term).matches(folded)) stale.addAll(queries);
+		});
+		invalidate(stale);
+	}
+
+	/**
+	 * Filenames have lost sources, invalidate the queries that returned them.
+	 * @param filenames
+	 */
+	public synchronized void sourcesRemoved(Collection<String> filenames) {
+		generation++;
+		if(entries.isEmpty()) return;
+		List<String> stale=new ArrayList<>();
+		for(String filename : filenames) {
+			Set<String> queries=filenameQueries.get(filename);
+			if(queries!=null) stale.addAll(queries);
+		}
+		invalidate(stale);
+	}
+
+	private void invalidate(List<String> queries) {
+		for(String query : queries) {
+			List<String> result=entries.remove(query);
+			if(result!=null) {
+				invalidations++;
+				forget(query,result);
+			}
+		}
+	}
+
+	/**
+	 * Remove an entry that is no longer in the cache from the term and
+	 * filename maps.
+	 */
+	private void forget(String query,List<String> result) {
+		size-=result.size();
+		for(String filename : result) {
+			Set<String> queries=filenameQueries.get(filename);
+			if(queries!=null) {
+				queries.remove(query);
+				if(queries.isEmpty()) filenameQueries.remove(filename);
+			}
+		}
+		for(String term : query.split(",",-1)) {
+			Set<String> queries=termQueries.get(term);
+			if(queries!=null) {
+				queries.remove(query);
+				if(queries.isEmpty()) termQueries.remove(term);
+			}
+		}
+	}
+
+	/**
+	 *
+	 * @return the cache metrics in the form "name=value,name=value,..."
+	 */
+	public synchronized String stats() {
+		long lookups=hits+misses;
+		return "cacheEntries="+entries.size()+",cacheHits="+hits+",cacheMisses="+misses
+				+",cacheHitRate="+(lookups==0?0:(100*hits/lookups))+"%"
+				+",cacheEvictions="+evictions+",cacheInvalidations="+invalidations;
+	}
+}
@@ -0,0 +1,110 @@
+package pb.index;
+
+import java.util.Set;
+
+/**
+ * A single term of an index query. Terms are case insensitive and take one of
+ * the forms:
+ * <ul>
+ * <li>"abc*" filenames with a token starting with "abc"</li>
+ * <li>"=abc" filenames with the token "abc"</li>
+ * <li>"*.abc" filenames with the extension "abc"</li>
+ * <li>"abc" filenames containing "abc" anywhere, as before</li>
+ * </ul>
+ *
+ * @see {@link TokenIndex}
+ * @author aaron
+ *
+ */
+public class QueryTerm {
+
+	private enum Kind {PREFIX,EXACT,EXTENSION,SUBSTRING}
+
+	private final Kind kind;
+
+	/**
+	 * The case folded term, without its syntax.
+	 */
+	private final String value;
+
+	private QueryTerm(Kind kind,String value) {
+		this.kind=kind;
+		this.value=value;
+	}
+
+	/**
+	 * Parse a query term.
+	 * @param term as given by the client
+	 * @return the parsed term
+	 */
+	public static QueryTerm parse(String term) {
+		String folded=TokenIndex.fold(term);
+		if(folded.startsWith("*.") && folded.length()>2) {
+			return new QueryTerm(Kind.EXTENSION,folded.substring(2));
+		}
+		if(folded.startsWith("=") && folded.length()>1) {
+			return new QueryTerm(Kind.EXACT,folded.substring(1));
+		}
+		if(folded.endsWith("*") && folded.length()>1) {
+			return new QueryTerm(Kind.PREFIX,folded.substring(0,folded.length()-1));
+		}
+		return new QueryTerm(Kind.SUBSTRING,folded);
+	}
+
+	/**
+	 * Look up the filenames that match the term.
+	 * @param index
+	 * @return the matching filenames
+	 */
+	public Set<String> lookup(TokenIndex index) {
+		switch(kind) {
+		case PREFIX:
+			return index.prefix(value);
+		case EXACT:
+			return index.exact(value);
+		case EXTENSION:
+			return index.withExtension(value);
+		default:
+			return index.substring(value);
+		}
+	}
+
+	/**
+	 * Look up the filenames in the on-disk segment that match the term.
+	 * @param store
+	 * @return the matching filenames
+	 */
+	public Set<String> lookup(IndexStore store) {
+		switch(kind) {
+		case PREFIX:
+			return store.segmentPrefix(value);
+		case EXACT:
+			return store.segmentToken(value);
+		case EXTENSION:
+			return store.segmentExtension(value);
+		default:
+			return store.segmentSubstring(value);
+		}
+	}
+
+	/**
+	 * Test a filename that is not in a {@link TokenIndex}.
+	 * @param folded the case folded filename
+	 * @return true if the filename matches the term
+	 */
+	public boolean matches(String folded) {
+		switch(kind) {
+		case PREFIX:
+			for(String token : TokenIndex.tokenize(folded)) {
+				if(token.startsWith(value)) return true;
+			}
+			return false;
+		case EXACT:
+			return TokenIndex.tokenize(folded).contains(value);
+		case EXTENSION:
+			return value.equals(TokenIndex.extension(folded));
+		default:
+			return folded.contains(value);
+		}
+	}
+}
@@ -0,0 +1,101 @@
+package pb.index;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Splits the filename keyspace of the index between a number of index server
+ * shards. Filenames are hashed to a 32 bit value and the hash space is cut
+ * into equal, contiguous ranges, one per shard, in the order the shards are
+ * given. Every peer and index server must be given the same list of shards
+ * in the same order.
+ *
+ * @see {@link pb.IndexServer}
+ * @author aaron
+ *
+ */
+public class ShardMap {
+
+	/**
+	 * Shard hosts, in shard order.
+	 */
+	private final List<String> hosts;
+
+	/**
+	 * Shard ports, in shard order.
+	 */
+	private final List<Integer> ports;
+
+	/**
+	 * Initialise from a list of shards.
+	 * @param shards in the format "host:port,host:port,..."
+	 * @throws IllegalArgumentException if the list is empty or malformed
+	 */
+	public ShardMap(String shards) {
+		hosts = new ArrayList<>();
+		ports = new ArrayList<>();
+		for(String shard : shards.split(",")) {
+			String[] parts = shard.trim().split(":");
+			if(parts.length!=2) {
+				throw new IllegalArgumentException("shard must have the format host:port: "+shard);
+			}
+			try {
+				ports.add(Integer.parseInt(parts[1]));
+			} catch (NumberFormatException e) {
+				throw new IllegalArgumentException("shard port is not a number: "+shard);
+			}
+			hosts.add(parts[0]);
+		}
+	}
+
+	/**
+	 *
+	 * @return the number of shards
+	 */
+	public int size() {
+		return hosts.size();
+	}
+
+	/**
+	 *
+	 * @param shard
+	 * @return host of the shard
+	 */
+	public String host(int shard) {
+		return hosts.get(shard);
+	}
+
+	/**
+	 *
+	 * @param shard
+	 * @return port of the shard
+	 */
+	public int port(int shard) {
+		return ports.get(shard);
+	}
+
+	/**
+	 *
+	 * @param filename
+	 * @return the shard that owns the filename
+	 */
+	public int shardFor(String filename) {
+		long hash = mix(filename.hashCode()) & 0xffffffffL;
+		return (int)((hash*hosts.size())>>>32);
+	}
+
+	/**
+	 * Spread the bits of String.hashCode(), which on its own leaves similar
+	 * filenames close together, so that ranges get an even share.
+	 * @param h
+	 * @return mixed hash
+	 */
+	private static int mix(int h) {
+		h ^= h>>>16;
+		h *= 0x85ebca6b;
+		h ^= h>>>13;
+		h *= 0xc2b2ae35;
+		h ^= h>>>16;
+		return h;
+	}
+}
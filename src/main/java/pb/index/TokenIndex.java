@@ -0,0 +1,260 @@
+package pb.index;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * Filenames normalized when they are added to the index, rather than on every
+ * query. Each filename is case folded once and split into tokens on anything
+ * that is not a letter or digit, e.g. "My_Notes-v2.TXT" has the tokens "my",
+ * "notes", "v2" and "txt" and the extension "txt". Tokens are kept in a sorted
+ * dictionary so prefix and exact token queries are a range lookup, and the
+ * dictionary key is the only copy of each distinct token. Plain substring
+ * terms, which can span token boundaries, are looked up by the grams of the
+ * case folded filenames, see {@link #grams(String)}.
+ * <br/>
+ * Not thread safe, the {@link pb.IndexServer} guards it with the same lock as
+ * its key value map.
+ *
+ * @see {@link QueryTerm}
+ * @author aaron
+ *
+ */
+public class TokenIndex {
+
+	/**
+	 * Token to the filenames that have the token.
+	 */
+	private final TreeMap<String,Set<String>> tokens=new TreeMap<>();
+
+	/**
+	 * Extension to the filenames that have the extension.
+	 */
+	private final Map<String,Set<String>> extensions=new HashMap<>();
+
+	/**
+	 * Gram to the filenames that have the gram.
+	 */
+	private final TreeMap<String,Set<String>> grams=new TreeMap<>();
+
+	/**
+	 * Filename to its case folded name.
+	 */
+	private final Map<String,String> folded=new HashMap<>();
+
+	/**
+	 * Filename to its (interned) tokens, needed to remove the filename again.
+	 */
+	private final Map<String,String[]> fileTokens=new HashMap<>();
+
+	/**
+	 * Case fold a filename or term.
+	 * @param s
+	 * @return the case folded string
+	 */
+	public static String fold(String s) {
+		return s.toLowerCase(Locale.ROOT);
+	}
+
+	/**
+	 * Split a case folded filename into tokens.
+	 * @param folded
+	 * @return the tokens, in order
+	 */
+	public static List<String> tokenize(String folded) {
+		List<String> result=new ArrayList<>();
+		int start=-1;
+		for(int i=0;i<=folded.length();i++) {
+			boolean separator = i==folded.length() || !Character.isLetterOrDigit(folded.charAt(i));
+			if(separator) {
+				if(start!=-1) result.add(folded.substring(start,i));
+				start=-1;
+			} else if(start==-1) {
+				start=i;
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * The extension of a case folded filename, i.e. what follows the last
+	 * "." of the last path element.
+	 * @param folded
+	 * @return the extension or null if there is none
+	 */
+	public static String extension(String folded) {
+		int dot=folded.lastIndexOf('.');
+		int slash=Math.max(folded.lastIndexOf('/'),folded.lastIndexOf('\\'));
+		if(dot<=slash+1 || dot==folded.length()-1) return null;
+		return folded.substring(dot+1);
+	}
+
+	/**
+	 * Number of characters in a gram, see {@link #grams(String)}.
+	 */
+	public static final int gramLength=3;
+
+	/**
+	 * The grams of a case folded filename: the {@link #gramLength} characters
+	 * starting at each position, padded at the end with '\0'. Every substring
+	 * of the filename that is no longer than a gram is the start of one of
+	 * them, and a longer substring is made of the grams at its positions.
+	 * @param folded
+	 * @return the distinct grams
+	 */
+	public static Set<String> grams(String folded) {
+		Set<String> result=new HashSet<>();
+		String padded=folded+"\0\0";
+		for(int i=0;i<folded.length();i++) {
+			result.add(padded.substring(i,i+gramLength));
+		}
+		return result;
+	}
+
+	/**
+	 * Add a filename, does nothing if it is already in the index.
+	 * @param filename
+	 */
+	public void add(String filename) {
+		if(folded.containsKey(filename)) return;
+		String lower=fold(filename);
+		folded.put(filename,lower);
+		List<String> found=tokenize(lower);
+		String[] interned=new String[found.size()];
+		for(int i=0;i<interned.length;i++) {
+			interned[i]=intern(found.get(i));
+			tokens.get(interned[i]).add(filename);
+		}
+		fileTokens.put(filename,interned);
+		String ext=extension(lower);
+		if(ext!=null) {
+			extensions.computeIfAbsent(ext,(k)->new HashSet<String>()).add(filename);
+		}
+		for(String gram : grams(lower)) {
+			grams.computeIfAbsent(gram,(k)->new HashSet<String>()).add(filename);
+		}
+	}
+
+	/**
+	 * The dictionary key for the token, adding it if it is new.
+	 */
+	private String intern(String token) {
+		String key=tokens.ceilingKey(token);
+		if(token.equals(key)) return key;
+		tokens.put(token,new HashSet<String>());
+		return token;
+	}
+
+	/**
+	 * Remove a filename.
+	 * @param filename
+	 */
+	public void remove(String filename) {
+		String lower=folded.remove(filename);
+		if(lower==null) return;
+		for(String token : fileTokens.remove(filename)) {
+			Set<String> filenames=tokens.get(token);
+			if(filenames!=null) {
+				filenames.remove(filename);
+				if(filenames.isEmpty()) tokens.remove(token);
+			}
+		}
+		String ext=extension(lower);
+		if(ext!=null) {
+			Set<String> filenames=extensions.get(ext);
+			if(filenames!=null) {
+				filenames.remove(filename);
+				if(filenames.isEmpty()) extensions.remove(ext);
+			}
+		}
+		for(String gram : grams(lower)) {
+			Set<String> filenames=grams.get(gram);
+			if(filenames!=null) {
+				filenames.remove(filename);
+				if(filenames.isEmpty()) grams.remove(gram);
+			}
+		}
+	}
+
+	/**
+	 *
+	 * @param prefix case folded prefix
+	 * @return filenames with a token that starts with the prefix
+	 */
+	public Set<String> prefix(String prefix) {
+		Set<String> result=new HashSet<>();
+		SortedMap<String,Set<String>> range = prefix.isEmpty() ? tokens :
+			tokens.subMap(prefix,prefix+Character.MAX_VALUE);
+		range.values().forEach((filenames)->{result.addAll(filenames);});
+		return result;
+	}
+
+	/**
+	 *
+	 * @param token case folded token
+	 * @return filenames that have the token
+	 */
+	public Set<String> exact(String token) {
+		Set<String> filenames=tokens.get(token);
+		return filenames==null?new HashSet<String>():new HashSet<String>(filenames);
+	}
+
+	/**
+	 *
+	 * @param ext case folded extension
+	 * @return filenames with the extension
+	 */
+	public Set<String> withExtension(String ext) {
+		Set<String> filenames=extensions.get(ext);
+		return filenames==null?new HashSet<String>():new HashSet<String>(filenames);
+	}
+
+	/**
+	 * Find the filenames that contain a substring. Used for plain query
+	 * terms, which can span token boundaries. A term no longer than a gram is
+	 * the start of a gram, a longer term is only looked for in the filenames
+	 * of its least common gram.
+	 * @param term case folded term
+	 * @return filenames that contain the term
+	 */
+	public Set<String> substring(String term) {
+		Set<String> result=new HashSet<>();
+		if(term.isEmpty()) {
+			result.addAll(folded.keySet());
+			return result;
+		}
+		Set<String> candidates;
+		if(term.length()<=gramLength) {
+			candidates=new HashSet<>();
+			for(Set<String> filenames : grams.subMap(term,term+Character.MAX_VALUE).values()) {
+				candidates.addAll(filenames);
+			}
+		} else {
+			candidates=null;
+			for(int start=0;start+gramLength<=term.length();start++) {
+				Set<String> filenames=grams.get(term.substring(start,start+gramLength));
+				if(filenames==null) return result;
+				if(candidates==null || filenames.size()<candidates.size()) candidates=filenames;
+			}
+		}
+		for(String filename : candidates) {
+			if(folded.get(filename).contains(term)) result.add(filename);
+		}
+		return result;
+	}
+
+	/**
+	 *
+	 * @return the number of distinct tokens
+	 */
+	public int tokenCount() {
+		return tokens.size();
+	}
+}
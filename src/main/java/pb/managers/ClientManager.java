@@ -3,8 +3,10 @@ package pb.managers;
 
 import java.io.IOException;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.UnknownHostException;
+import java.nio.channels.SocketChannel;
 import java.util.logging.Logger;
 
 import pb.managers.endpoint.Endpoint;
@@ -62,6 +64,16 @@ public class ClientManager extends Manager implements ISessionProtocolHandler,
 	 */
 	public static final String sessionError="SESSION_ERROR";
 	
+	/**
+	 * Emitted when the client manager has stopped, because its connection
+	 * ended cleanly or because it gave up connecting, so it will not start
+	 * another session. It may never have started one.
+	 * <ul>
+	 * <li>{@code args[0] instanceof ClientManager}</li>
+	 * </ul>
+	 */
+	public static final String managerStopped="MANAGER_STOPPED";
+	
 	/**
 	 * The session protocol for this client, so we can stop the
 	 * session when we need to.
@@ -120,11 +132,12 @@ public class ClientManager extends Manager implements ISessionProtocolHandler,
 				} 
 			} else {
 				// connection ended cleanly, so we can terminate this manager
+				localEmit(managerStopped,this);
 				return;
 			}
 		}
 		log.severe("no more retries, giving up");
-		
+		localEmit(managerStopped,this);
 	}
 	/**
 	 * Attempt to connect.
@@ -137,7 +150,8 @@ public class ClientManager extends Manager implements ISessionProtocolHandler,
 						     // if errors occur on the connection
 		log.info("attempting to connect to "+host+":"+port);
 		try {
-			socket=new Socket(InetAddress.getByName(host),port);
+			// a socket with a channel, so the endpoint can send files without copying
+			socket=SocketChannel.open(new InetSocketAddress(InetAddress.getByName(host),port)).socket();
 			Endpoint endpoint = new Endpoint(socket,this);
 			endpoint.start();
 
@@ -2,9 +2,12 @@ package pb.managers;
 
 import java.io.IOException;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.net.StandardSocketOptions;
 import java.net.UnknownHostException;
+import java.nio.channels.ServerSocketChannel;
 import java.util.logging.Logger;
 
 /**
@@ -14,6 +17,9 @@ import java.util.logging.Logger;
  * {@link pb.managers.ServerManager} is responsible for creating a thread for this
  * connection, else the IOThread will not accept any more connections until this
  * connection is finished.
+ * <br/>
+ * The server socket is opened from a channel so that accepted sockets have
+ * channels, which endpoints use to send files without copying them.
  * 
  * @see {@link pb.managers.ServerManager}
  * @author aaron
@@ -43,7 +49,11 @@ public class IOThread extends Thread {
 	 * @throws IOException whenever the server socket can't be created
 	 */
 	public IOThread(int port, ServerManager serverManager) throws IOException{
-		serverSocket = new ServerSocket(port); // let's throw this since its potentially unrecoverable
+		// let's throw this since its potentially unrecoverable
+		ServerSocketChannel serverChannel = ServerSocketChannel.open();
+		serverChannel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+		serverChannel.bind(new InetSocketAddress(port));
+		serverSocket = serverChannel.socket();
 		this.port=port;
 		this.serverManager=serverManager;
 		setName("IOThread");
@@ -3,6 +3,7 @@ package pb.managers;
 import java.net.UnknownHostException;
 import java.util.HashSet;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.logging.Logger;
 
 import pb.managers.endpoint.Endpoint;
@@ -64,7 +65,8 @@ public class PeerManager extends Manager {
 	public static final String peerServerManager = "PEER_SERVER_MANAGER";
 	
 	/**
-	 * The client managers are for connecting to the server and other peers.
+	 * The client managers are for connecting to the server and other peers,
+	 * added once they have been started.
 	 */
 	private Set<ClientManager> clientManagers;
 	
@@ -84,7 +86,7 @@ public class PeerManager extends Manager {
 	 * @param myServerPort
 	 */
 	public PeerManager(int myServerPort) {
-		clientManagers = new HashSet<>();
+		clientManagers = ConcurrentHashMap.newKeySet();
 		this.myServerPort=myServerPort;
 	}
 	
@@ -98,7 +100,8 @@ public class PeerManager extends Manager {
 	
 	/**
 	 * Connect to either a server or another peer. The client manager
-	 * needs to be started after it is returned.
+	 * needs to be started after it is returned, it is only shut down and
+	 * joined with by this peer manager once it has been started.
 	 * @param serverPort the port of the server/peer to connect to
 	 * @param host the hostname of the server/peer to connect to
 	 * @throws InterruptedException 
@@ -106,8 +109,14 @@ public class PeerManager extends Manager {
 	 * @return the client manager for the new connection
 	 */
 	public ClientManager connect(int serverPort,String host) throws UnknownHostException, InterruptedException {
-		ClientManager clientManager = new ClientManager(host,serverPort);
-		clientManagers.add(clientManager);
+		ClientManager clientManager = new ClientManager(host,serverPort) {
+			@Override
+			public synchronized void start() {
+				super.start();
+				// alive by now, so a join can't miss it
+				clientManagers.add(this);
+			}
+		};
 		clientManager.on(ClientManager.sessionStarted, (args)->{
 			Endpoint client = (Endpoint)args[0];
 			clientManager.emit(peerStarted, client,clientManager);
@@ -156,18 +165,28 @@ public class PeerManager extends Manager {
 	
 	/**
 	 * Join with any outstanding client managers, to ensure they have
-	 * all completed. Only useful if the client managers are expected
+	 * all completed, including client managers that are started while
+	 * joining, e.g. by the event handlers of a client manager being joined
+	 * with, as they start before it ends. Client managers that were never
+	 * started are not waited for. Only useful if the client managers are expected
 	 * to terminate on their own, otherwise they should be explicitly
 	 * shutdown using {@link #shutdown()} first.
 	 */
 	public void joinWithClientManagers() {
-		clientManagers.forEach((clientManager)->{
-			try {
-				clientManager.join();
-			} catch (InterruptedException e) {
-				log.warning("could not join with client manager");
+		Set<ClientManager> joined = new HashSet<>();
+		while(true) {
+			Set<ClientManager> remaining = new HashSet<>(clientManagers);
+			remaining.removeAll(joined);
+			if(remaining.isEmpty()) break;
+			for(ClientManager clientManager : remaining) {
+				try {
+					clientManager.join();
+				} catch (InterruptedException e) {
+					log.warning("could not join with client manager");
+				}
+				joined.add(clientManager);
 			}
-		});
+		}
 	}
 
 }
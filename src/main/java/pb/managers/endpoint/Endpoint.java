@@ -1,9 +1,21 @@
 package pb.managers.endpoint;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Map;
@@ -31,6 +43,14 @@ import pb.protocols.session.SessionProtocol;
  * method to send data to the socket which will be sent to the other endpoint.
  * Any number of protocols can be handled by the endpoint, but there can be only
  * one instance of each protocol running at a time.
+ * <br/>
+ * Every frame on the socket starts with a type byte. A message frame is an int
+ * length followed by the UTF-8 json of the message. A bulk frame is a stream id,
+ * a long length and then that many raw bytes, which are given to the
+ * {@link IBulkHandler} registered for the stream rather than to a protocol. When
+ * the socket has a channel, bulk frames are sent from files with
+ * {@link FileChannel#transferTo(long, long, java.nio.channels.WritableByteChannel)}
+ * so the bytes do not pass through the heap.
  * 
  * @see {@link pb.managers.Manager}
  * @see {@link pb.protocols.session.SessionProtocol}
@@ -41,11 +61,29 @@ import pb.protocols.session.SessionProtocol;
 public class Endpoint extends Eventable {
 	private static Logger log = Logger.getLogger(Endpoint.class.getName());
 	
+	/**
+	 * Frame types.
+	 */
+	private static final int messageFrame=0;
+	private static final int bulkFrame=1;
+	
+	/**
+	 * Largest message frame (bytes) that is sent or received, a frame that
+	 * says it is larger is from a broken or hostile peer.
+	 */
+	public static final int maxMessageSize=16*1024*1024;
+	
 	/**
 	 * The socket this endpoint is wrapped around.
 	 */
 	private Socket socket;
 	
+	/**
+	 * The channel of the socket, null if the socket was not created from a
+	 * channel.
+	 */
+	private SocketChannel channel;
+	
 	/**
 	 * The manager to report to when things happen.
 	 */
@@ -56,6 +94,12 @@ public class Endpoint extends Eventable {
 	 */
 	private DataInputStream in=null;
 	
+	/**
+	 * The buffer under the input data stream, needed to find bytes of a bulk
+	 * frame that have already been read from the socket.
+	 */
+	private FrameInputStream frameIn=null;
+	
 	/**
 	 * The output data stream on the socket.
 	 */
@@ -66,6 +110,11 @@ public class Endpoint extends Eventable {
 	 */
 	private Map<String,Protocol> protocols;
 	
+	/**
+	 * Stream id to the handler for bulk frames on that stream.
+	 */
+	private Map<String,IBulkHandler> bulkHandlers;
+	
 	/**
 	 * Timeout id to use.
 	 */
@@ -88,8 +137,10 @@ public class Endpoint extends Eventable {
 	 */
 	public Endpoint(Socket socket, IEndpointHandler manager) {
 		this.socket = socket;
+		this.channel = socket.getChannel();
 		this.manager = manager;
 		protocols = new HashMap<>();
+		bulkHandlers = new HashMap<>();
 		outstandingIds = new HashSet<>();
 		setName("Endpoint"); // name the thread
 	}
@@ -104,14 +155,122 @@ public class Endpoint extends Eventable {
 		if(stopped) return false;
 		try {
 			log.info("sending "+msg.getName()+" for protocol "+msg.getProtocolName()+" to "+getOtherEndpointId());
-			out.writeUTF(msg.toJsonString());
+			byte[] json=msg.toJsonString().getBytes(StandardCharsets.UTF_8);
+			if(json.length>maxMessageSize) {
+				log.warning("message "+msg.getName()+" is too large to send: "+json.length+" bytes");
+				return false;
+			}
+			out.writeByte(messageFrame);
+			out.writeInt(json.length);
+			out.write(json);
+			out.flush();
+		} catch (IOException e) {
+			manager.endpointDisconnectedAbruptly(this);
+			return false;
+		}
+		return true;
+	}
+	
+	/**
+	 * Send part of a file as a bulk frame on a stream. The bytes go straight
+	 * from the file to the socket when the socket has a channel. This is
+	 * synchronized with sending messages, so a message sent after this
+	 * arrives after the frame.
+	 * @param streamId the stream, the other endpoint gives the bytes to the
+	 * {@link IBulkHandler} it has registered for it
+	 * @param file
+	 * @param position where to start in the file
+	 * @param count the number of bytes to send, the file must have them
+	 * @return true if the frame was sent, false otherwise
+	 */
+	public synchronized boolean sendBulk(String streamId, FileChannel file, long position, long count) {
+		if(stopped) return false;
+		try {
+			log.fine("sending "+count+" bytes on stream "+streamId+" to "+getOtherEndpointId());
+			out.writeByte(bulkFrame);
+			out.writeUTF(streamId);
+			out.writeLong(count);
+			out.flush();
+			if(channel!=null) {
+				transferFully(file,position,count,channel);
+			} else {
+				transferFully(file,position,count,Channels.newChannel(out));
+				out.flush();
+			}
+		} catch (IOException e) {
+			// the frame may be half sent, the stream can't be used any more
+			manager.endpointDisconnectedAbruptly(this);
+			return false;
+		}
+		return true;
+	}
+	
+	/**
+	 * Send bytes, e.g. from a mapped file, as a bulk frame on a stream. Like
+	 * {@link #sendBulk(String, FileChannel, long, long)}, this is
+	 * synchronized with sending messages.
+	 * @param streamId the stream
+	 * @param bytes from the buffer's position to its limit, the buffer's
+	 * position is moved to its limit
+	 * @return true if the frame was sent, false otherwise
+	 */
+	public synchronized boolean sendBulk(String streamId, ByteBuffer bytes) {
+		if(stopped) return false;
+		try {
+			log.fine("sending "+bytes.remaining()+" bytes on stream "+streamId+" to "+getOtherEndpointId());
+			out.writeByte(bulkFrame);
+			out.writeUTF(streamId);
+			out.writeLong(bytes.remaining());
+			out.flush();
+			WritableByteChannel target=channel!=null?channel:Channels.newChannel(out);
+			while(bytes.hasRemaining()) {
+				target.write(bytes);
+			}
 			out.flush();
 		} catch (IOException e) {
+			// the frame may be half sent, the stream can't be used any more
 			manager.endpointDisconnectedAbruptly(this);
 			return false;
+		} catch (InternalError e) {
+			// the bytes are a mapping whose file was truncated, the frame is
+			// half sent, the caller deals with the mapping
+			manager.endpointDisconnectedAbruptly(this);
+			throw e;
 		}
 		return true;
 	}
+
+	private static void transferFully(FileChannel file, long position, long count,
+			WritableByteChannel target) throws IOException {
+		long sent=0;
+		while(sent<count) {
+			long n=file.transferTo(position+sent, count-sent, target);
+			if(n<=0) throw new EOFException("file ended before "+count+" bytes were sent");
+			sent+=n;
+		}
+	}
+	
+	/**
+	 * Register the handler for bulk frames on a stream, replacing any
+	 * previous handler for the stream.
+	 * @param streamId
+	 * @param handler
+	 */
+	public void onBulk(String streamId, IBulkHandler handler) {
+		synchronized(bulkHandlers) {
+			bulkHandlers.put(streamId, handler);
+		}
+	}
+	
+	/**
+	 * Stop handling bulk frames on a stream, later frames on it are discarded.
+	 * @param streamId
+	 */
+	public void removeBulkHandler(String streamId) {
+		synchronized(bulkHandlers) {
+			bulkHandlers.remove(streamId);
+		}
+	}
 	
 	/**
 	 * Send a message and attach a timeout identifier to it. The callback
@@ -212,8 +371,16 @@ public class Endpoint extends Eventable {
 	@Override
 	public void run() {
 		try {
-			in = new DataInputStream(socket.getInputStream());
-			out = new DataOutputStream(socket.getOutputStream());
+			if(channel!=null) {
+				// the socket's own streams lock the channel for reads and writes
+				// together on some jvms, so that a blocked read blocks sending
+				frameIn = new FrameInputStream(new ChannelInputStream(channel));
+				out = new DataOutputStream(new BufferedOutputStream(new ChannelOutputStream(channel)));
+			} else {
+				frameIn = new FrameInputStream(socket.getInputStream());
+				out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+			}
+			in = new DataInputStream(frameIn);
 		} catch (IOException e){
 			manager.endpointDisconnectedAbruptly(this);
 			return;
@@ -223,7 +390,20 @@ public class Endpoint extends Eventable {
 		log.info("endpoint has started to: "+getOtherEndpointId());
 		while(!isInterrupted()) {
 			try {
-				String line=in.readUTF();
+				int type=in.readUnsignedByte();
+				if(type==bulkFrame) {
+					receiveBulk();
+					continue;
+				} else if(type!=messageFrame) {
+					throw new IOException("unknown frame type: "+type);
+				}
+				int length=in.readInt();
+				if(length<0 || length>maxMessageSize) {
+					throw new IOException("message frame has a bad length: "+length);
+				}
+				byte[] json=new byte[length];
+				in.readFully(json);
+				String line=new String(json,StandardCharsets.UTF_8);
 				Message msg = Message.toMessage(line);
 				// cancel any related time out
 				if(msg.getType()==Message.Type.Reply) {
@@ -278,6 +458,165 @@ public class Endpoint extends Eventable {
 		log.info("endpoint has terminated to: "+getOtherEndpointId());
 	}
 	
+	/**
+	 * Read a bulk frame and give it to the handler for its stream.
+	 * @throws IOException if the socket failed
+	 */
+	private void receiveBulk() throws IOException {
+		String streamId=in.readUTF();
+		long length=in.readLong();
+		if(length<0) throw new IOException("bulk frame has a bad length: "+length);
+		IBulkHandler handler;
+		synchronized(bulkHandlers) {
+			handler=bulkHandlers.get(streamId);
+		}
+		BulkChannel data=new BulkChannel(length);
+		if(handler==null) {
+			log.warning("bulk frame dropped due to no handler for stream: "+streamId);
+		} else {
+			try {
+				handler.receiveBulk(streamId, data, length);
+			} catch (IOException e) {
+				if(data.failed) throw e;
+				log.warning("bulk handler for stream "+streamId+" failed: "+e.getMessage());
+			}
+		}
+		data.skipRemaining();
+	}
+	
+	/**
+	 * The bytes of one bulk frame. Bytes already in the input buffer are read
+	 * from there and the rest straight from the channel.
+	 */
+	private class BulkChannel implements ReadableByteChannel {
+		private long remaining;
+		private boolean failed=false;
+		
+		BulkChannel(long length) {
+			remaining=length;
+		}
+		
+		@Override
+		public int read(ByteBuffer dst) throws IOException {
+			if(remaining==0) return -1;
+			int want=(int)Math.min(dst.remaining(), remaining);
+			if(want==0) return 0;
+			int n;
+			try {
+				if(frameIn.buffered()>0 || channel==null) {
+					n=Math.min(want, Math.max(frameIn.buffered(),1));
+					byte[] bytes=new byte[n];
+					n=frameIn.read(bytes,0,n);
+					if(n>0) dst.put(bytes,0,n);
+				} else {
+					int limit=dst.limit();
+					dst.limit(dst.position()+want);
+					try {
+						n=channel.read(dst);
+					} finally {
+						dst.limit(limit);
+					}
+				}
+			} catch (IOException e) {
+				failed=true;
+				throw e;
+			}
+			if(n<0) {
+				failed=true;
+				throw new EOFException("connection ended inside a bulk frame");
+			}
+			remaining-=n;
+			return n;
+		}
+		
+		void skipRemaining() throws IOException {
+			ByteBuffer discard=ByteBuffer.allocate((int)Math.min(remaining, 8192));
+			while(remaining>0) {
+				discard.clear();
+				read(discard);
+			}
+		}
+		
+		@Override
+		public boolean isOpen() {
+			return true;
+		}
+		
+		@Override
+		public void close() {
+			// the socket stays open
+		}
+	}
+	
+	/**
+	 * Buffered input that can say how many bytes it holds.
+	 */
+	private static class FrameInputStream extends BufferedInputStream {
+		FrameInputStream(InputStream in) {
+			super(in);
+		}
+		
+		int buffered() {
+			return count-pos;
+		}
+	}
+	
+	/**
+	 * Reads a socket channel without taking its blocking lock.
+	 */
+	private static class ChannelInputStream extends InputStream {
+		private final SocketChannel channel;
+		
+		ChannelInputStream(SocketChannel channel) {
+			this.channel=channel;
+		}
+		
+		@Override
+		public int read() throws IOException {
+			byte[] b=new byte[1];
+			int n=read(b,0,1);
+			return n==-1?-1:(b[0]&0xff);
+		}
+		
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if(len==0) return 0;
+			return channel.read(ByteBuffer.wrap(b,off,len));
+		}
+		
+		@Override
+		public void close() throws IOException {
+			channel.close();
+		}
+	}
+	
+	/**
+	 * Writes a socket channel without taking its blocking lock.
+	 */
+	private static class ChannelOutputStream extends OutputStream {
+		private final SocketChannel channel;
+		
+		ChannelOutputStream(SocketChannel channel) {
+			this.channel=channel;
+		}
+		
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[] {(byte)b},0,1);
+		}
+		
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			ByteBuffer buf=ByteBuffer.wrap(b,off,len);
+			while(buf.hasRemaining()) channel.write(buf);
+		}
+		
+		@Override
+		public void close() throws IOException {
+			channel.close();
+		}
+	}
+	
 	/**
 	 * Start handling a protocol. Only one instance of a protocol can be handled
 	 * at a time. Either client or server may start/initiate the use of the protocol.
@@ -0,0 +1,27 @@
+package pb.managers.endpoint;
+
+import java.io.IOException;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * Receives the raw bytes of a bulk frame sent with
+ * {@link Endpoint#sendBulk(String, java.nio.channels.FileChannel, long, long)}.
+ * Handlers are registered on the endpoint per stream id and are called on the
+ * endpoint thread.
+ *
+ * @see {@link Endpoint#onBulk(String, IBulkHandler)}
+ * @author aaron
+ *
+ */
+public interface IBulkHandler {
+	/**
+	 * A bulk frame has arrived for the stream. The handler should read the
+	 * data before returning, whatever it does not read is discarded.
+	 * @param streamId the stream the frame was sent on
+	 * @param data the bytes of the frame, at end of stream after length bytes
+	 * @param length the number of bytes in the frame
+	 * @throws IOException if the data could not be read or stored, the
+	 * endpoint will skip the rest of the frame
+	 */
+	public void receiveBulk(String streamId, ReadableByteChannel data, long length) throws IOException;
+}
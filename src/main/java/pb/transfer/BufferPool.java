@@ -0,0 +1,105 @@
+package pb.transfer;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+/**
+ * A pool of equally sized byte buffers, so that transfers do not allocate a
+ * buffer for every chunk and concurrent transfers never share one. Buffers
+ * are either on the heap or direct; direct buffers save a copy when the
+ * buffer is read from or written to a channel.
+ * <br/>
+ * A buffer must be released exactly once, and not used after it has been
+ * released.
+ *
+ * @see {@link TransferEngine}
+ * @author aaron
+ *
+ */
+public class BufferPool {
+
+	/**
+	 * Size of each buffer (bytes).
+	 */
+	private final int bufferSize;
+
+	/**
+	 * Maximum number of free buffers kept, buffers released beyond this are
+	 * left to the garbage collector.
+	 */
+	private final int maxFree;
+
+	/**
+	 * True for direct buffers.
+	 */
+	private final boolean direct;
+
+	/**
+	 * Free buffers.
+	 */
+	private final ArrayDeque<ByteBuffer> free=new ArrayDeque<>();
+
+	/**
+	 * Metrics.
+	 */
+	private long allocated=0;
+	private long reused=0;
+
+	/**
+	 * Initialise the pool.
+	 * @param bufferSize size of each buffer (bytes)
+	 * @param maxFree maximum number of free buffers to keep
+	 * @param direct true for direct buffers, false for heap buffers
+	 */
+	public BufferPool(int bufferSize,int maxFree,boolean direct) {
+		this.bufferSize=bufferSize;
+		this.maxFree=maxFree;
+		this.direct=direct;
+	}
+
+	/**
+	 *
+	 * @return a cleared buffer of bufferSize bytes
+	 */
+	public ByteBuffer acquire() {
+		synchronized(free) {
+			ByteBuffer buffer=free.poll();
+			if(buffer!=null) {
+				reused++;
+				buffer.clear();
+				return buffer;
+			}
+			allocated++;
+		}
+		return direct?ByteBuffer.allocateDirect(bufferSize):ByteBuffer.allocate(bufferSize);
+	}
+
+	/**
+	 * Return a buffer to the pool.
+	 * @param buffer
+	 */
+	public void release(ByteBuffer buffer) {
+		if(buffer.capacity()!=bufferSize || buffer.isDirect()!=direct) return;
+		synchronized(free) {
+			if(free.size()<maxFree) free.push(buffer);
+		}
+	}
+
+	/**
+	 *
+	 * @return size of each buffer (bytes)
+	 */
+	public int bufferSize() {
+		return bufferSize;
+	}
+
+	/**
+	 *
+	 * @return the pool metrics in the form "name=value,name=value,..."
+	 */
+	public String stats() {
+		synchronized(free) {
+			return "buffersAllocated="+allocated+",buffersReused="+reused+",buffersFree="+free.size();
+		}
+	}
+}
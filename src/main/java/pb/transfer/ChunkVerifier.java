@@ -0,0 +1,99 @@
+package pb.transfer;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+
+/**
+ * Checks bytes of a file against its {@link FileDigest} as they arrive, in
+ * order, from a chunk boundary. Each chunk is checked as soon as its last
+ * byte arrives, so a corrupt chunk is found without reading the file back.
+ *
+ * @see {@link FileDigest}
+ * @author aaron
+ *
+ */
+public class ChunkVerifier {
+
+	private final FileDigest digest;
+	private final MessageDigest md=FileDigest.sha256();
+
+	/**
+	 * Offset of the next byte to arrive.
+	 */
+	private long position;
+
+	/**
+	 * Offset up to which the bytes have been checked.
+	 */
+	private long verified;
+
+	private boolean corrupt=false;
+
+	/**
+	 * Initialise a verifier for bytes starting at a chunk boundary.
+	 * @param digest
+	 * @param offset a multiple of {@link FileDigest#chunkSize}
+	 */
+	public ChunkVerifier(FileDigest digest,long offset) {
+		this.digest=digest;
+		this.position=offset;
+		this.verified=offset;
+	}
+
+	/**
+	 *
+	 * @param offset
+	 * @return the chunk boundary at or before the offset
+	 */
+	public static long align(long offset) {
+		return offset-offset%FileDigest.chunkSize;
+	}
+
+	/**
+	 * Check the next bytes, the buffer's position is not changed.
+	 * @param bytes
+	 * @return false if a chunk, now or before, did not match its digest
+	 */
+	public boolean update(ByteBuffer bytes) {
+		if(corrupt) return false;
+		ByteBuffer remaining=bytes.duplicate();
+		while(remaining.hasRemaining()) {
+			long chunkEnd=Math.min(align(position)+FileDigest.chunkSize, digest.getSize());
+			if(position>=chunkEnd) {
+				// more bytes than the file has
+				corrupt=true;
+				return false;
+			}
+			int n=(int)Math.min(remaining.remaining(), chunkEnd-position);
+			ByteBuffer part=remaining.duplicate();
+			part.limit(part.position()+n);
+			md.update(part);
+			remaining.position(remaining.position()+n);
+			position+=n;
+			if(position==chunkEnd) {
+				if(!digest.matches((int)(align(position-1)/FileDigest.chunkSize), md.digest())) {
+					corrupt=true;
+					return false;
+				}
+				verified=position;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 *
+	 * @return the offset up to which the bytes have been checked and match
+	 */
+	public long verified() {
+		return verified;
+	}
+
+	/**
+	 *
+	 * @return true if a chunk did not match its digest
+	 */
+	public boolean isCorrupt() {
+		return corrupt;
+	}
+}
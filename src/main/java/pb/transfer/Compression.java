@@ -0,0 +1,237 @@
+package pb.transfer;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.ByteBuffer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Deflate compression of the chunks of a transfer. Each transfer has its own
+ * {@link Encoder} and {@link Decoder}, which keep their dictionary from chunk
+ * to chunk; every chunk is sync flushed, so each bulk frame can be inflated as
+ * soon as it arrives.
+ * <br/>
+ * Content that is already compressed gets bigger, not smaller, so the sender
+ * first deflates a sample from the start of the transfer and only compresses
+ * if the sample shrinks by enough.
+ *
+ * @see {@link TransferEngine}
+ * @author aaron
+ *
+ */
+public class Compression {
+
+	/**
+	 * Name of the deflate encoding.
+	 */
+	public static final String deflate="deflate";
+
+	/**
+	 * Name of sending the bytes as they are.
+	 */
+	public static final String identity="identity";
+
+	/**
+	 * Size of the sample taken to decide whether to compress (bytes).
+	 */
+	public static final int sampleSize=64*1024;
+
+	/**
+	 * The sample must deflate to at most this fraction of its size.
+	 */
+	private static final double worthwhileRatio=0.9;
+
+	private static final ThreadMXBean threads=ManagementFactory.getThreadMXBean();
+
+	/**
+	 *
+	 * @param sample bytes from the start of the transfer, the buffer's
+	 * position is not changed
+	 * @return true if the sample deflates well enough to be worth compressing
+	 */
+	public static boolean worthCompressing(ByteBuffer sample) {
+		if(!sample.hasRemaining()) return false;
+		Deflater deflater=new Deflater(Deflater.BEST_SPEED);
+		try {
+			deflater.setInput(sample.duplicate());
+			deflater.finish();
+			ByteBuffer out=ByteBuffer.allocate(sample.remaining()+64);
+			while(!deflater.finished() && out.hasRemaining()) {
+				deflater.deflate(out);
+			}
+			return deflater.finished() && out.position()<=sample.remaining()*worthwhileRatio;
+		} finally {
+			deflater.end();
+		}
+	}
+
+	/**
+	 *
+	 * @return CPU time of the current thread, or elapsed time if it can't be
+	 * measured (ns)
+	 */
+	private static long cpuTime() {
+		if(threads.isCurrentThreadCpuTimeSupported()) return threads.getCurrentThreadCpuTime();
+		return System.nanoTime();
+	}
+
+	/**
+	 * Compresses the chunks of one transfer. Not thread safe, a transfer
+	 * sends one chunk at a time.
+	 */
+	public static class Encoder {
+		private final Deflater deflater=new Deflater(Deflater.BEST_SPEED);
+		private ByteBuffer out=ByteBuffer.allocate(64*1024);
+
+		/**
+		 * True while out holds a flushed chunk.
+		 */
+		private boolean flushed=false;
+
+		/**
+		 * Metrics.
+		 */
+		private long bytesIn=0;
+		private long bytesOut=0;
+		private long cpuNanos=0;
+
+		/**
+		 * Add bytes of the current chunk.
+		 * @param input the buffer's position is moved to its limit
+		 */
+		public void write(ByteBuffer input) {
+			long start=cpuTime();
+			if(flushed) {
+				out.clear();
+				flushed=false;
+			}
+			bytesIn+=input.remaining();
+			deflater.setInput(input);
+			while(!deflater.needsInput()) {
+				grow();
+				deflater.deflate(out, Deflater.NO_FLUSH);
+			}
+			cpuNanos+=cpuTime()-start;
+		}
+
+		/**
+		 * Finish the current chunk.
+		 * @return the compressed chunk, valid until the next call to
+		 * {@link #write(ByteBuffer)}
+		 */
+		public ByteBuffer flush() {
+			long start=cpuTime();
+			while(true) {
+				grow();
+				deflater.deflate(out, Deflater.SYNC_FLUSH);
+				// a sync flush is complete once it leaves room in the buffer
+				if(out.hasRemaining()) break;
+			}
+			out.flip();
+			flushed=true;
+			bytesOut+=out.remaining();
+			cpuNanos+=cpuTime()-start;
+			return out;
+		}
+
+		private void grow() {
+			if(out.remaining()>=1024) return;
+			ByteBuffer bigger=ByteBuffer.allocate(out.capacity()*2);
+			out.flip();
+			bigger.put(out);
+			out=bigger;
+		}
+
+		/**
+		 * Release the deflater.
+		 */
+		public void end() {
+			deflater.end();
+		}
+
+		/**
+		 *
+		 * @return the transfer's compression in the form "ratio=compressed/uncompressed,cpuMs=ms"
+		 */
+		public String stats() {
+			return String.format("ratio=%.2f,cpuMs=%d", bytesIn==0?1.0:(double)bytesOut/bytesIn,
+					cpuNanos/1000000);
+		}
+	}
+
+	/**
+	 * Where a {@link Decoder} puts the inflated bytes.
+	 */
+	public interface ISink {
+		/**
+		 * @param bytes inflated bytes, to be used before returning
+		 * @throws IOException
+		 */
+		void accept(ByteBuffer bytes) throws IOException;
+	}
+
+	/**
+	 * Inflates the chunks of one transfer, in the order they were sent.
+	 */
+	public static class Decoder {
+		private final Inflater inflater=new Inflater();
+		private final ByteBuffer out=ByteBuffer.allocate(64*1024);
+
+		/**
+		 * Metrics.
+		 */
+		private long bytesIn=0;
+		private long bytesOut=0;
+		private long cpuNanos=0;
+
+		/**
+		 * Inflate received bytes and give them to the sink.
+		 * @param input compressed bytes, the buffer's position is moved to
+		 * its limit
+		 * @param sink
+		 * @throws IOException if the bytes are not valid deflate data, or the
+		 * sink fails
+		 */
+		public void inflate(ByteBuffer input,ISink sink) throws IOException {
+			bytesIn+=input.remaining();
+			inflater.setInput(input);
+			try {
+				while(true) {
+					long start=cpuTime();
+					out.clear();
+					int n=inflater.inflate(out);
+					cpuNanos+=cpuTime()-start;
+					if(n==0) {
+						if(inflater.needsDictionary()) throw new IOException("deflate stream needs a dictionary");
+						// the input is used up
+						break;
+					}
+					out.flip();
+					bytesOut+=out.remaining();
+					sink.accept(out);
+				}
+			} catch (DataFormatException e) {
+				throw new IOException("compressed chunk is corrupt: "+e.getMessage());
+			}
+		}
+
+		/**
+		 * Release the inflater.
+		 */
+		public void end() {
+			inflater.end();
+		}
+
+		/**
+		 *
+		 * @return the transfer's compression in the form "ratio=compressed/uncompressed,cpuMs=ms"
+		 */
+		public String stats() {
+			return String.format("ratio=%.2f,cpuMs=%d", bytesOut==0?1.0:(double)bytesIn/bytesOut,
+					cpuNanos/1000000);
+		}
+	}
+}
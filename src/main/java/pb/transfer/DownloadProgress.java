@@ -0,0 +1,234 @@
+package pb.transfer;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.logging.Logger;
+
+/**
+ * Records which ranges of a download are on disk, in a small sidecar file next
+ * to the download, "filename.progress". If the download is interrupted, even
+ * by the peer being stopped, it can carry on from the recorded ranges rather
+ * than start again.
+ * <br/>
+ * The sidecar is a line "size:bytes", where bytes is -1 if the size is not
+ * known, then a line "digest:top" with the top digest of the file once it is
+ * known, followed by a line "offset:length" for each completed range. Ranges
+ * are appended as they complete; a partly written last line is ignored. The
+ * caller must force the downloaded bytes to disk before recording them, so
+ * that the sidecar never claims more than the download has.
+ *
+ * @see {@link SwarmDownload}
+ * @author aaron
+ *
+ */
+public class DownloadProgress {
+	private static Logger log = Logger.getLogger(DownloadProgress.class.getName());
+
+	private final File sidecar;
+
+	/**
+	 * The size of the download, -1 if it is not known.
+	 */
+	private long size=-1;
+
+	/**
+	 * The top digest of the download in hex, null if it is not known.
+	 */
+	private String digest;
+
+	/**
+	 * Completed ranges, start to end, merged so that none overlap or touch.
+	 */
+	private final TreeMap<Long,Long> completed=new TreeMap<>();
+
+	private FileChannel out;
+
+	/**
+	 *
+	 * @param filename
+	 * @return true if the download has a sidecar, so it was started before
+	 * and did not finish
+	 */
+	public static boolean exists(String filename) {
+		return new File(filename+".progress").exists();
+	}
+
+	/**
+	 * Load the progress of a download, if it has a sidecar.
+	 * @param filename the download
+	 * @throws IOException if the sidecar can't be written
+	 */
+	public DownloadProgress(String filename) throws IOException {
+		sidecar=new File(filename+".progress");
+		if(sidecar.exists()) {
+			try(BufferedReader in=new BufferedReader(new FileReader(sidecar,StandardCharsets.UTF_8))) {
+				String line;
+				while((line=in.readLine())!=null) {
+					String[] parts=line.split(":");
+					if(parts.length!=2) continue;
+					try {
+						if(parts[0].equals("size")) {
+							size=Long.parseLong(parts[1]);
+						} else if(parts[0].equals("digest")) {
+							digest=parts[1];
+						} else {
+							add(Long.parseLong(parts[0]),Long.parseLong(parts[1]));
+						}
+					} catch (NumberFormatException e) {
+						// a partly written line
+					}
+				}
+			}
+			log.info("resuming "+filename+" with "+completedBytes()+" bytes on disk");
+		}
+		rewrite();
+	}
+
+	/**
+	 * The size and digest of the download are known. Progress recorded for a
+	 * different size or digest is for a different file, so it is thrown away,
+	 * as is progress recorded without a digest, which can't be told apart.
+	 * @param size
+	 * @param digest the top digest in hex
+	 * @throws IOException if the sidecar can't be written
+	 */
+	public synchronized void setSize(long size,String digest) throws IOException {
+		if(this.size==size && digest.equals(this.digest)) return;
+		completed.clear();
+		this.size=size;
+		this.digest=digest;
+		rewrite();
+	}
+
+	/**
+	 *
+	 * @return the size of the download, -1 if it is not known
+	 */
+	public synchronized long getSize() {
+		return size;
+	}
+
+	/**
+	 * Record that a range is on disk.
+	 * @param offset
+	 * @param length
+	 * @throws IOException if the sidecar can't be written
+	 */
+	public synchronized void completed(long offset,long length) throws IOException {
+		if(length<=0) return;
+		add(offset,length);
+		write(offset+":"+length+"\n");
+	}
+
+	/**
+	 *
+	 * @param offset
+	 * @param length
+	 * @return true if the whole range is on disk
+	 */
+	public synchronized boolean covers(long offset,long length) {
+		Map.Entry<Long,Long> range=completed.floorEntry(offset);
+		return range!=null && range.getValue()>=offset+length;
+	}
+
+	/**
+	 *
+	 * @return the number of bytes on disk from the start of the download
+	 * without a gap
+	 */
+	public synchronized long prefix() {
+		Long end=completed.get(0L);
+		return end==null?0:end;
+	}
+
+	/**
+	 *
+	 * @return the number of bytes on disk
+	 */
+	public synchronized long completedBytes() {
+		long bytes=0;
+		for(Map.Entry<Long,Long> range : completed.entrySet()) {
+			bytes+=range.getValue()-range.getKey();
+		}
+		return bytes;
+	}
+
+	/**
+	 * The download is complete, remove the sidecar.
+	 */
+	public synchronized void finish() {
+		close();
+		if(!sidecar.delete()) log.warning("could not remove "+sidecar);
+	}
+
+	/**
+	 * Close the sidecar, leaving it to resume from.
+	 */
+	public synchronized void close() {
+		if(out==null) return;
+		try {
+			out.close();
+		} catch (IOException e) {
+			// ignore
+		}
+		out=null;
+	}
+
+	/**
+	 * Merge a range into the completed ranges.
+	 */
+	private void add(long offset,long length) {
+		long start=offset;
+		long end=offset+length;
+		Map.Entry<Long,Long> before=completed.floorEntry(start);
+		if(before!=null && before.getValue()>=start) {
+			start=before.getKey();
+			end=Math.max(end, before.getValue());
+		}
+		Map.Entry<Long,Long> after=completed.ceilingEntry(start);
+		while(after!=null && after.getKey()<=end) {
+			end=Math.max(end, after.getValue());
+			completed.remove(after.getKey());
+			after=completed.ceilingEntry(start);
+		}
+		completed.put(start, end);
+	}
+
+	/**
+	 * Write the sidecar from scratch, with the ranges merged. It is written
+	 * aside and moved into place, so a crash leaves the old or new sidecar.
+	 */
+	private void rewrite() throws IOException {
+		close();
+		File temp=new File(sidecar.getPath()+".tmp");
+		out=FileChannel.open(temp.toPath(), StandardOpenOption.CREATE,
+				StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+		StringBuilder sb=new StringBuilder("size:"+size+"\n");
+		if(digest!=null) sb.append("digest:"+digest+"\n");
+		completed.forEach((start,end)->{
+			sb.append(start+":"+(end-start)+"\n");
+		});
+		write(sb.toString());
+		close();
+		Files.move(temp.toPath(), sidecar.toPath(), StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+		out=FileChannel.open(sidecar.toPath(), StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+	}
+
+	private void write(String lines) throws IOException {
+		if(out==null) throw new IOException("progress of the download is closed");
+		ByteBuffer buffer=ByteBuffer.wrap(lines.getBytes(StandardCharsets.UTF_8));
+		while(buffer.hasRemaining()) out.write(buffer);
+		out.force(false);
+	}
+}
@@ -0,0 +1,382 @@
+package pb.transfer;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.logging.Logger;
+
+import pb.utils.Utils;
+
+/**
+ * Queues downloads and starts them in priority order, with at most maxActive
+ * downloads running at once and at most maxPerPeer from any one peer, so that
+ * a broad query does not open a connection for every file at once. Downloads
+ * of the same priority start in the order they were submitted. A download
+ * that fetches from more peers than the one it was submitted for, e.g. a
+ * swarm download, takes a slot for each of them with
+ * {@link Ticket#acquirePeer(String)}, so maxPerPeer holds for those too.
+ * <br/>
+ * A download runs asynchronously, it is told its {@link Ticket} and must call
+ * {@link Ticket#finished(boolean)} when it ends. In case it can't, e.g.
+ * because its connection gave up, it can have the scheduler watch the threads
+ * doing the download instead: once they have all terminated the download is
+ * taken to have ended. While downloads are running the scheduler regularly
+ * reports their progress and the aggregate throughput.
+ *
+ * @see {@link Ticket}
+ * @author aaron
+ *
+ */
+public class DownloadScheduler {
+	private static Logger log = Logger.getLogger(DownloadScheduler.class.getName());
+
+	/**
+	 * Starts a download.
+	 */
+	public interface IDownloadTask {
+		/**
+		 * Start the download, without waiting for it to end.
+		 * @param ticket for reporting progress and the end of the download
+		 * @throws InterruptedException
+		 */
+		public void start(Ticket ticket) throws InterruptedException;
+	}
+
+	/**
+	 * A download in the scheduler, and how far it has got.
+	 */
+	public class Ticket {
+		private final String name;
+		private final String peer;
+		private final int priority;
+		private final long sequence;
+		private final IDownloadTask task;
+
+		/**
+		 * Progress, guarded by the lock on the ticket.
+		 */
+		private long bytes=0;
+		private long total=-1;
+		private long started=0;
+
+		/**
+		 * Threads doing the download, guarded by the lock on the ticket.
+		 */
+		private final List<Thread> threads=new ArrayList<>();
+
+		/**
+		 * True once the download has ended, guarded by the lock on the
+		 * scheduler.
+		 */
+		private boolean done=false;
+
+		/**
+		 * Peers that the download holds a slot for, guarded by the lock on
+		 * the scheduler.
+		 */
+		private final Set<String> peers=new HashSet<>();
+
+		private Ticket(String name,String peer,int priority,long sequence,IDownloadTask task) {
+			this.name=name;
+			this.peer=peer;
+			this.priority=priority;
+			this.sequence=sequence;
+			this.task=task;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		/**
+		 * The size of the download is known.
+		 * @param total (bytes)
+		 */
+		public synchronized void setTotal(long total) {
+			this.total=total;
+		}
+
+		/**
+		 * Bytes of the download have been received.
+		 * @param count
+		 */
+		public void addBytes(long count) {
+			synchronized(this) {
+				bytes+=count;
+			}
+			synchronized(DownloadScheduler.this) {
+				receivedBytes+=count;
+			}
+		}
+
+		/**
+		 * Take the download to have ended once the thread, and any other
+		 * watched threads, have terminated.
+		 * @param thread
+		 */
+		public synchronized void watch(Thread thread) {
+			threads.add(thread);
+		}
+
+		/**
+		 * Take a slot for another peer that the download fetches from, if the
+		 * peer is below maxPerPeer. It does not wait for one.
+		 * @param peer "host:port" of the peer
+		 * @return true if the download holds a slot for the peer, false if it
+		 * should not fetch from the peer
+		 */
+		public boolean acquirePeer(String peer) {
+			synchronized(DownloadScheduler.this) {
+				if(done || !active.contains(this)) return false;
+				if(peers.contains(peer)) return true;
+				if(activePerPeer.getOrDefault(peer, 0)>=maxPerPeer) return false;
+				peers.add(peer);
+				activePerPeer.merge(peer, 1, Integer::sum);
+				return true;
+			}
+		}
+
+		/**
+		 * The download no longer fetches from a peer, let another download
+		 * from the peer start.
+		 * @param peer "host:port" of the peer
+		 */
+		public void releasePeer(String peer) {
+			synchronized(DownloadScheduler.this) {
+				if(!peers.remove(peer)) return;
+				releaseSlot(peer);
+			}
+			pump();
+		}
+
+		/**
+		 * The download has ended, let the next one start. Only the first call
+		 * counts.
+		 * @param ok true if the download completed
+		 */
+		public void finished(boolean ok) {
+			end(this,ok);
+		}
+
+		/**
+		 *
+		 * @return true if every watched thread has run and terminated
+		 */
+		private synchronized boolean threadsEnded() {
+			if(threads.isEmpty()) return false;
+			for(Thread thread : threads) {
+				if(thread.getState()!=Thread.State.TERMINATED) return false;
+			}
+			return true;
+		}
+
+		/**
+		 *
+		 * @return progress in the form "name 45% (1234/2742 KB, 512 KB/s)"
+		 */
+		private synchronized String progress() {
+			long elapsed=Math.max(1, System.currentTimeMillis()-started);
+			String rate=(bytes*1000/elapsed/1024)+" KB/s";
+			if(total<=0) return name+" ("+bytes/1024+" KB, "+rate+")";
+			return name+" "+(bytes*100/total)+"% ("+bytes/1024+"/"+total/1024+" KB, "+rate+")";
+		}
+	}
+
+	/**
+	 * Maximum number of downloads running at once.
+	 */
+	private final int maxActive;
+
+	/**
+	 * Maximum number of downloads running at once from one peer.
+	 */
+	private final int maxPerPeer;
+
+	/**
+	 * Time between progress reports (ms).
+	 */
+	private final long reportInterval;
+
+	/**
+	 * Downloads waiting to start, highest priority first, guarded by the
+	 * lock on the scheduler.
+	 */
+	private final TreeSet<Ticket> queue=new TreeSet<>((a,b)->{
+		if(a.priority!=b.priority) return Integer.compare(b.priority, a.priority);
+		return Long.compare(a.sequence, b.sequence);
+	});
+
+	/**
+	 * Running downloads, and the number running from each peer, guarded by
+	 * the lock on the scheduler.
+	 */
+	private final Set<Ticket> active=new HashSet<>();
+	private final Map<String,Integer> activePerPeer=new HashMap<>();
+
+	/**
+	 * Metrics, guarded by the lock on the scheduler.
+	 */
+	private long sequence=0;
+	private long finished=0;
+	private long failed=0;
+	private long receivedBytes=0;
+	private long firstStarted=0;
+	private long lastEnded=0;
+	private boolean reporting=false;
+
+	/**
+	 * Initialise the scheduler.
+	 * @param maxActive maximum number of downloads running at once
+	 * @param maxPerPeer maximum number of downloads running at once from
+	 * one peer
+	 * @param reportInterval time between progress reports (ms)
+	 */
+	public DownloadScheduler(int maxActive,int maxPerPeer,long reportInterval) {
+		this.maxActive=maxActive;
+		this.maxPerPeer=maxPerPeer;
+		this.reportInterval=reportInterval;
+	}
+
+	/**
+	 * Queue a download, it starts straight away if the limits allow.
+	 * @param name what is being downloaded, for reports
+	 * @param peer "host:port" of the peer the download is from
+	 * @param priority higher priorities start first
+	 * @param task starts the download
+	 * @return the download's ticket
+	 */
+	public Ticket submit(String name,String peer,int priority,IDownloadTask task) {
+		Ticket ticket;
+		synchronized(this) {
+			ticket=new Ticket(name,peer,priority,sequence++,task);
+			queue.add(ticket);
+			if(!active.isEmpty() || queue.size()>1) {
+				log.info("queued download of "+name+", "+queue.size()+" queued");
+			}
+		}
+		pump();
+		return ticket;
+	}
+
+	/**
+	 * Wait until every download that has been submitted has ended.
+	 * @throws InterruptedException
+	 */
+	public synchronized void awaitIdle() throws InterruptedException {
+		while(!queue.isEmpty() || !active.isEmpty()) {
+			wait();
+		}
+	}
+
+	/**
+	 * Start as many queued downloads as the limits allow.
+	 */
+	private void pump() {
+		List<Ticket> starting=new ArrayList<>();
+		synchronized(this) {
+			for(Ticket ticket : new ArrayList<Ticket>(queue)) {
+				if(active.size()>=maxActive) break;
+				if(activePerPeer.getOrDefault(ticket.peer, 0)>=maxPerPeer) continue;
+				queue.remove(ticket);
+				active.add(ticket);
+				ticket.peers.add(ticket.peer);
+				activePerPeer.merge(ticket.peer, 1, Integer::sum);
+				starting.add(ticket);
+			}
+			if(!starting.isEmpty() && firstStarted==0) firstStarted=System.currentTimeMillis();
+			if(!starting.isEmpty() && !reporting) {
+				reporting=true;
+				Utils.getInstance().setTimeout(()->{report();}, reportInterval);
+			}
+		}
+		for(Ticket ticket : starting) {
+			synchronized(ticket) {
+				ticket.started=System.currentTimeMillis();
+			}
+			try {
+				ticket.task.start(ticket);
+			} catch (InterruptedException | RuntimeException e) {
+				log.warning("download of "+ticket.name+" could not start: "+e);
+				end(ticket,false);
+			}
+		}
+	}
+
+	private void end(Ticket ticket,boolean ok) {
+		synchronized(this) {
+			if(ticket.done || !active.remove(ticket)) return;
+			ticket.done=true;
+			for(String peer : ticket.peers) {
+				releaseSlot(peer);
+			}
+			ticket.peers.clear();
+			if(ok) finished++; else failed++;
+			lastEnded=System.currentTimeMillis();
+			notifyAll();
+		}
+		pump();
+	}
+
+	/**
+	 * Caller must hold the lock on the scheduler.
+	 */
+	private void releaseSlot(String peer) {
+		activePerPeer.merge(peer, -1, Integer::sum);
+		activePerPeer.remove(peer, 0);
+	}
+
+	/**
+	 * Report progress, end downloads whose threads have all terminated and
+	 * schedule the next report while there are downloads.
+	 */
+	private void report() {
+		List<Ticket> running;
+		synchronized(this) {
+			running=new ArrayList<>(active);
+		}
+		for(Ticket ticket : running) {
+			if(ticket.threadsEnded()) {
+				log.info("download of "+ticket.name+" ended without finishing");
+				end(ticket,false);
+			}
+		}
+		StringBuilder sb=new StringBuilder();
+		synchronized(this) {
+			if(active.isEmpty() && queue.isEmpty()) {
+				reporting=false;
+				return;
+			}
+			sb.append("Downloads: "+active.size()+" active, "+queue.size()+" queued, "
+					+(finished+failed)+" ended, "+throughput()+" KB/s");
+			running=new ArrayList<>(active);
+		}
+		for(Ticket ticket : running) {
+			sb.append("\n  ").append(ticket.progress());
+		}
+		System.out.println(sb.toString());
+		Utils.getInstance().setTimeout(()->{report();}, reportInterval);
+	}
+
+	/**
+	 * Caller must hold the lock on the scheduler.
+	 * @return aggregate throughput since the first download started (KB/s)
+	 */
+	private long throughput() {
+		if(firstStarted==0) return 0;
+		long end=active.isEmpty()?lastEnded:System.currentTimeMillis();
+		return receivedBytes*1000/Math.max(1, end-firstStarted)/1024;
+	}
+
+	/**
+	 *
+	 * @return the scheduler metrics in the form "name=value,name=value,..."
+	 */
+	public synchronized String stats() {
+		return "downloadsFinished="+finished+",downloadsFailed="+failed+",downloadsQueued="+queue.size()
+			+",downloadsActive="+active.size()+",bytesReceived="+receivedBytes+",throughputKBs="+throughput();
+	}
+}
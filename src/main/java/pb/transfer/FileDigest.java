@@ -0,0 +1,207 @@
+package pb.transfer;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.stream.IntStream;
+
+import org.apache.commons.codec.DecoderException;
+import org.apache.commons.codec.binary.Hex;
+
+/**
+ * SHA-256 digests of a file: one per fixed size chunk and a top digest over
+ * the chunk digests, which identifies the whole file. A receiver checks each
+ * chunk as it arrives, see {@link ChunkVerifier}, and checks the chunk digests
+ * it was given against the top digest.
+ * <br/>
+ * Chunks are hashed in parallel, each streamed from the file through a small
+ * buffer, so the file is never held in memory. Digests of local files are
+ * cached, up to {@link #maxCached} files, and only computed again when the
+ * file's size or modification time changes.
+ *
+ * @see {@link ChunkVerifier}
+ * @author aaron
+ *
+ */
+public class FileDigest {
+
+	/**
+	 * Size of the chunks that are hashed (bytes).
+	 */
+	public static final int chunkSize=1024*1024;
+
+	/**
+	 * Maximum number of files whose digests are cached.
+	 */
+	public static final int maxCached=4096;
+
+	/**
+	 * Digests of local files, with the size and modification time they were
+	 * computed for, least recently used first. Guarded by its own lock.
+	 */
+	@SuppressWarnings("serial")
+	private static final Map<Path,FileDigest> cache=new LinkedHashMap<Path,FileDigest>(16,0.75f,true) {
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Path,FileDigest> eldest) {
+			return size()>maxCached;
+		}
+	};
+
+	private final long size;
+	private final byte[][] chunks;
+	private final byte[] top;
+
+	/**
+	 * Stamp of the local file the digests were computed from, 0 if they were
+	 * received.
+	 */
+	private final long modified;
+
+	private FileDigest(long size,byte[][] chunks,long modified) {
+		this.size=size;
+		this.chunks=chunks;
+		this.top=top(chunks);
+		this.modified=modified;
+	}
+
+	/**
+	 * The digests of a local file, computed if they are not cached or the
+	 * file has changed since.
+	 * @param path
+	 * @return the digests
+	 * @throws IOException if the file can't be read
+	 */
+	public static FileDigest of(Path path) throws IOException {
+		Path key=path.toAbsolutePath().normalize();
+		long size=Files.size(key);
+		long modified=Files.getLastModifiedTime(key).toMillis();
+		FileDigest digest;
+		synchronized(cache) {
+			digest=cache.get(key);
+		}
+		if(digest!=null && digest.size==size && digest.modified==modified) return digest;
+		// computed without the lock, so other files can be looked up meanwhile
+		digest=compute(key,size,modified);
+		synchronized(cache) {
+			cache.put(key, digest);
+		}
+		return digest;
+	}
+
+	private static FileDigest compute(Path path,long size,long modified) throws IOException {
+		int count=(int)((size+chunkSize-1)/chunkSize);
+		byte[][] chunks=new byte[count][];
+		try(FileChannel file=FileChannel.open(path, StandardOpenOption.READ)) {
+			IntStream.range(0, count).parallel().forEach((i)->{
+				MessageDigest md=sha256();
+				ByteBuffer buffer=ByteBuffer.allocate(64*1024);
+				long position=(long)i*chunkSize;
+				long end=Math.min(position+chunkSize, size);
+				try {
+					while(position<end) {
+						buffer.clear();
+						buffer.limit((int)Math.min(buffer.capacity(), end-position));
+						int n=file.read(buffer, position);
+						if(n<0) throw new IOException("file changed while hashing: "+path);
+						buffer.flip();
+						md.update(buffer);
+						position+=n;
+					}
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+				chunks[i]=md.digest();
+			});
+		} catch (UncheckedIOException e) {
+			throw e.getCause();
+		}
+		return new FileDigest(size,chunks,modified);
+	}
+
+	/**
+	 * Parse digests sent by another peer, see {@link #encode()}.
+	 * @param encoded
+	 * @return the digests
+	 * @throws IOException if they are malformed or do not match their top
+	 * digest
+	 */
+	public static FileDigest parse(String encoded) throws IOException {
+		String[] lines=encoded.split("\n");
+		try {
+			long size=Long.parseLong(lines[0]);
+			if(Integer.parseInt(lines[1])!=chunkSize) {
+				throw new IOException("digest has a different chunk size: "+lines[1]);
+			}
+			int count=(int)((size+chunkSize-1)/chunkSize);
+			if(lines.length!=3+count) throw new IOException("digest has the wrong number of chunks");
+			byte[][] chunks=new byte[count][];
+			for(int i=0;i<count;i++) {
+				chunks[i]=Hex.decodeHex(lines[3+i]);
+			}
+			FileDigest digest=new FileDigest(size,chunks,0);
+			if(!digest.getTop().equals(lines[2])) throw new IOException("chunk digests do not match the top digest");
+			return digest;
+		} catch (NumberFormatException | ArrayIndexOutOfBoundsException | DecoderException e) {
+			throw new IOException("digest is malformed: "+e.getMessage());
+		}
+	}
+
+	/**
+	 *
+	 * @return the digests as lines: size, chunk size, top digest and then
+	 * each chunk digest, digests in hex
+	 */
+	public String encode() {
+		StringBuilder sb=new StringBuilder();
+		sb.append(size).append("\n").append(chunkSize).append("\n").append(getTop());
+		for(byte[] chunk : chunks) {
+			sb.append("\n").append(Hex.encodeHexString(chunk));
+		}
+		return sb.toString();
+	}
+
+	public long getSize() {
+		return size;
+	}
+
+	/**
+	 *
+	 * @return the top digest in hex
+	 */
+	public String getTop() {
+		return Hex.encodeHexString(top);
+	}
+
+	/**
+	 *
+	 * @param chunk index of a chunk
+	 * @param digest
+	 * @return true if the digest is the digest of the chunk
+	 */
+	boolean matches(int chunk,byte[] digest) {
+		return chunk<chunks.length && Arrays.equals(chunks[chunk], digest);
+	}
+
+	static MessageDigest sha256() {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("SHA-256 is not available", e);
+		}
+	}
+
+	private static byte[] top(byte[][] chunks) {
+		MessageDigest md=sha256();
+		for(byte[] chunk : chunks) md.update(chunk);
+		return md.digest();
+	}
+}
@@ -0,0 +1,24 @@
+package pb.transfer;
+
+/**
+ * Told when an upload run by the {@link TransferEngine} ends. Called on one of
+ * the engine's threads.
+ *
+ * @see {@link TransferEngine}
+ * @author aaron
+ *
+ */
+public interface IUploadHandler {
+	/**
+	 * All of the upload has been sent.
+	 * @param upload
+	 */
+	public void uploadFinished(Upload upload);
+
+	/**
+	 * The upload could not continue, it has been closed.
+	 * @param upload
+	 * @param reason
+	 */
+	public void uploadFailed(Upload upload, String reason);
+}
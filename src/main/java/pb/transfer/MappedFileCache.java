@@ -0,0 +1,215 @@
+package pb.transfer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.logging.Logger;
+
+/**
+ * Memory mappings of the files being served, so that a popular file is
+ * mapped once and every upload of it reads from the same mapping, and so from
+ * the same pages of the page cache, instead of opening and reading the file
+ * again.
+ * <br/>
+ * Mappings are reference counted: {@link #acquire(Path)} adds a reference and
+ * {@link Mapping#release()} removes it. The total size of the mappings is
+ * kept within a budget by dropping the least recently used mappings that have
+ * no references, a mapping that is still referenced is counted until it is
+ * released. Java has no explicit unmap, a dropped mapping is unmapped
+ * when the garbage collector reclaims it. A file that does not fit in the
+ * budget, even after dropping, is not mapped and the caller reads it from a
+ * channel instead.
+ *
+ * @see {@link Upload}
+ * @author aaron
+ *
+ */
+public class MappedFileCache {
+	private static Logger log = Logger.getLogger(MappedFileCache.class.getName());
+
+	/**
+	 * A shared, read only mapping of a whole file.
+	 */
+	public class Mapping {
+		private final Path path;
+		private final MappedByteBuffer buffer;
+		private final long modified;
+
+		/**
+		 * References from uploads, guarded by the lock on the cache.
+		 */
+		private int references=0;
+
+		/**
+		 * True once the mapping has been dropped from the cache, guarded by
+		 * the lock on the cache.
+		 */
+		private boolean dropped=false;
+
+		private Mapping(Path path,MappedByteBuffer buffer,long modified) {
+			this.path=path;
+			this.buffer=buffer;
+			this.modified=modified;
+		}
+
+		/**
+		 *
+		 * @return the size of the file (bytes)
+		 */
+		public long size() {
+			return buffer.capacity();
+		}
+
+		/**
+		 * A view of part of the mapping with its own position and limit, so
+		 * that any number of threads can send from the mapping at once.
+		 * @param position
+		 * @param length
+		 * @return the bytes from position to position+length
+		 */
+		public ByteBuffer slice(long position,int length) {
+			ByteBuffer view=buffer.duplicate();
+			view.position((int)position);
+			view.limit((int)position+length);
+			return view;
+		}
+
+		/**
+		 * The file has changed under the mapping, e.g. reading the mapping
+		 * threw {@link InternalError} because the file was truncated. Drop
+		 * the mapping so that the next upload of the file maps it again.
+		 */
+		public void invalidate() {
+			synchronized(MappedFileCache.this) {
+				if(!dropped) drop(this);
+			}
+		}
+
+		/**
+		 * Remove a reference, the mapping must not be used after.
+		 */
+		public void release() {
+			synchronized(MappedFileCache.this) {
+				references--;
+				if(dropped) {
+					// a dropped mapping still counted until its last release
+					if(references==0) mappedBytes-=size();
+					return;
+				}
+				trim(0);
+			}
+		}
+	}
+
+	/**
+	 * Maximum total size of the mappings (bytes).
+	 */
+	private final long budget;
+
+	/**
+	 * Mappings by absolute path, least recently used first.
+	 */
+	private final LinkedHashMap<Path,Mapping> mappings=new LinkedHashMap<>(16,0.75f,true);
+
+	/**
+	 * Total size of the mappings (bytes), including dropped mappings that
+	 * are still referenced.
+	 */
+	private long mappedBytes=0;
+
+	/**
+	 * Metrics.
+	 */
+	private long hits=0;
+	private long misses=0;
+	private long dropped=0;
+	private long unmappable=0;
+
+	/**
+	 * Initialise the cache.
+	 * @param budget maximum total size of the mappings (bytes)
+	 */
+	public MappedFileCache(long budget) {
+		this.budget=budget;
+	}
+
+	/**
+	 * Get the mapping of a file, mapping it if it is not already mapped or
+	 * if it has changed since it was mapped, and add a reference to it.
+	 * @param path
+	 * @return the mapping, or null if the file can't be mapped within the
+	 * budget
+	 * @throws IOException if the file can't be read
+	 */
+	public synchronized Mapping acquire(Path path) throws IOException {
+		Path key=path.toAbsolutePath().normalize();
+		long modified=Files.getLastModifiedTime(key).toMillis();
+		long size=Files.size(key);
+		Mapping mapping=mappings.get(key);
+		if(mapping!=null && mapping.modified==modified && mapping.size()==size) {
+			hits++;
+			mapping.references++;
+			return mapping;
+		}
+		misses++;
+		if(mapping!=null) drop(mapping);
+		if(size>Integer.MAX_VALUE || !trim(size)) {
+			unmappable++;
+			return null;
+		}
+		try(FileChannel file=FileChannel.open(key, StandardOpenOption.READ)) {
+			mapping=new Mapping(key,file.map(FileChannel.MapMode.READ_ONLY, 0, size),modified);
+		}
+		mappings.put(key, mapping);
+		mappedBytes+=size;
+		mapping.references++;
+		log.fine("mapped "+key+", "+mappedBytes+" bytes mapped");
+		return mapping;
+	}
+
+	/**
+	 * Drop unreferenced mappings, least recently used first, until there is
+	 * room for the given number of bytes.
+	 * @param bytes
+	 * @return true if there is room
+	 */
+	private boolean trim(long bytes) {
+		Iterator<Mapping> lru=mappings.values().iterator();
+		while(mappedBytes+bytes>budget && lru.hasNext()) {
+			Mapping mapping=lru.next();
+			if(mapping.references>0) continue;
+			lru.remove();
+			mapping.dropped=true;
+			mappedBytes-=mapping.size();
+			dropped++;
+		}
+		return mappedBytes+bytes<=budget;
+	}
+
+	/**
+	 * Drop a mapping whether or not it is referenced, uploads that have it
+	 * keep using it until they release it, and its size stays counted until
+	 * the last of them does.
+	 */
+	private void drop(Mapping mapping) {
+		mappings.remove(mapping.path);
+		mapping.dropped=true;
+		if(mapping.references==0) mappedBytes-=mapping.size();
+		dropped++;
+	}
+
+	/**
+	 *
+	 * @return the cache metrics in the form "name=value,name=value,..."
+	 */
+	public synchronized String stats() {
+		return "mappedFiles="+mappings.size()+",mappedBytes="+mappedBytes+",mapHits="+hits
+			+",mapMisses="+misses+",mapsDropped="+dropped+",mapsUnmappable="+unmappable;
+	}
+}
@@ -0,0 +1,414 @@
+package pb.transfer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The state of downloading one file from several sources at once. The file is
+ * split into fixed size ranges which sources claim one at a time, so faster
+ * sources end up fetching more ranges. Received bytes are written at their
+ * place in the file, which is preallocated once its size is known, so ranges
+ * can arrive in any order.
+ * <br/>
+ * A range that fails on a source goes back to be fetched by another source.
+ * A source with nothing left to claim stays idle rather than leaving, and is
+ * woken when a range it can fetch is put back or the download ends. The
+ * download fails once a range is left that has failed on every source still
+ * connected, or no source is left at all. Each range is checked against the
+ * file's {@link FileDigest} as it arrives, a range that does not match fails
+ * like any other. Completed ranges are recorded in a {@link DownloadProgress},
+ * so a download that is started again only fetches the ranges it does not
+ * have.
+ *
+ * @see {@link Range}
+ * @author aaron
+ *
+ */
+public class SwarmDownload {
+
+	/**
+	 * A range of the file being fetched from a source.
+	 */
+	public static class Range {
+		private final long offset;
+		private final long length;
+
+		/**
+		 * Sources the range has failed on.
+		 */
+		private final Set<String> failedOn=new HashSet<>();
+
+		/**
+		 * Bytes of the range written so far in the current attempt.
+		 */
+		private long written=0;
+
+		/**
+		 * Checks the bytes of the current attempt.
+		 */
+		private ChunkVerifier verifier;
+
+		Range(long offset,long length) {
+			this.offset=offset;
+			this.length=length;
+		}
+
+		public long getOffset() {
+			return offset;
+		}
+
+		public long getLength() {
+			return length;
+		}
+
+		/**
+		 *
+		 * @return true if bytes of the current attempt did not match the
+		 * file's digest
+		 */
+		public synchronized boolean isCorrupt() {
+			return verifier!=null && verifier.isCorrupt();
+		}
+	}
+
+	private final String filename;
+	private final FileChannel file;
+	private final long rangeSize;
+	private final DownloadProgress progress;
+
+	/**
+	 * The size of the file, -1 until a source has said.
+	 */
+	private long size=-1;
+
+	/**
+	 * The digest of the file, null until a source has sent it.
+	 */
+	private FileDigest digest;
+
+	/**
+	 * Ranges not yet claimed by a source.
+	 */
+	private final ArrayDeque<Range> pending=new ArrayDeque<>();
+
+	/**
+	 * Ranges claimed by a source.
+	 */
+	private final Set<Range> claimed=new HashSet<>();
+
+	/**
+	 * Sources that can still fetch ranges, from when the download starts
+	 * with them until their connection has ended for good.
+	 */
+	private final Set<String> sources=new HashSet<>();
+
+	/**
+	 * Sources with nothing to claim, to wake when a range is put back or the
+	 * download ends.
+	 */
+	private final Map<String,Runnable> idle=new HashMap<>();
+
+	private int completed=0;
+	private int ranges=0;
+	private boolean failed=false;
+	private boolean resumed=false;
+
+	/**
+	 * True once the end of the download has been taken, see {@link #takeEnd()}.
+	 */
+	private boolean ended=false;
+
+	/**
+	 * Initialise a download.
+	 * @param filename
+	 * @param file open for writing, the download writes at positions in it
+	 * @param rangeSize size of each range (bytes), a multiple of
+	 * {@link FileDigest#chunkSize}
+	 * @param progress the ranges already on disk, updated as ranges complete
+	 */
+	public SwarmDownload(String filename,FileChannel file,long rangeSize,DownloadProgress progress) {
+		this.filename=filename;
+		this.file=file;
+		this.rangeSize=rangeSize;
+		this.progress=progress;
+	}
+
+	public String getFilename() {
+		return filename;
+	}
+
+	/**
+	 * A source has sent the digest of the file. The first call preallocates
+	 * the file and splits it into ranges, leaving out the ranges already on
+	 * disk.
+	 * @param digest
+	 * @return false if the digest is different to what an earlier source sent,
+	 * so the source does not have the same file
+	 * @throws IOException if the file could not be preallocated
+	 */
+	public synchronized boolean setDigest(FileDigest digest) throws IOException {
+		if(this.digest!=null) return this.digest.getTop().equals(digest.getTop());
+		this.digest=digest;
+		long size=digest.getSize();
+		this.size=size;
+		progress.setSize(size,digest.getTop());
+		file.truncate(size);
+		if(file.size()<size) file.write(ByteBuffer.wrap(new byte[1]), size-1);
+		for(long offset=0;offset<size;offset+=rangeSize) {
+			long length=Math.min(rangeSize, size-offset);
+			if(progress.covers(offset, length)) {
+				completed++;
+			} else {
+				pending.add(new Range(offset,length));
+			}
+			ranges++;
+		}
+		if(completed>0) resumed=true;
+		if(completed==ranges) progress.finish();
+		return true;
+	}
+
+	/**
+	 * A source that the download fetches from, until {@link #sourceEnded(String)}.
+	 * @param source "host:port" of the source
+	 */
+	public synchronized void addSource(String source) {
+		sources.add(source);
+	}
+
+	/**
+	 * Claim the next range for a source to fetch.
+	 * @param source "host:port" of the source
+	 * @param wake run, once, when a range that the source can fetch is put
+	 * back or the download ends, if there is no range for it now
+	 * @return a range that has not failed on the source, or null if there is
+	 * none for it now
+	 */
+	public synchronized Range claim(String source,Runnable wake) {
+		if(failed) return null;
+		for(Range range : pending) {
+			if(!range.failedOn.contains(source)) {
+				pending.remove(range);
+				claimed.add(range);
+				range.written=0;
+				synchronized(range) {
+					range.verifier=new ChunkVerifier(digest,range.offset);
+				}
+				return range;
+			}
+		}
+		if(!isComplete()) idle.put(source,wake);
+		return null;
+	}
+
+	/**
+	 * Check received bytes of a claimed range and write them at their place
+	 * in the file. Bytes that do not match the digest are not written.
+	 * @param range
+	 * @param buffer the bytes, written in full
+	 * @throws IOException if the bytes could not be written
+	 */
+	public void write(Range range,ByteBuffer buffer) throws IOException {
+		long position;
+		synchronized(this) {
+			position=range.offset+range.written;
+			range.written+=buffer.remaining();
+		}
+		synchronized(range) {
+			if(!range.verifier.update(buffer)) return;
+		}
+		while(buffer.hasRemaining()) {
+			position+=file.write(buffer, position);
+		}
+	}
+
+	/**
+	 * The source has sent all of a claimed range, record it once it is on
+	 * disk.
+	 * @param range
+	 * @return true if the range was complete, false if bytes were missing, did
+	 * not match the digest or could not be stored, in which case the caller
+	 * should fail it
+	 */
+	public boolean complete(Range range) {
+		List<Runnable> wake=new ArrayList<>();
+		synchronized(this) {
+			if(!claimed.contains(range) || range.written!=range.length) return false;
+			synchronized(range) {
+				if(range.verifier.verified()!=range.offset+range.length) return false;
+			}
+			try {
+				file.force(false);
+				progress.completed(range.offset, range.length);
+			} catch (IOException e) {
+				return false;
+			}
+			claimed.remove(range);
+			completed++;
+			if(completed==ranges) {
+				progress.finish();
+				// idle sources can leave now
+				wake.addAll(idle.values());
+				idle.clear();
+			}
+		}
+		wake.forEach(Runnable::run);
+		return true;
+	}
+
+	/**
+	 * A claimed range failed on a source, put it back for another source and
+	 * wake an idle source that can fetch it.
+	 * @param range
+	 * @param source "host:port" of the source
+	 * @return true if this has failed the download, because no source that
+	 * is left can fetch the range
+	 */
+	public boolean fail(Range range,String source) {
+		List<Runnable> wake=new ArrayList<>();
+		boolean failedNow;
+		synchronized(this) {
+			if(!claimed.remove(range)) return false;
+			range.failedOn.add(source);
+			pending.addFirst(range);
+			failedNow=checkSources();
+			if(failedNow) {
+				wake.addAll(idle.values());
+				idle.clear();
+			} else {
+				for(String waiting : idle.keySet()) {
+					if(!range.failedOn.contains(waiting)) {
+						wake.add(idle.remove(waiting));
+						break;
+					}
+				}
+			}
+		}
+		wake.forEach(Runnable::run);
+		return failedNow;
+	}
+
+	/**
+	 * A source's connection has ended for good, whether or not it ever
+	 * connected. Any range it had claimed must have been failed first.
+	 * @param source "host:port" of the source
+	 * @return true if this has failed the download, because the sources that
+	 * are left can't fetch what remains
+	 */
+	public boolean sourceEnded(String source) {
+		List<Runnable> wake=new ArrayList<>();
+		boolean failedNow;
+		synchronized(this) {
+			if(!sources.remove(source)) return false;
+			idle.remove(source);
+			failedNow=checkSources();
+			if(failedNow) {
+				wake.addAll(idle.values());
+				idle.clear();
+			}
+		}
+		wake.forEach(Runnable::run);
+		return failedNow;
+	}
+
+	/**
+	 * Fail the download if no source is left that can fetch a pending range,
+	 * or no source is left at all before it is complete. Caller must hold
+	 * the lock.
+	 * @return true if this has failed the download
+	 */
+	private boolean checkSources() {
+		if(failed || isComplete()) return false;
+		boolean stuck=sources.isEmpty();
+		for(Range range : pending) {
+			if(stuck) break;
+			stuck=range.failedOn.containsAll(sources);
+		}
+		failed=stuck;
+		return failed;
+	}
+
+	/**
+	 * Take the end of the download, once it is complete or has failed, so that
+	 * only one of its sources reports it.
+	 * @return true the first time it is called after the download has ended
+	 */
+	public synchronized boolean takeEnd() {
+		if(ended || !(isComplete() || failed)) return false;
+		ended=true;
+		return true;
+	}
+
+	/**
+	 *
+	 * @return true when every range has been written
+	 */
+	public synchronized boolean isComplete() {
+		return size!=-1 && completed==ranges;
+	}
+
+	/**
+	 *
+	 * @return true if a range is left that no source can fetch
+	 */
+	public synchronized boolean isFailed() {
+		return failed;
+	}
+
+	/**
+	 *
+	 * @return true once a source has sent the digest of the file
+	 */
+	public synchronized boolean hasDigest() {
+		return digest!=null;
+	}
+	
+	/**
+	 *
+	 * @return true if some ranges were already on disk when the download
+	 * started
+	 */
+	public synchronized boolean isResumed() {
+		return resumed;
+	}
+	
+	/**
+	 *
+	 * @return the bytes of the ranges that are not yet complete, 0 until a
+	 * source has sent the digest
+	 */
+	public synchronized long remaining() {
+		long bytes=0;
+		for(Range range : pending) bytes+=range.length;
+		for(Range range : claimed) bytes+=range.length;
+		return bytes;
+	}
+
+	/**
+	 *
+	 * @return progress in the form "completed/ranges ranges"
+	 */
+	public synchronized String progress() {
+		return completed+"/"+ranges+" ranges";
+	}
+
+	/**
+	 * Close the file, and its progress if the download is not complete.
+	 */
+	public void close() {
+		progress.close();
+		try {
+			file.close();
+		} catch (IOException e) {
+			// ignore
+		}
+	}
+}
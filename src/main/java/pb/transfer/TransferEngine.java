@@ -0,0 +1,313 @@
+package pb.transfer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+/**
+ * Runs uploads in parallel on its own threads rather than on the timer
+ * thread, so that one slow receiver does not hold up the others. At most
+ * maxUploads uploads are admitted at a time; later uploads wait, in the order
+ * they were started, for an admitted upload to end. An admitted upload sends
+ * for as long as its receiver has granted credit and then gives up its
+ * thread until {@link #grant(Upload, long)} is called again.
+ * <br/>
+ * The chunk size of each upload adapts: it doubles while chunks are sent
+ * quickly and halves when sending one blocks, between minChunk and maxChunk.
+ * An upload with an encoder sends each chunk compressed, see
+ * {@link Compression}.
+ *
+ * @see {@link Upload}
+ * @see {@link BufferPool}
+ * @author aaron
+ *
+ */
+public class TransferEngine {
+	private static Logger log = Logger.getLogger(TransferEngine.class.getName());
+
+	/**
+	 * Maximum number of uploads sending at the same time.
+	 */
+	private final int maxUploads;
+
+	/**
+	 * Smallest and largest chunk sizes (bytes).
+	 */
+	private final int minChunk;
+	private final int maxChunk;
+
+	/**
+	 * Buffers for transfers that can't go straight between channels.
+	 */
+	private final BufferPool buffers;
+
+	private final IUploadHandler handler;
+
+	private final ExecutorService executor;
+
+	/**
+	 * Admitted uploads and uploads waiting to be admitted, guarded by the
+	 * lock on admitted.
+	 */
+	private final Set<Upload> admitted=new HashSet<>();
+	private final ArrayDeque<Upload> waiting=new ArrayDeque<>();
+
+	/**
+	 * Metrics, guarded by the lock on admitted.
+	 */
+	private long finished=0;
+	private long failed=0;
+
+	/**
+	 * Initialise the engine.
+	 * @param maxUploads maximum number of uploads sending at the same time
+	 * @param minChunk smallest chunk size (bytes)
+	 * @param maxChunk largest chunk size (bytes)
+	 * @param buffers
+	 * @param handler told when uploads end
+	 */
+	public TransferEngine(int maxUploads,int minChunk,int maxChunk,BufferPool buffers,
+			IUploadHandler handler) {
+		this.maxUploads=maxUploads;
+		this.minChunk=minChunk;
+		this.maxChunk=maxChunk;
+		this.buffers=buffers;
+		this.handler=handler;
+		AtomicInteger threads=new AtomicInteger();
+		executor=Executors.newFixedThreadPool(maxUploads,(runnable)->{
+			Thread thread=new Thread(runnable,"Upload-"+threads.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+
+	/**
+	 *
+	 * @return the buffer pool for transfers
+	 */
+	public BufferPool buffers() {
+		return buffers;
+	}
+
+	/**
+	 * Start an upload, or queue it if maxUploads uploads are already
+	 * admitted. It sends nothing until it is granted credit.
+	 * @param upload
+	 */
+	public void start(Upload upload) {
+		synchronized(upload) {
+			upload.chunk=minChunk;
+		}
+		synchronized(admitted) {
+			if(admitted.size()<maxUploads) {
+				admit(upload);
+			} else {
+				waiting.add(upload);
+				log.info("upload of "+upload.getStreamId()+" is waiting, "+waiting.size()+" waiting");
+			}
+		}
+	}
+
+	/**
+	 * The receiver has granted more credit, start sending again if the upload
+	 * was waiting for it.
+	 * @param upload
+	 * @param bytes
+	 */
+	public void grant(Upload upload,long bytes) {
+		synchronized(upload) {
+			upload.credit+=bytes;
+		}
+		schedule(upload);
+	}
+
+	/**
+	 * Stop an upload, e.g. because its endpoint has gone.
+	 * @param upload
+	 */
+	public void cancel(Upload upload) {
+		upload.close();
+		release(upload);
+	}
+
+	/**
+	 * Stop the engine threads, uploads in progress are abandoned.
+	 */
+	public void shutdown() {
+		executor.shutdownNow();
+	}
+
+	/**
+	 * Caller must hold the lock on admitted.
+	 */
+	private void admit(Upload upload) {
+		admitted.add(upload);
+		synchronized(upload) {
+			upload.admitted=true;
+		}
+		schedule(upload);
+	}
+
+	/**
+	 * Put the upload on an engine thread if it is admitted, has credit and
+	 * is not already there.
+	 */
+	private void schedule(Upload upload) {
+		synchronized(upload) {
+			if(upload.done || !upload.admitted || upload.scheduled || upload.credit==0) return;
+			upload.scheduled=true;
+		}
+		executor.execute(()->{
+			send(upload);
+		});
+	}
+
+	/**
+	 * Send chunks for as long as there is credit.
+	 */
+	private void send(Upload upload) {
+		try {
+			while(true) {
+				long count;
+				synchronized(upload) {
+					if(upload.done) return;
+					count=Math.min(upload.chunk, Math.min(upload.credit, upload.getEnd()-upload.position));
+					if(count<=0 && upload.position<upload.getEnd()) {
+						upload.scheduled=false; // wait for credit
+						break;
+					}
+				}
+				if(count>0) {
+					long start=System.nanoTime();
+					boolean sent;
+					long wire=count;
+					if(upload.getEncoder()!=null) {
+						ByteBuffer frame=encode(upload,count);
+						if(frame==null) return; // cancelled while compressing
+						wire=frame.remaining();
+						sent=upload.getEndpoint().sendBulk(upload.getStreamId(), frame);
+					} else if(upload.getMapping()!=null) {
+						sent=upload.getEndpoint().sendBulk(upload.getStreamId(),
+								upload.getMapping().slice(upload.position, (int)count));
+					} else {
+						sent=upload.getEndpoint().sendBulk(upload.getStreamId(), upload.getFile(),
+								upload.position, count);
+					}
+					if(!sent) {
+						end(upload,false,"the endpoint has closed");
+						return;
+					}
+					long took=(System.nanoTime()-start)/1000000;
+					synchronized(upload) {
+						upload.position+=count;
+						upload.credit-=wire;
+						if(took<10 && count==upload.chunk) {
+							upload.chunk=Math.min(upload.chunk*2, maxChunk);
+						} else if(took>100) {
+							upload.chunk=Math.max(upload.chunk/2, minChunk);
+						}
+					}
+				}
+				if(upload.position>=upload.getEnd()) {
+					end(upload,true,null);
+					return;
+				}
+			}
+		} catch (RuntimeException | IOException e) {
+			end(upload,false,e.toString());
+			return;
+		} catch (InternalError e) {
+			// reading a mapping whose file has been truncated
+			if(upload.getMapping()==null) throw e;
+			upload.getMapping().invalidate();
+			end(upload,false,"the file changed while it was sent: "+e);
+			return;
+		}
+		// credit may have arrived after we looked
+		schedule(upload);
+	}
+
+	/**
+	 * Compress the next count bytes of the upload, holding the encoder's lock
+	 * so that the upload can't end the encoder meanwhile.
+	 * @return the compressed chunk, or null if the upload is done and its
+	 * encoder ended
+	 * @throws IOException if the file can't be read
+	 */
+	private ByteBuffer encode(Upload upload,long count) throws IOException {
+		Compression.Encoder encoder=upload.getEncoder();
+		synchronized(encoder) {
+			if(upload.isDone()) return null;
+			return encode(upload,encoder,count);
+		}
+	}
+
+	private ByteBuffer encode(Upload upload,Compression.Encoder encoder,long count) throws IOException {
+		if(upload.getMapping()!=null) {
+			encoder.write(upload.getMapping().slice(upload.position, (int)count));
+			return encoder.flush();
+		}
+		ByteBuffer buffer=buffers.acquire();
+		try {
+			long position=upload.position;
+			long end=position+count;
+			while(position<end) {
+				buffer.clear();
+				buffer.limit((int)Math.min(buffer.capacity(), end-position));
+				int n=upload.getFile().read(buffer, position);
+				if(n<0) throw new IOException("file ended before "+count+" bytes were read");
+				buffer.flip();
+				encoder.write(buffer);
+				position+=n;
+			}
+		} finally {
+			buffers.release(buffer);
+		}
+		return encoder.flush();
+	}
+
+	private void end(Upload upload,boolean ok,String reason) {
+		upload.close();
+		synchronized(admitted) {
+			if(ok) finished++; else failed++;
+		}
+		if(ok) {
+			handler.uploadFinished(upload);
+		} else {
+			handler.uploadFailed(upload, reason);
+		}
+		release(upload);
+	}
+
+	/**
+	 * Let the next waiting upload in, if the upload was admitted.
+	 */
+	private void release(Upload upload) {
+		synchronized(admitted) {
+			if(!admitted.remove(upload)) {
+				waiting.remove(upload);
+				return;
+			}
+			while(admitted.size()<maxUploads && !waiting.isEmpty()) {
+				admit(waiting.poll());
+			}
+		}
+	}
+
+	/**
+	 *
+	 * @return the engine metrics in the form "name=value,name=value,..."
+	 */
+	public String stats() {
+		synchronized(admitted) {
+			return "uploadsActive="+admitted.size()+",uploadsWaiting="+waiting.size()
+				+",uploadsFinished="+finished+",uploadsFailed="+failed+","+buffers.stats();
+		}
+	}
+}
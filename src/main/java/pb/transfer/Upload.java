@@ -0,0 +1,188 @@
+package pb.transfer;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+
+import pb.managers.endpoint.Endpoint;
+
+/**
+ * The state of sending one range of a file, possibly all of it, on one
+ * endpoint: how far it has got, how much credit the receiver has granted and
+ * the current chunk size. Chunks are sent as bulk frames on the endpoint with the stream id,
+ * either from a shared mapping of the file or from the file's channel.
+ * Guarded by its own lock, the bytes are sent without holding it.
+ *
+ * @see {@link TransferEngine}
+ * @author aaron
+ *
+ */
+public class Upload {
+
+	private final String streamId;
+	private final FileChannel file;
+	private final MappedFileCache.Mapping mapping;
+	private final long end;
+	private final Endpoint endpoint;
+
+	/**
+	 * Next byte of the file to send.
+	 */
+	long position=0;
+
+	/**
+	 * Compresses the chunks, null to send them as they are. Used and ended
+	 * holding its own lock, so it is not ended while an engine thread is in
+	 * the middle of a chunk.
+	 */
+	private Compression.Encoder encoder;
+
+	/**
+	 * Bytes the receiver has granted that have not been sent. Compressed
+	 * chunks use their compressed size, which is what the receiver grants
+	 * back, so this can go below zero when a chunk does not shrink.
+	 */
+	long credit=0;
+
+	/**
+	 * Current chunk size (bytes).
+	 */
+	int chunk;
+
+	/**
+	 * True while the upload is on, or queued for, an engine thread.
+	 */
+	boolean scheduled=false;
+
+	/**
+	 * True once the engine has let the upload start sending.
+	 */
+	boolean admitted=false;
+
+	/**
+	 * True once the upload has finished, failed or been cancelled.
+	 */
+	boolean done=false;
+
+	/**
+	 * Initialise an upload of a range of the file.
+	 * @param streamId the stream to send the range on
+	 * @param file open for reading, closed when the upload ends
+	 * @param endpoint
+	 * @param offset first byte of the range
+	 * @param length number of bytes in the range, the file must have them
+	 */
+	public Upload(String streamId,FileChannel file,Endpoint endpoint,long offset,long length) {
+		this.streamId=streamId;
+		this.file=file;
+		this.mapping=null;
+		this.endpoint=endpoint;
+		this.position=offset;
+		this.end=offset+length;
+	}
+
+	/**
+	 * Initialise an upload of a range of a mapped file.
+	 * @param streamId the stream to send the range on
+	 * @param mapping a reference to the mapping, released when the upload ends
+	 * @param endpoint
+	 * @param offset first byte of the range
+	 * @param length number of bytes in the range, the file must have them
+	 */
+	public Upload(String streamId,MappedFileCache.Mapping mapping,Endpoint endpoint,long offset,long length) {
+		this.streamId=streamId;
+		this.file=null;
+		this.mapping=mapping;
+		this.endpoint=endpoint;
+		this.position=offset;
+		this.end=offset+length;
+	}
+
+	public String getStreamId() {
+		return streamId;
+	}
+
+	public Endpoint getEndpoint() {
+		return endpoint;
+	}
+
+	/**
+	 *
+	 * @return the file's channel, null if the upload sends from a mapping
+	 */
+	FileChannel getFile() {
+		return file;
+	}
+
+	/**
+	 *
+	 * @return the mapping of the file, null if the upload sends from the
+	 * file's channel
+	 */
+	MappedFileCache.Mapping getMapping() {
+		return mapping;
+	}
+
+	/**
+	 * @return one past the last byte to send
+	 */
+	long getEnd() {
+		return end;
+	}
+
+	/**
+	 * Compress the chunks, must be set before the upload is started.
+	 * @param encoder
+	 */
+	public void setEncoder(Compression.Encoder encoder) {
+		this.encoder=encoder;
+	}
+
+	/**
+	 *
+	 * @return the encoder, null if the chunks are sent as they are
+	 */
+	public Compression.Encoder getEncoder() {
+		return encoder;
+	}
+
+	/**
+	 *
+	 * @return the next byte of the file to send
+	 */
+	public synchronized long getPosition() {
+		return position;
+	}
+
+	/**
+	 * 
+	 * @return true once the upload has finished, failed or been cancelled
+	 */
+	synchronized boolean isDone() {
+		return done;
+	}
+
+	/**
+	 * Mark the upload done and close the file or release the mapping, once.
+	 */
+	void close() {
+		synchronized(this) {
+			if(done) return;
+			done=true;
+		}
+		if(encoder!=null) {
+			// waits for a chunk being compressed
+			synchronized(encoder) {
+				encoder.end();
+			}
+		}
+		if(mapping!=null) {
+			mapping.release();
+			return;
+		}
+		try {
+			file.close();
+		} catch (IOException e) {
+			// ignore
+		}
+	}
+}
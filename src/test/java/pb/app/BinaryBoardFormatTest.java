@@ -0,0 +1,146 @@
+package pb.app;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.awt.Color;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * Round trips through {@link BinaryBoardFormat}, including the edge cases
+ * that a board loaded from its text format does not cover, and data that is
+ * not a whole board.
+ *
+ * @author aaron
+ *
+ */
+public class BinaryBoardFormatTest {
+
+	private static WhiteboardPath path(Color color,int... coords) {
+		WhiteboardPath path=new WhiteboardPath(color);
+		for(int i=0;i<coords.length;i+=2) {
+			path.addPoint(coords[i], coords[i+1]);
+		}
+		path.finish();
+		return path;
+	}
+
+	/**
+	 * Encode and decode the board, checking that the version, colors and
+	 * points all survive.
+	 * @return the decoded paths
+	 */
+	private static List<WhiteboardPath> roundTrip(long version,List<WhiteboardPath> paths) throws IOException {
+		byte[] bytes=BinaryBoardFormat.encode(version, paths);
+		List<WhiteboardPath> decoded=new ArrayList<>();
+		ByteBuffer data=ByteBuffer.wrap(bytes);
+		assertEquals(version, BinaryBoardFormat.decode(data, decoded));
+		assertEquals("all of the data is read", 0, data.remaining());
+		assertEquals(paths.size(), decoded.size());
+		for(int i=0;i<paths.size();i++) {
+			WhiteboardPath expected=paths.get(i);
+			WhiteboardPath actual=decoded.get(i);
+			assertEquals(expected.color, actual.color);
+			assertEquals(expected.color.getAlpha(), actual.color.getAlpha());
+			assertEquals(expected.length(), actual.length());
+			for(int j=0;j<expected.length();j++) {
+				assertEquals(expected.getX(j), actual.getX(j));
+				assertEquals(expected.getY(j), actual.getY(j));
+			}
+		}
+		return decoded;
+	}
+
+	private static byte[] sample() {
+		return BinaryBoardFormat.encode(42, Arrays.asList(
+				path(Color.black,10,10,20,30,-5,7),
+				path(new Color(12,34,56,78),Integer.MAX_VALUE,Integer.MIN_VALUE)));
+	}
+
+	@Test
+	public void emptyBoard() throws IOException {
+		roundTrip(0, new ArrayList<WhiteboardPath>());
+		roundTrip(7, new ArrayList<WhiteboardPath>());
+	}
+
+	@Test
+	public void extremeVersions() throws IOException {
+		for(long version : new long[] {-1, Long.MIN_VALUE, Long.MAX_VALUE}) {
+			roundTrip(version, new ArrayList<WhiteboardPath>());
+		}
+	}
+
+	@Test
+	public void emptyAndOnePointPaths() throws IOException {
+		roundTrip(3, Arrays.asList(path(Color.black), path(Color.red,5,6), path(Color.black)));
+	}
+
+	@Test
+	public void negativeAndExtremeCoordinates() throws IOException {
+		roundTrip(1, Arrays.asList(
+				path(Color.black,-1,-1,-1000,-70000,0,0),
+				path(Color.red,Integer.MIN_VALUE,Integer.MAX_VALUE,Integer.MAX_VALUE,Integer.MIN_VALUE,
+						Integer.MIN_VALUE,Integer.MIN_VALUE,0,Integer.MAX_VALUE)));
+	}
+
+	@Test
+	public void colorsNotInTheNamedColors() throws IOException {
+		Color translucent=new Color(255,0,0,128);
+		Color blue=new Color(0,0,255);
+		List<WhiteboardPath> decoded=roundTrip(2, Arrays.asList(
+				path(blue,1,1), path(translucent,2,2), path(blue,3,3),
+				path(new Color(0,0,0),4,4), path(Color.red,5,5)));
+		// paths of the same color share a palette entry
+		assertSame(decoded.get(0).color, decoded.get(2).color);
+		// colors that paths are compared with by identity stay the same objects
+		assertSame(Color.black, decoded.get(3).color);
+		assertSame(Color.red, decoded.get(4).color);
+	}
+
+	@Test
+	public void truncatedData() {
+		byte[] bytes=sample();
+		for(int length=0;length<bytes.length;length++) {
+			try {
+				BinaryBoardFormat.decode(ByteBuffer.wrap(Arrays.copyOf(bytes, length)), new ArrayList<WhiteboardPath>());
+				fail("decoded a board truncated to "+length+" of "+bytes.length+" bytes");
+			} catch (IOException e) {
+				// expected
+			}
+		}
+	}
+
+	@Test
+	public void notABoard() {
+		byte[] bytes=sample();
+		byte[] badMagic=bytes.clone();
+		badMagic[0]='X';
+		byte[] badFormat=bytes.clone();
+		badFormat[4]=99;
+		byte[] tooLong=new byte[16];
+		System.arraycopy(bytes, 0, tooLong, 0, 5);
+		Arrays.fill(tooLong, 5, tooLong.length, (byte)0xff);
+		for(byte[] data : new byte[][] {badMagic, badFormat, tooLong, "1%black>1,1".getBytes()}) {
+			try {
+				BinaryBoardFormat.decode(ByteBuffer.wrap(data), new ArrayList<WhiteboardPath>());
+				fail("decoded "+Arrays.toString(data));
+			} catch (IOException e) {
+				assertTrue(e.getMessage()!=null);
+			}
+		}
+	}
+
+	@Test
+	public void encodingIsStable() {
+		assertArrayEquals(sample(), sample());
+	}
+}
@@ -0,0 +1,87 @@
+package pb.transfer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Resuming a {@link DownloadProgress} from its sidecar, which must only keep
+ * the recorded ranges if they are for the same content.
+ *
+ * @author aaron
+ *
+ */
+public class DownloadProgressTest {
+
+	private static final long size=4*FileDigest.chunkSize;
+
+	private File dir;
+	private String filename;
+
+	@Before
+	public void setUp() throws IOException {
+		dir=Files.createTempDirectory("progress").toFile();
+		filename=new File(dir,"download.bin").getPath();
+	}
+
+	@After
+	public void tearDown() {
+		for(File file : dir.listFiles()) file.delete();
+		dir.delete();
+	}
+
+	/**
+	 * Start a download of the content, record its first two chunks and stop.
+	 */
+	private void interrupted(String digest) throws IOException {
+		DownloadProgress progress=new DownloadProgress(filename);
+		progress.setSize(size, digest);
+		progress.completed(0, 2*FileDigest.chunkSize);
+		progress.close();
+	}
+
+	@Test
+	public void resumeSameDigest() throws IOException {
+		interrupted("aaaa");
+		DownloadProgress progress=new DownloadProgress(filename);
+		assertEquals(size, progress.getSize());
+		progress.setSize(size, "aaaa");
+		assertEquals(2*FileDigest.chunkSize, progress.prefix());
+		assertTrue(progress.covers(0, 2*FileDigest.chunkSize));
+		progress.close();
+	}
+
+	@Test
+	public void resumeDifferentDigestSameSize() throws IOException {
+		interrupted("aaaa");
+		DownloadProgress progress=new DownloadProgress(filename);
+		progress.setSize(size, "bbbb");
+		assertEquals(0, progress.prefix());
+		assertFalse(progress.covers(0, FileDigest.chunkSize));
+		progress.close();
+		// and the sidecar now records the new digest only
+		progress=new DownloadProgress(filename);
+		progress.setSize(size, "bbbb");
+		assertEquals(0, progress.completedBytes());
+		progress.close();
+	}
+
+	@Test
+	public void resumeWithoutDigest() throws IOException {
+		Files.write(new File(filename+".progress").toPath(),
+				("size:"+size+"\n0:"+FileDigest.chunkSize+"\n").getBytes(StandardCharsets.UTF_8));
+		DownloadProgress progress=new DownloadProgress(filename);
+		progress.setSize(size, "aaaa");
+		assertEquals(0, progress.completedBytes());
+		progress.close();
+	}
+}
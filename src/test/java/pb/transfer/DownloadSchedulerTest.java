@@ -0,0 +1,95 @@
+package pb.transfer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * The per-peer limit of a {@link DownloadScheduler}, including the slots that
+ * a swarm download takes for its other sources.
+ *
+ * @author aaron
+ *
+ */
+public class DownloadSchedulerTest {
+
+	private DownloadScheduler scheduler;
+
+	/**
+	 * Names of the downloads that have started, in order.
+	 */
+	private List<String> started;
+
+	private List<DownloadScheduler.Ticket> tickets;
+
+	@Before
+	public void setUp() {
+		scheduler=new DownloadScheduler(8,1,60000);
+		started=new ArrayList<>();
+		tickets=new ArrayList<>();
+	}
+
+	private DownloadScheduler.Ticket submit(String name,String peer) {
+		DownloadScheduler.Ticket ticket=scheduler.submit(name, peer, 0, (t)->{
+			started.add(t.getName());
+		});
+		tickets.add(ticket);
+		return ticket;
+	}
+
+	@Test
+	public void swarmSourceHoldsItsPeer() {
+		DownloadScheduler.Ticket swarm=submit("a","p1:1");
+		assertTrue("the submitted peer is already held", swarm.acquirePeer("p1:1"));
+		assertTrue(swarm.acquirePeer("p2:2"));
+		submit("b","p2:2");
+		assertEquals("b waits for the swarm's slot on p2", List.of("a"), started);
+		swarm.finished(true);
+		assertEquals(List.of("a","b"), started);
+	}
+
+	@Test
+	public void swarmSourceRefusedAtLimit() {
+		submit("b","p2:2");
+		DownloadScheduler.Ticket swarm=submit("a","p1:1");
+		assertFalse(swarm.acquirePeer("p2:2"));
+		assertTrue(swarm.acquirePeer("p3:3"));
+	}
+
+	@Test
+	public void releasedSourceLetsQueuedDownloadStart() {
+		DownloadScheduler.Ticket swarm=submit("a","p1:1");
+		assertTrue(swarm.acquirePeer("p2:2"));
+		submit("b","p2:2");
+		swarm.releasePeer("p2:2");
+		assertEquals(List.of("a","b"), started);
+		// released twice, or a peer it never held, changes nothing
+		swarm.releasePeer("p2:2");
+		swarm.releasePeer("p9:9");
+		submit("c","p2:2");
+		assertEquals(List.of("a","b"), started);
+	}
+
+	@Test
+	public void endedDownloadTakesNoSlot() {
+		DownloadScheduler.Ticket swarm=submit("a","p1:1");
+		swarm.finished(false);
+		assertFalse(swarm.acquirePeer("p2:2"));
+		submit("b","p2:2");
+		assertEquals(List.of("a","b"), started);
+	}
+
+	@Test
+	public void queuedDownloadTakesNoSlot() {
+		submit("a","p1:1");
+		DownloadScheduler.Ticket queued=submit("b","p1:1");
+		assertFalse(queued.acquirePeer("p2:2"));
+		assertEquals(List.of("a"), started);
+	}
+}